@@ -30,14 +30,15 @@ import org.exist.xquery.BasicFunction;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.array.ArrayType;
 import org.exist.xquery.value.*;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
 import static org.exist.xquery.FunctionDSL.*;
@@ -149,6 +150,75 @@ public class BasicFunctions extends BasicFunction {
     );
 
 
+    private static final String FS_FIND_ALL_NAME = "find-all";
+    private static final FunctionParameterSequenceType FS_FIND_ALL_PARAM_OFFSET = param("offset", Type.INTEGER, "The offset to start searching from");
+    private static final FunctionParameterSequenceType FS_FIND_ALL_PARAM_SEARCH = param("search", Type.BASE64_BINARY, "The binary data to search for");
+    static final FunctionSignature[] FS_FIND_ALL = functionSignatures(
+            FS_FIND_ALL_NAME,
+            "The function returns the locations of every occurrence of the binary search sequence in the input, in ascending order. Occurrences may overlap. If $search is empty $offset is returned. The input is searched in a single pass, which stops once $max occurrences have been found.",
+            returnsOptMany(Type.INTEGER),
+            arities(
+                    arity(
+                            FS_OPT_PARAM_IN,
+                            FS_FIND_ALL_PARAM_OFFSET,
+                            FS_FIND_ALL_PARAM_SEARCH
+                    ),
+                    arity(
+                            FS_OPT_PARAM_IN,
+                            FS_FIND_ALL_PARAM_OFFSET,
+                            FS_FIND_ALL_PARAM_SEARCH,
+                            param("max", Type.INTEGER, "The maximum number of occurrences to find")
+                    )
+            )
+    );
+
+    private static final String FS_FIND_ANY_NAME = "find-any";
+    private static final FunctionParameterSequenceType FS_FIND_ANY_PARAM_OFFSET = param("offset", Type.INTEGER, "The offset to start searching from");
+    private static final FunctionParameterSequenceType FS_FIND_ANY_PARAM_PATTERNS = optManyParam("patterns", Type.BASE64_BINARY, "The binary data to search for");
+    static final FunctionSignature[] FS_FIND_ANY = functionSignatures(
+            FS_FIND_ANY_NAME,
+            "The function returns the locations of every occurrence of any of the binary search sequences in the input, found in a single pass. Each occurrence is returned as an array of the (1-based) index of the search sequence within $patterns, and the location. Occurrences are returned in the order in which they end, those ending at the same location are ordered by index. An empty search sequence is found only at $offset. The search stops once $max occurrences have been found.",
+            returnsOptMany(Type.ARRAY),
+            arities(
+                    arity(
+                            FS_OPT_PARAM_IN,
+                            FS_FIND_ANY_PARAM_OFFSET,
+                            FS_FIND_ANY_PARAM_PATTERNS
+                    ),
+                    arity(
+                            FS_OPT_PARAM_IN,
+                            FS_FIND_ANY_PARAM_OFFSET,
+                            FS_FIND_ANY_PARAM_PATTERNS,
+                            param("max", Type.INTEGER, "The maximum number of occurrences to find")
+                    )
+            )
+    );
+
+    private static final String FS_FIND_PATTERN_NAME = "find-pattern";
+    private static final FunctionParameterSequenceType FS_PATTERN_PARAM_PATTERN = param("pattern", Type.STRING, "The octet pattern, written as hex octets such as '4D 5A', where '??' matches any octet, '4?' or '?D' match a single nibble, and '[n]' or '[n-m]' match a gap of n, or between n and m, octets of any value");
+    static final FunctionSignature FS_FIND_PATTERN = functionSignature(
+            FS_FIND_PATTERN_NAME,
+            "The function returns the first location in the input which matches the octet pattern, or if not found, the empty sequence.",
+            returnsOpt(Type.INTEGER),
+            params(
+                    FS_OPT_PARAM_IN,
+                    param("offset", Type.INTEGER, "The offset to start searching from"),
+                    FS_PATTERN_PARAM_PATTERN
+            )
+    );
+
+    private static final String FS_MATCH_NAME = "match";
+    static final FunctionSignature FS_MATCH = functionSignature(
+            FS_MATCH_NAME,
+            "The function returns true if the input matches the octet pattern at the offset.",
+            returnsOpt(Type.BOOLEAN),
+            params(
+                    FS_OPT_PARAM_IN,
+                    param("offset", Type.INTEGER, "The offset at which the pattern must match"),
+                    FS_PATTERN_PARAM_PATTERN
+            )
+    );
+
     public BasicFunctions(final XQueryContext context, final FunctionSignature signature) {
         super(context, signature);
     }
@@ -251,130 +321,319 @@ public class BasicFunctions extends BasicFunction {
                     return Sequence.EMPTY_SEQUENCE;
                 }
 
+            case FS_FIND_ALL_NAME:
+                final Optional<BinaryValue> inFindAllBase64 = getBinaryArg(args, 0);
+                if(inFindAllBase64.isPresent()) {
+                    final BigInteger findAllOffset = getIntegerArg(args, 1).orElse(BigInteger.ZERO);
+                    if(findAllOffset.compareTo(BigInteger.ZERO) < 0) {
+                        throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is negative:" + findAllOffset);
+                    }
+                    final BinaryValue searchAllBase64 = getBinaryArg(args, 2).orElse(newEmptyBinary(context));
+                    final Optional<BigInteger> max;
+                    if(args.length == 4) {
+                        max = getIntegerArg(args, 3);
+                    } else {
+                        max = Optional.empty();
+                    }
+                    if(max.map(m -> m.compareTo(BigInteger.ZERO) < 0).orElse(false)) {
+                        throw new XPathException(this, ERROR_NEGATIVE_SIZE, "$max is negative:" + max.get());
+                    }
+                    return findAll(inFindAllBase64.get(), findAllOffset, searchAllBase64, max.filter(m -> m.bitLength() <= 63).map(BigInteger::longValue).orElse(Long.MAX_VALUE));
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
+            case FS_FIND_ANY_NAME:
+                final Optional<BinaryValue> inFindAnyBase64 = getBinaryArg(args, 0);
+                if(inFindAnyBase64.isPresent()) {
+                    final BigInteger findAnyOffset = getIntegerArg(args, 1).orElse(BigInteger.ZERO);
+                    if(findAnyOffset.compareTo(BigInteger.ZERO) < 0) {
+                        throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is negative:" + findAnyOffset);
+                    }
+                    final Optional<BinaryValue[]> patternsBase64 = getBinarySequenceArg(args, 2);
+                    final Optional<BigInteger> max;
+                    if(args.length == 4) {
+                        max = getIntegerArg(args, 3);
+                    } else {
+                        max = Optional.empty();
+                    }
+                    if(max.map(m -> m.compareTo(BigInteger.ZERO) < 0).orElse(false)) {
+                        throw new XPathException(this, ERROR_NEGATIVE_SIZE, "$max is negative:" + max.get());
+                    }
+                    if(patternsBase64.isPresent()) {
+                        return findAny(inFindAnyBase64.get(), findAnyOffset, patternsBase64.get(), max.filter(m -> m.bitLength() <= 63).map(BigInteger::longValue).orElse(Long.MAX_VALUE));
+                    } else {
+                        return Sequence.EMPTY_SEQUENCE;
+                    }
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
+            case FS_FIND_PATTERN_NAME:
+            case FS_MATCH_NAME:
+                final Optional<BinaryValue> inPatternBase64 = getBinaryArg(args, 0);
+                if(inPatternBase64.isPresent()) {
+                    final BigInteger patternOffset = getIntegerArg(args, 1).orElse(BigInteger.ZERO);
+                    if(patternOffset.compareTo(BigInteger.ZERO) < 0) {
+                        throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is negative:" + patternOffset);
+                    }
+                    final String patternString = getStringArg(args, 2).orElse("");
+                    final BytePattern pattern;
+                    try {
+                        pattern = getModule(context).getPattern(patternString);
+                    } catch(final IllegalArgumentException e) {
+                        throw new XPathException(this, ERROR_INVALID_PATTERN, "$pattern is invalid: " + e.getMessage());
+                    }
+
+                    if(getName().getLocalPart().equals(FS_FIND_PATTERN_NAME)) {
+                        return findPattern(inPatternBase64.get(), patternOffset, pattern);
+                    } else {
+                        return match(inPatternBase64.get(), patternOffset, pattern);
+                    }
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
             default:
                 throw new XPathException(this, "No function: " + getName() + "#" + getSignature().getArgumentCount());
         }
     }
 
     private IntegerValue length(final BinaryValue binValue) throws XPathException {
-        final byte buf[] = new byte[4096];
-        long len = 0;
         try {
-            // we don't need to close the stream, it will be closed by BinaryValueFromInputStream when it goes out of context
-            final InputStream is = binValue.getInputStream();
-            int read = -1;
-            while((read = is.read(buf)) > -1) {
-                len += read;
-            }
-            return new IntegerValue(len);
+            return new IntegerValue(getLength(context, binValue));
         } catch(final IOException e) {
             throw new XPathException(this, e);
         }
     }
 
     private BinaryValue part(final BinaryValue binValue, final BigInteger offset, final Optional<BigInteger> size) throws XPathException {
-        // we don't need to close the stream, it will be closed by BinaryValueFromInputStream when it goes out of context
-        return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new RegionFilterInputStream(binValue.getInputStream(), offset.intValue(), size.orElse(BigInteger.valueOf(RegionFilterInputStream.END_OF_STREAM)).intValue()));
+        final long off = toLong(this, offset, "$offset");
+        final Optional<Long> len = size.isPresent() ? Optional.of(toLong(this, size.get(), "$size")) : Optional.empty();
+
+        final Optional<Long> inLength = getKnownLength(context, binValue);
+        if(inLength.isPresent()) {
+            final long inLen = inLength.get();
+            if(off > inLen || len.orElse(0L) > inLen - off) {
+                throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset + $size is larger than the size of the binary data in $in");
+            }
+        }
+
+        return newSegmentedBinary(context, getSegments(context, binValue, off, len.orElse(SegmentedBinaryValue.UNKNOWN_LENGTH)));
     }
 
     private BinaryValue join(final BinaryValue[] binValues) throws XPathException {
-        // we don't need to close the streams, they will be closed by BinaryValueFromInputStream when it goes out of context
-        return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new JoinFilterInputStream(Arrays.stream(binValues).map(BinaryValue::getInputStream).toArray(InputStream[]::new)));
+        final List<SegmentedBinaryValue.Segment> segments = new ArrayList<>();
+        for(final BinaryValue binValue : binValues) {
+            for(final SegmentedBinaryValue.Segment segment : getSegments(context, binValue)) {
+                SegmentedBinaryValue.append(segments, segment);
+            }
+        }
+        return newSegmentedBinary(context, segments);
     }
 
     private BinaryValue insertBefore(final BinaryValue data, final BigInteger offset, final BinaryValue extra) throws XPathException {
-        final InputStream[] streams;
-        if(offset.intValue() == 0) {
-            streams = new InputStream[2];
-            streams[0] = extra.getInputStream();
-            streams[1] = new RegionFilterInputStream(data.getInputStream(), offset.intValue(), RegionFilterInputStream.END_OF_STREAM);
-        } else {
-            streams = new InputStream[3];
-            streams[0] = new RegionFilterInputStream(data.getInputStream(), 0, offset.intValue());
-            streams[1] = extra.getInputStream();
-            streams[2] = new RegionFilterInputStream(data.getInputStream(), offset.intValue(), RegionFilterInputStream.END_OF_STREAM);
+        final long off = toLong(this, offset, "$offset");
+        final Optional<Long> dataLength = getKnownLength(context, data);
+        if(dataLength.isPresent() && off > dataLength.get()) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
         }
 
-        // we don't need to close the streams, they will be closed by BinaryValueFromInputStream when it goes out of context
-        return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new JoinFilterInputStream(streams));
+        // both regions are taken from the same segments, so that a stored binary is
+        // only looked up once, and the region after the insertion continues from
+        // the same open file as the region before it
+        final SegmentedBinaryValue.Segment[] dataSegments = getSegments(context, data);
+
+        final List<SegmentedBinaryValue.Segment> segments = new ArrayList<>();
+        for(final SegmentedBinaryValue.Segment segment : getSegments(context, data, dataSegments, 0, off)) {
+            SegmentedBinaryValue.append(segments, segment);
+        }
+        for(final SegmentedBinaryValue.Segment segment : getSegments(context, extra)) {
+            SegmentedBinaryValue.append(segments, segment);
+        }
+        for(final SegmentedBinaryValue.Segment segment : getSegments(context, data, dataSegments, off, SegmentedBinaryValue.UNKNOWN_LENGTH)) {
+            SegmentedBinaryValue.append(segments, segment);
+        }
+        return newSegmentedBinary(context, segments);
     }
 
     private BinaryValue padLeft(final BinaryValue data, final BigInteger size, final int octet) throws XPathException {
-        final byte[] padding = new byte[size.intValue()];
-        final byte b = (byte)(octet & 0xff);
-        Arrays.fill(padding, b);
-
-        return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new JoinFilterInputStream(new InputStream[] {
-                new ByteArrayInputStream(padding),
-                data.getInputStream()
-        }));
+        final List<SegmentedBinaryValue.Segment> segments = new ArrayList<>();
+        SegmentedBinaryValue.append(segments, newPadding(size, octet));
+        for(final SegmentedBinaryValue.Segment segment : getSegments(context, data)) {
+            SegmentedBinaryValue.append(segments, segment);
+        }
+        return newSegmentedBinary(context, segments);
     }
 
     private BinaryValue padRight(final BinaryValue data, final BigInteger size, final int octet) throws XPathException {
-        final byte[] padding = new byte[size.intValue()];
-        final byte b = (byte)(octet & 0xff);
-        Arrays.fill(padding, b);
-
-        return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new JoinFilterInputStream(new InputStream[] {
-                data.getInputStream(),
-                new ByteArrayInputStream(padding)
-        }));
+        final List<SegmentedBinaryValue.Segment> segments = new ArrayList<>();
+        for(final SegmentedBinaryValue.Segment segment : getSegments(context, data)) {
+            SegmentedBinaryValue.append(segments, segment);
+        }
+        SegmentedBinaryValue.append(segments, newPadding(size, octet));
+        return newSegmentedBinary(context, segments);
+    }
+
+    private SegmentedBinaryValue.Segment newPadding(final BigInteger size, final int octet) throws XPathException {
+        final long len = toLong(this, size, "$size");
+        return SegmentedBinaryValue.Segment.of(new RepeatingByteBinarySource((byte)(octet & 0xff), len));
     }
 
     private Sequence find(final BinaryValue data, final BigInteger offset, final BinaryValue search) throws XPathException {
-        final int off = offset.intValue();
-        try(final ByteArrayOutputStream baosData = new ByteArrayOutputStream()) {
-            data.streamTo(baosData);
-            final byte[] bufData = baosData.toByteArray();
+        final long off = toLong(this, offset, "$offset");
+        final Optional<Long> dataLength = getKnownLength(context, data);
+        if(dataLength.isPresent() && off > dataLength.get()) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
+        }
 
-            if(off > bufData.length) {
-                throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
+        try {
+            final byte[] bufSearch = toByteArray(search);
+            if(dataLength.isPresent() && off + bufSearch.length > dataLength.get()) {
+                // $offset + $search is larger than $in
+                return Sequence.EMPTY_SEQUENCE;
             }
 
-            try(final ByteArrayOutputStream baosSearch = new ByteArrayOutputStream()) {
-                search.streamTo(baosSearch);
-                final byte[] bufSearch = baosSearch.toByteArray();
-
+            try(final InputStream is = openInputStream(context, data, off)) {
                 if(bufSearch.length == 0) {
                     // If $search is empty $offset is returned.
                     return new IntegerValue(offset);
                 }
 
-                if(bufSearch.length > bufData.length) {
-                    // $search is larger than $in
+                final ByteSearcher searcher = getModule(context).getSearcher(bufSearch);
+                final long foundOffset = searcher.indexOf(is, off);
+                if(foundOffset == ByteSearcher.NOT_FOUND) {
                     return Sequence.EMPTY_SEQUENCE;
+                } else {
+                    return new IntegerValue(foundOffset);
                 }
+            }
+        } catch (final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
+        } catch (final IOException e) {
+            throw new XPathException(this, e);
+        }
+    }
 
-                if(off + bufSearch.length > bufData.length) {
-                    // $offset + $search is larger than $in
-                    return Sequence.EMPTY_SEQUENCE;
+    private Sequence findAll(final BinaryValue data, final BigInteger offset, final BinaryValue search, final long max) throws XPathException {
+        final long off = toLong(this, offset, "$offset");
+        final Optional<Long> dataLength = getKnownLength(context, data);
+        if(dataLength.isPresent() && off > dataLength.get()) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
+        }
+
+        try {
+            final byte[] bufSearch = toByteArray(search);
+            if(max == 0 || (dataLength.isPresent() && off + bufSearch.length > dataLength.get())) {
+                return Sequence.EMPTY_SEQUENCE;
+            }
+
+            try(final InputStream is = openInputStream(context, data, off)) {
+                if(bufSearch.length == 0) {
+                    // If $search is empty $offset is returned.
+                    return new IntegerValue(offset);
+                }
+
+                final ByteSearcher.StreamMatcher matcher = getModule(context).getSearcher(bufSearch).matcher(is, off);
+                final ValueSequence offsets = new ValueSequence();
+                long foundOffset;
+                while(offsets.getItemCount() < max && (foundOffset = matcher.find()) != ByteSearcher.NOT_FOUND) {
+                    offsets.add(new IntegerValue(foundOffset));
+                }
+                return offsets;
+            }
+        } catch (final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
+        } catch (final IOException e) {
+            throw new XPathException(this, e);
+        }
+    }
+
+    private Sequence findAny(final BinaryValue data, final BigInteger offset, final BinaryValue[] patterns, final long max) throws XPathException {
+        final long off = toLong(this, offset, "$offset");
+        final Optional<Long> dataLength = getKnownLength(context, data);
+        if(dataLength.isPresent() && off > dataLength.get()) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
+        }
+
+        try {
+            if(max == 0) {
+                return Sequence.EMPTY_SEQUENCE;
+            }
+
+            final byte[][] bufPatterns = new byte[patterns.length][];
+            for(int i = 0; i < patterns.length; i++) {
+                bufPatterns[i] = toByteArray(patterns[i]);
+            }
+
+            try(final InputStream is = openInputStream(context, data, off)) {
+                final MultiByteSearcher searcher = getModule(context).getMultiSearcher(bufPatterns);
+                final List<long[]> occurrences = new ArrayList<>();
+                searcher.search(is, off, (patternIndex, foundOffset) -> {
+                    occurrences.add(new long[] { patternIndex + 1, foundOffset });
+                    return occurrences.size() < max;
+                });
+
+                final ValueSequence result = new ValueSequence(occurrences.size());
+                for(final long[] occurrence : occurrences) {
+                    result.add(new ArrayType(context, Arrays.<Sequence>asList(new IntegerValue(occurrence[0]), new IntegerValue(occurrence[1]))));
                 }
+                return result;
+            }
+        } catch (final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
+        } catch (final IOException e) {
+            throw new XPathException(this, e);
+        }
+    }
 
-                final int foundOffset = findOffset(bufData, off, bufSearch);
-                if(foundOffset == -1) {
+    private Sequence findPattern(final BinaryValue data, final BigInteger offset, final BytePattern pattern) throws XPathException {
+        final long off = toLong(this, offset, "$offset");
+        try {
+            try(final InputStream is = openInputStream(context, data, off)) {
+                final long foundOffset = pattern.indexOf(is, off);
+                if(foundOffset == BytePattern.NOT_FOUND) {
                     return Sequence.EMPTY_SEQUENCE;
                 } else {
                     return new IntegerValue(foundOffset);
                 }
             }
+        } catch (final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
         } catch (final IOException e) {
             throw new XPathException(this, e);
         }
     }
 
-    private int findOffset(final byte[] data, final int offset, final byte[] search) {
-        for(int i = offset; i < data.length - search.length + 1; i++) {
-            boolean found = true;
-            for(int j = 0; j < search.length; ++j) {
-                if (data[i + j] != search[j]) {
-                    found = false;
-                    break;
+    private BooleanValue match(final BinaryValue data, final BigInteger offset, final BytePattern pattern) throws XPathException {
+        final long off = toLong(this, offset, "$offset");
+        try {
+            // the pattern cannot extend beyond the end of the data
+            final Optional<Long> dataLength = getKnownLength(context, data);
+            final int maxLen = dataLength.isPresent() ? (int)Math.min(pattern.getMaxLength(), Math.max(0, dataLength.get() - off)) : pattern.getMaxLength();
+
+            try(final InputStream is = openInputStream(context, data, off)) {
+                // read just enough to decide the match, into a buffer which grows
+                // as it is filled, in case the data ends before the longest match
+                byte[] buf = new byte[Math.min(maxLen, ByteSearcher.DEFAULT_BUFFER_SIZE)];
+                int len = 0;
+                while(len < maxLen) {
+                    if(len == buf.length) {
+                        buf = Arrays.copyOf(buf, (int)Math.min(maxLen, 2L * buf.length));
+                    }
+                    final int read = is.read(buf, len, buf.length - len);
+                    if(read == -1) {
+                        break;
+                    }
+                    len += read;
                 }
+
+                return BooleanValue.valueOf(pattern.matchesAt(buf, 0, len));
             }
-            if (found) {
-                return i;
-            }
+        } catch (final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is larger than the size of the binary data in $in");
+        } catch (final IOException e) {
+            throw new XPathException(this, e);
         }
-        return -1;
     }
 }
@@ -0,0 +1,79 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.util.LockException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A binary document stored in the database, which
+ * is read from an offset through the file that holds it.
+ *
+ * The file is only opened whilst holding a read lock on the document,
+ * so that it is not opened part way through an update of the document.
+ * Once opened, the data is read from the same file even if the document
+ * is then replaced or removed. As the lock is held by the thread which
+ * opens the file, the document is not read in the background.
+ */
+class BinaryDocumentSource extends FileBinarySource {
+
+    private final BinaryDocument doc;
+
+    /**
+     * @param doc the document, on which the caller holds a read lock
+     * @param file the file which holds the document
+     */
+    BinaryDocumentSource(final BinaryDocument doc, final Path file) throws IOException {
+        super(file);
+        this.doc = doc;
+    }
+
+    @Override
+    public InputStream open(final long offset) throws IOException {
+        final Lock lock = doc.getUpdateLock();
+        try {
+            lock.acquire(LockMode.READ_LOCK);
+        } catch(final LockException e) {
+            throw new IOException("Unable to lock the document: " + doc.getURI(), e);
+        }
+        try {
+            if(Files.size(getFile()) != getLength()) {
+                throw new IOException("The document was modified whilst being read: " + doc.getURI());
+            }
+            return super.open(offset);
+        } finally {
+            lock.release(LockMode.READ_LOCK);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Binary data which is other binary data shifted
+ * by less than one octet, computed as it is read.
+ */
+public class BitShiftBinarySource implements BinarySource {
+
+    private final SegmentedBinaryValue.Segment[] segments;
+    private final long length;
+    private final int bits;
+    private final boolean left;
+
+    /**
+     * @param segments the segments of the data to shift
+     * @param length the length of the data to shift
+     * @param bits the number of bits to shift by, between 1 and 7
+     * @param left true to shift towards the start of the data, false to shift towards the end
+     */
+    public BitShiftBinarySource(final SegmentedBinaryValue.Segment[] segments, final long length, final int bits, final boolean left) {
+        this.segments = segments;
+        this.length = length;
+        this.bits = bits;
+        this.left = left;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream open(final long offset) throws IOException {
+        if(offset > length) {
+            throw new RegionFilterInputStream.IndexOutOfRangeException("offset: " + offset + " is beyond the end of the data: " + length);
+        }
+
+        if(left || offset == 0) {
+            return new BitShiftInputStream(SegmentedBinaryValue.open(segments, offset), bits, left, (byte)0);
+        }
+
+        // when shifting right, the preceding octet carries bits into the first octet
+        final InputStream is = SegmentedBinaryValue.open(segments, offset - 1);
+        try {
+            final int carry = is.read();
+            if(carry == BitShiftInputStream.END_OF_STREAM) {
+                throw new RegionFilterInputStream.IndexOutOfRangeException("offset: " + offset + " is beyond the end of the data");
+            }
+            return new BitShiftInputStream(is, bits, false, (byte)carry);
+        } catch(final IOException e) {
+            is.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Shifts the bits of an input stream by less than one octet
+ * as it is read, carrying bits between adjacent octets.
+ *
+ * The input is processed in fixed-size chunks, eight octets
+ * at a time through {@code long} views of the chunks.
+ */
+@NotThreadSafe
+public class BitShiftInputStream extends InputStream {
+
+    public static final int END_OF_STREAM = -1;
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final int bits;
+    private final boolean left;
+
+    // one extra octet, to hold the octet following the chunk when shifting left
+    private final byte[] chunk = new byte[CHUNK_SIZE + 1];
+    private final ByteBuffer buf = ByteBuffer.wrap(chunk);
+
+    private int chunkLen = 0;
+    private int chunkPos = 0;
+    private boolean end = false;
+
+    // shifting left: the octet following the current chunk, if it has been read
+    private boolean hasLookahead = false;
+    // shifting right: the last octet of the previous chunk, before it was shifted
+    private byte carry;
+
+    /**
+     * @param in the input stream to shift
+     * @param bits the number of bits to shift by, between 1 and 7
+     * @param left true to shift towards the start of the data, false to shift towards the end
+     * @param carry when shifting right, the octet preceding the input stream,
+     *     whose low-order bits are shifted into the first octet
+     */
+    public BitShiftInputStream(final InputStream in, final int bits, final boolean left, final byte carry) {
+        if(bits < 1 || bits > 7) {
+            throw new IllegalArgumentException("bits must be between 1 and 7: " + bits);
+        }
+        this.in = in;
+        this.bits = bits;
+        this.left = left;
+        this.carry = carry;
+    }
+
+    /**
+     * Reads and shifts the next chunk of the input.
+     *
+     * @return false if the end of the input was reached
+     */
+    private boolean nextChunk() throws IOException {
+        if(end) {
+            return false;
+        }
+
+        int len = 0;
+        if(hasLookahead) {
+            chunk[0] = chunk[CHUNK_SIZE];
+            len = 1;
+            hasLookahead = false;
+        }
+        int read;
+        while(len < CHUNK_SIZE && (read = in.read(chunk, len, CHUNK_SIZE - len)) != END_OF_STREAM) {
+            len += read;
+        }
+
+        if(len == 0) {
+            end = true;
+            return false;
+        }
+
+        if(left) {
+            // the octet following the chunk provides the bits shifted into its last octet
+            final int next = len == CHUNK_SIZE ? in.read() : END_OF_STREAM;
+            if(next == END_OF_STREAM) {
+                chunk[len] = 0;
+                end = true;
+            } else {
+                chunk[len] = (byte)next;
+                hasLookahead = true;
+            }
+            // leaves the octet following the chunk unmodified, for the next chunk
+            shiftLeft(len);
+        } else {
+            if(len < CHUNK_SIZE) {
+                end = true;
+            }
+            final byte last = chunk[len - 1];
+            shiftRight(len);
+            carry = last;
+        }
+
+        chunkLen = len;
+        chunkPos = 0;
+        return true;
+    }
+
+    /**
+     * Shifts towards the start of the data, in ascending order
+     * so that each octet's successor is not yet shifted.
+     *
+     * {@code chunk[len]} must hold the octet following the chunk.
+     */
+    private void shiftLeft(final int len) {
+        final int words = len >>> 3;
+        for(int i = 0; i < words; i++) {
+            final int idx = i << 3;
+            final long word = buf.getLong(idx);
+            buf.putLong(idx, (word << bits) | ((chunk[idx + 8] & 0xff) >>> (8 - bits)));
+        }
+        for(int idx = words << 3; idx < len; idx++) {
+            chunk[idx] = (byte)((chunk[idx] << bits) | ((chunk[idx + 1] & 0xff) >>> (8 - bits)));
+        }
+    }
+
+    /**
+     * Shifts towards the end of the data, in descending order
+     * so that each octet's predecessor is not yet shifted.
+     */
+    private void shiftRight(final int len) {
+        final int words = len >>> 3;
+        for(int idx = len - 1; idx >= words << 3; idx--) {
+            final byte prev = idx > 0 ? chunk[idx - 1] : carry;
+            chunk[idx] = (byte)(((chunk[idx] & 0xff) >>> bits) | (prev << (8 - bits)));
+        }
+        for(int i = words - 1; i >= 0; i--) {
+            final int idx = i << 3;
+            final byte prev = idx > 0 ? chunk[idx - 1] : carry;
+            final long word = buf.getLong(idx);
+            buf.putLong(idx, (word >>> bits) | ((long)(prev & 0xff) << (64 - bits)));
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(chunkPos == chunkLen && !nextChunk()) {
+            return END_OF_STREAM;
+        }
+        return chunk[chunkPos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(chunkPos == chunkLen && !nextChunk()) {
+            return END_OF_STREAM;
+        }
+        final int n = Math.min(len, chunkLen - chunkPos);
+        System.arraycopy(chunk, chunkPos, b, off, n);
+        chunkPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunkLen - chunkPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Binary data which is the result of a bitwise operation
+ * on other binary data, computed as it is read.
+ */
+public class BitwiseBinarySource implements BinarySource {
+
+    private final BitwiseInputStream.Operation operation;
+    private final SegmentedBinaryValue.Segment[] a;
+    private final SegmentedBinaryValue.Segment[] b;
+    private final long length;
+
+    /**
+     * @param operation the bitwise operation
+     * @param a the segments of the first operand
+     * @param b the segments of the second operand, or null for {@link BitwiseInputStream.Operation#NOT}
+     * @param length the length of the operands, which must be the same length
+     */
+    public BitwiseBinarySource(final BitwiseInputStream.Operation operation, final SegmentedBinaryValue.Segment[] a, final SegmentedBinaryValue.Segment[] b, final long length) {
+        this.operation = operation;
+        this.a = a;
+        this.b = b;
+        this.length = length;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream open(final long offset) throws IOException {
+        if(offset > length) {
+            throw new RegionFilterInputStream.IndexOutOfRangeException("offset: " + offset + " is beyond the end of the data: " + length);
+        }
+
+        final InputStream isA = SegmentedBinaryValue.open(a, offset);
+        if(b == null) {
+            return new BitwiseInputStream(operation, isA, null);
+        }
+
+        try {
+            return new BitwiseInputStream(operation, isA, SegmentedBinaryValue.open(b, offset));
+        } catch(final IOException e) {
+            isA.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.exist.xquery.FunctionDSL.*;
+import static org.exist.xquery.modules.expath.bin.ExpathBinModule.*;
+import static org.exist.xquery.modules.expath.bin.Utils.*;
+
+/**
+ * Bitwise operations on binary data.
+ *
+ * The results are computed as they are read, so
+ * the operands are never held in memory.
+ */
+public class BitwiseFunctions extends BasicFunction {
+
+    private static final FunctionParameterSequenceType FS_PARAM_A = optParam("a", Type.BASE64_BINARY, "The first binary data");
+    private static final FunctionParameterSequenceType FS_PARAM_B = optParam("b", Type.BASE64_BINARY, "The second binary data");
+
+    private static final String FS_OR_NAME = "or";
+    static final FunctionSignature FS_OR = functionSignature(
+            FS_OR_NAME,
+            "Returns the \"bitwise or\" of two binary arguments.",
+            returnsOpt(Type.BASE64_BINARY),
+            FS_PARAM_A,
+            FS_PARAM_B
+    );
+
+    private static final String FS_XOR_NAME = "xor";
+    static final FunctionSignature FS_XOR = functionSignature(
+            FS_XOR_NAME,
+            "Returns the \"bitwise xor\" of two binary arguments.",
+            returnsOpt(Type.BASE64_BINARY),
+            FS_PARAM_A,
+            FS_PARAM_B
+    );
+
+    private static final String FS_AND_NAME = "and";
+    static final FunctionSignature FS_AND = functionSignature(
+            FS_AND_NAME,
+            "Returns the \"bitwise and\" of two binary arguments.",
+            returnsOpt(Type.BASE64_BINARY),
+            FS_PARAM_A,
+            FS_PARAM_B
+    );
+
+    private static final String FS_NOT_NAME = "not";
+    static final FunctionSignature FS_NOT = functionSignature(
+            FS_NOT_NAME,
+            "Returns the \"bitwise not\" of a binary argument.",
+            returnsOpt(Type.BASE64_BINARY),
+            optParam("in", Type.BASE64_BINARY, "The binary data")
+    );
+
+    private static final String FS_SHIFT_NAME = "shift";
+    static final FunctionSignature FS_SHIFT = functionSignature(
+            FS_SHIFT_NAME,
+            "Shifts the bits of binary data. A positive $by shifts towards the most significant bits (left), a negative $by towards the least significant bits (right). Bits shifted out are lost, and zero bits are shifted in.",
+            returnsOpt(Type.BASE64_BINARY),
+            optParam("in", Type.BASE64_BINARY, "The binary data"),
+            param("by", Type.INTEGER, "The number of bits to shift by")
+    );
+
+    public BitwiseFunctions(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        switch(getName().getLocalPart()) {
+            case FS_OR_NAME:
+            case FS_XOR_NAME:
+            case FS_AND_NAME:
+                final Optional<BinaryValue> a = getBinaryArg(args, 0);
+                final Optional<BinaryValue> b = getBinaryArg(args, 1);
+                if(a.isPresent() && b.isPresent()) {
+                    final BitwiseInputStream.Operation operation;
+                    switch(getName().getLocalPart()) {
+                        case FS_OR_NAME:
+                            operation = BitwiseInputStream.Operation.OR;
+                            break;
+
+                        case FS_XOR_NAME:
+                            operation = BitwiseInputStream.Operation.XOR;
+                            break;
+
+                        default:
+                            operation = BitwiseInputStream.Operation.AND;
+                    }
+                    return bitwise(operation, a.get(), Optional.of(b.get()));
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
+            case FS_NOT_NAME:
+                final Optional<BinaryValue> in = getBinaryArg(args, 0);
+                if(in.isPresent()) {
+                    return bitwise(BitwiseInputStream.Operation.NOT, in.get(), Optional.empty());
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
+            case FS_SHIFT_NAME:
+                final Optional<BinaryValue> data = getBinaryArg(args, 0);
+                if(data.isPresent()) {
+                    return shift(data.get(), getIntegerArg(args, 1).orElse(BigInteger.ZERO));
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
+            default:
+                throw new XPathException(this, "No function: " + getName() + "#" + getSignature().getArgumentCount());
+        }
+    }
+
+    private BinaryValue bitwise(final BitwiseInputStream.Operation operation, final BinaryValue a, final Optional<BinaryValue> b) throws XPathException {
+        final Optional<Long> lengthA = getKnownLength(context, a);
+        final Optional<Long> lengthB = b.isPresent() ? getKnownLength(context, b.get()) : lengthA;
+
+        if(lengthA.isPresent() && lengthB.isPresent()) {
+            if(!lengthA.get().equals(lengthB.get())) {
+                throw new XPathException(this, ERROR_DIFFERENING_LENGTH_ARGUMENTS, "The lengths of $a: " + lengthA.get() + " and $b: " + lengthB.get() + " differ");
+            }
+
+            final SegmentedBinaryValue.Segment[] segmentsB = b.isPresent() ? getSegments(context, b.get()) : null;
+            final BitwiseBinarySource source = new BitwiseBinarySource(operation, getSegments(context, a), segmentsB, lengthA.get());
+            return newSegmentedBinary(context, Collections.singletonList(SegmentedBinaryValue.Segment.of(source)));
+        }
+
+        // the lengths can only be compared whilst reading the operands
+        final InputStream is;
+        try {
+            final InputStream isA = SegmentedBinaryValue.open(getSegments(context, a), 0);
+            final InputStream isB = b.isPresent() ? SegmentedBinaryValue.open(getSegments(context, b.get()), 0) : null;
+            is = new BitwiseInputStream(operation, isA, isB);
+        } catch(final IOException e) {
+            throw new XPathException(this, e);
+        }
+
+        // we don't need to close the stream, it will be closed by BinaryValueFromInputStream when it goes out of context
+        return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), is);
+    }
+
+    /**
+     * Shifts by whole octets through composition of a region of the data with
+     * zero padding, and then by any remaining bits as the data is read.
+     */
+    private BinaryValue shift(final BinaryValue data, final BigInteger by) throws XPathException {
+        final long len;
+        try {
+            len = getLength(context, data);
+        } catch(final IOException e) {
+            throw new XPathException(this, e);
+        }
+
+        if(by.signum() == 0 || len == 0) {
+            return data;
+        }
+
+        final BigInteger octets = by.abs().shiftRight(3);
+        if(octets.compareTo(BigInteger.valueOf(len)) >= 0) {
+            // every bit is shifted out
+            return newSegmentedBinary(context, Collections.singletonList(zeros(len)));
+        }
+
+        final long bytes = octets.longValue();
+        final int bits = by.abs().intValue() & 7;
+        final boolean left = by.signum() > 0;
+
+        final List<SegmentedBinaryValue.Segment> segments = new ArrayList<>();
+        if(left) {
+            for(final SegmentedBinaryValue.Segment segment : getSegments(context, data, bytes, len - bytes)) {
+                SegmentedBinaryValue.append(segments, segment);
+            }
+            SegmentedBinaryValue.append(segments, zeros(bytes));
+        } else {
+            SegmentedBinaryValue.append(segments, zeros(bytes));
+            for(final SegmentedBinaryValue.Segment segment : getSegments(context, data, 0, len - bytes)) {
+                SegmentedBinaryValue.append(segments, segment);
+            }
+        }
+
+        if(bits == 0) {
+            return newSegmentedBinary(context, segments);
+        }
+
+        final BitShiftBinarySource source = new BitShiftBinarySource(segments.toArray(new SegmentedBinaryValue.Segment[segments.size()]), len, bits, left);
+        return newSegmentedBinary(context, Collections.singletonList(SegmentedBinaryValue.Segment.of(source)));
+    }
+
+    private static SegmentedBinaryValue.Segment zeros(final long len) {
+        return SegmentedBinaryValue.Segment.of(new RepeatingByteBinarySource((byte)0, len));
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.NotThreadSafe;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathErrorProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.exist.xquery.modules.expath.bin.ExpathBinModule.ERROR_DIFFERENING_LENGTH_ARGUMENTS;
+
+/**
+ * Applies a bitwise operation to the octets of one or two
+ * input streams as they are read.
+ *
+ * The inputs are processed in fixed-size chunks, eight
+ * octets at a time through {@code long} views of the chunks.
+ */
+@NotThreadSafe
+public class BitwiseInputStream extends InputStream {
+
+    public static final int END_OF_STREAM = -1;
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    public enum Operation {
+        AND {
+            @Override
+            long apply(final long a, final long b) {
+                return a & b;
+            }
+        },
+        OR {
+            @Override
+            long apply(final long a, final long b) {
+                return a | b;
+            }
+        },
+        XOR {
+            @Override
+            long apply(final long a, final long b) {
+                return a ^ b;
+            }
+        },
+        NOT {
+            @Override
+            long apply(final long a, final long b) {
+                return ~a;
+            }
+        };
+
+        abstract long apply(long a, long b);
+    }
+
+    private final Operation operation;
+    private final InputStream a;
+    private final InputStream b;
+
+    private final byte[] chunkA = new byte[CHUNK_SIZE];
+    private final byte[] chunkB;
+    private final ByteBuffer bufA = ByteBuffer.wrap(chunkA);
+    private final ByteBuffer bufB;
+
+    private int chunkLen = 0;
+    private int chunkPos = 0;
+    private boolean end = false;
+
+    /**
+     * @param operation the bitwise operation
+     * @param a the first operand
+     * @param b the second operand, which must be the same length as the first,
+     *     or null for {@link Operation#NOT}
+     */
+    public BitwiseInputStream(final Operation operation, final InputStream a, final InputStream b) {
+        this.operation = operation;
+        this.a = a;
+        this.b = b;
+        if(b != null) {
+            this.chunkB = new byte[CHUNK_SIZE];
+            this.bufB = ByteBuffer.wrap(chunkB);
+        } else {
+            this.chunkB = null;
+            this.bufB = null;
+        }
+    }
+
+    /**
+     * Reads and combines the next chunk of the operands.
+     *
+     * @return false if the end of the operands was reached
+     */
+    private boolean nextChunk() throws IOException {
+        if(end) {
+            return false;
+        }
+
+        final int lenA = readFully(a, chunkA);
+        if(b != null) {
+            final int lenB = readFully(b, chunkB);
+            if(lenA != lenB || (lenA < CHUNK_SIZE && b.read() != END_OF_STREAM)) {
+                throw new DifferingLengthException("The operands of the bitwise operation are of differing length");
+            }
+        }
+
+        if(lenA < CHUNK_SIZE) {
+            end = true;
+        }
+
+        // eight octets at a time
+        final int words = lenA >>> 3;
+        if(b != null) {
+            for(int i = 0; i < words; i++) {
+                final int idx = i << 3;
+                bufA.putLong(idx, operation.apply(bufA.getLong(idx), bufB.getLong(idx)));
+            }
+        } else {
+            for(int i = 0; i < words; i++) {
+                final int idx = i << 3;
+                bufA.putLong(idx, operation.apply(bufA.getLong(idx), 0));
+            }
+        }
+
+        // then any remaining octets
+        for(int i = words << 3; i < lenA; i++) {
+            chunkA[i] = (byte)operation.apply(chunkA[i], b != null ? chunkB[i] : 0);
+        }
+
+        chunkLen = lenA;
+        chunkPos = 0;
+        return lenA > 0;
+    }
+
+    private static int readFully(final InputStream is, final byte[] buf) throws IOException {
+        int len = 0;
+        int read;
+        while(len < buf.length && (read = is.read(buf, len, buf.length - len)) != END_OF_STREAM) {
+            len += read;
+        }
+        return len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(chunkPos == chunkLen && !nextChunk()) {
+            return END_OF_STREAM;
+        }
+        return chunkA[chunkPos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buf, final int off, final int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(chunkPos == chunkLen && !nextChunk()) {
+            return END_OF_STREAM;
+        }
+        final int n = Math.min(len, chunkLen - chunkPos);
+        System.arraycopy(chunkA, chunkPos, buf, off, n);
+        chunkPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunkLen - chunkPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            a.close();
+        } finally {
+            if(b != null) {
+                b.close();
+            }
+        }
+    }
+
+    public static class DifferingLengthException extends IOException implements XPathErrorProvider {
+        public DifferingLengthException(final String message) {
+            super(message);
+        }
+
+        @Override
+        public ErrorCodes.ErrorCode getErrorCode() {
+            return ERROR_DIFFERENING_LENGTH_ARGUMENTS;
+        }
+    }
+}
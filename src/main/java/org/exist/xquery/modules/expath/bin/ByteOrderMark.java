@@ -0,0 +1,143 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * The byte order marks of the Unicode encodings,
+ * by which the encoding of text may be detected.
+ */
+public enum ByteOrderMark {
+
+    // UTF-32LE must be tried before UTF-16LE, of which its mark is a prefix
+    UTF_32BE(Charset.forName("UTF-32BE"), 0x00, 0x00, 0xFE, 0xFF),
+    UTF_32LE(Charset.forName("UTF-32LE"), 0xFF, 0xFE, 0x00, 0x00),
+    UTF_8(StandardCharsets.UTF_8, 0xEF, 0xBB, 0xBF),
+    UTF_16BE(StandardCharsets.UTF_16BE, 0xFE, 0xFF),
+    UTF_16LE(StandardCharsets.UTF_16LE, 0xFF, 0xFE);
+
+    /**
+     * The length of the longest byte order mark.
+     */
+    static final int MAX_LENGTH = 4;
+
+    private final Charset charset;
+    private final byte[] octets;
+
+    ByteOrderMark(final Charset charset, final int... octets) {
+        this.charset = charset;
+        this.octets = new byte[octets.length];
+        for(int i = 0; i < octets.length; i++) {
+            this.octets[i] = (byte)octets[i];
+        }
+    }
+
+    /**
+     * @return the charset which this byte order mark identifies
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return the number of octets in this byte order mark
+     */
+    public int length() {
+        return octets.length;
+    }
+
+    /**
+     * Detects a byte order mark at the start of some data.
+     *
+     * @param buf the data
+     * @param off the offset of the start of the data in {@code buf}
+     * @param len the length of the data
+     *
+     * @return the byte order mark, or empty if the data does not start with one
+     */
+    static Optional<ByteOrderMark> detect(final byte[] buf, final int off, final int len) {
+        return detect(buf, off, len, values());
+    }
+
+    /**
+     * Detects one of some byte order marks at the start of some data.
+     *
+     * @param buf the data
+     * @param off the offset of the start of the data in {@code buf}
+     * @param len the length of the data
+     * @param candidates the byte order marks to detect, in the order in which they are tried
+     *
+     * @return the byte order mark, or empty if the data does not start with one of the candidates
+     */
+    static Optional<ByteOrderMark> detect(final byte[] buf, final int off, final int len, final ByteOrderMark... candidates) {
+        for(final ByteOrderMark bom : candidates) {
+            if(bom.octets.length <= len && startsWith(buf, off, bom.octets)) {
+                return Optional.of(bom);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Reads a byte order mark from the start of a stream.
+     *
+     * If there is a byte order mark, the stream is left positioned after it,
+     * otherwise any octets that were examined are pushed back to the stream.
+     *
+     * @param in the stream, which must allow at least {@link #MAX_LENGTH} octets to be pushed back
+     * @param maxLength the number of octets in the data at the start of the stream,
+     *     or {@link CharsetDecodingReader#END_OF_STREAM} if the data extends to the end of the stream
+     *
+     * @return the byte order mark, or empty if the data does not start with one
+     */
+    static Optional<ByteOrderMark> read(final PushbackInputStream in, final long maxLength) throws IOException {
+        final int len = maxLength == CharsetDecodingReader.END_OF_STREAM ? MAX_LENGTH : (int)Math.min(MAX_LENGTH, maxLength);
+        final byte[] buf = new byte[len];
+        final int read = Utils.readFully(in, buf, 0, len);
+
+        final Optional<ByteOrderMark> bom = detect(buf, 0, read);
+        final int markLen = bom.map(ByteOrderMark::length).orElse(0);
+        if(read > markLen) {
+            in.unread(buf, markLen, read - markLen);
+        }
+        return bom;
+    }
+
+    private static boolean startsWith(final byte[] buf, final int off, final byte[] prefix) {
+        for(int i = 0; i < prefix.length; i++) {
+            if(buf[off + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled octet pattern with wildcards, as used by
+ * file-format and malware signatures.
+ *
+ * A pattern is written as a sequence of tokens, which may be separated by whitespace:
+ * <ul>
+ *     <li>{@code 4D} matches the octet 0x4D</li>
+ *     <li>{@code ??} matches any octet</li>
+ *     <li>{@code 4?} or {@code ?D} matches any octet whose high (or low) nibble is as given</li>
+ *     <li>{@code [4]} matches exactly 4 octets of any value</li>
+ *     <li>{@code [2-6]} matches between 2 and 6 (inclusive) octets of any value</li>
+ * </ul>
+ *
+ * For example {@code 4D 5A ?? ?? [0-64] 50 45}.
+ *
+ * Instances are immutable once compiled, and so may be reused
+ * for any number of searches.
+ */
+@ThreadSafe
+public class BytePattern {
+
+    /**
+     * The maximum number of octets that a pattern may span.
+     */
+    static final int MAX_PATTERN_LEN = 1024 * 1024;  // 1MB
+
+    public static final int NOT_FOUND = -1;
+
+    // the octets to match, already masked, and their masks
+    private final byte[] values;
+    private final byte[] masks;
+
+    // octets are grouped into runs which are separated by gaps,
+    // run i is values[runStarts[i], runStarts[i + 1])
+    private final int[] runStarts;
+    // the bounds of the gap which follows each run, except the last
+    private final int[] gapMins;
+    private final int[] gapMaxs;
+
+    private final int minLength;
+    private final int maxLength;
+
+    private BytePattern(final byte[] values, final byte[] masks, final int[] runStarts, final int[] gapMins, final int[] gapMaxs) {
+        this.values = values;
+        this.masks = masks;
+        this.runStarts = runStarts;
+        this.gapMins = gapMins;
+        this.gapMaxs = gapMaxs;
+
+        long min = values.length;
+        long max = values.length;
+        for(int i = 0; i < gapMins.length; i++) {
+            min += gapMins[i];
+            max += gapMaxs[i];
+        }
+        if(max > MAX_PATTERN_LEN) {
+            throw new IllegalArgumentException("pattern may span up to " + max + " octets, which is more than the maximum of " + MAX_PATTERN_LEN);
+        }
+        this.minLength = (int)min;
+        this.maxLength = (int)max;
+    }
+
+    /**
+     * Compiles a pattern.
+     *
+     * @param pattern The pattern
+     *
+     * @return the compiled pattern
+     *
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    public static BytePattern compile(final String pattern) {
+        final List<Byte> values = new ArrayList<>();
+        final List<Byte> masks = new ArrayList<>();
+        final List<Integer> runStarts = new ArrayList<>();
+        final List<Integer> gapMins = new ArrayList<>();
+        final List<Integer> gapMaxs = new ArrayList<>();
+
+        runStarts.add(0);
+        boolean inGap = false;
+        int i = 0;
+        while(i < pattern.length()) {
+            final char c = pattern.charAt(i);
+            if(Character.isWhitespace(c)) {
+                i++;
+
+            } else if(c == '[') {
+                final int end = pattern.indexOf(']', i);
+                if(end == -1) {
+                    throw new IllegalArgumentException("unterminated gap at: " + i);
+                }
+                if(values.isEmpty()) {
+                    throw new IllegalArgumentException("pattern must not start with a gap");
+                }
+                final String gap = pattern.substring(i + 1, end).trim();
+                final int sep = gap.indexOf('-');
+                final int min;
+                final int max;
+                try {
+                    if(sep == -1) {
+                        min = Integer.parseInt(gap);
+                        max = min;
+                    } else {
+                        min = Integer.parseInt(gap.substring(0, sep).trim());
+                        max = Integer.parseInt(gap.substring(sep + 1).trim());
+                    }
+                } catch(final NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid gap: [" + gap + "]");
+                }
+                if(min < 0 || max < min) {
+                    throw new IllegalArgumentException("invalid gap: [" + gap + "]");
+                }
+
+                if(inGap) {
+                    // adjacent gaps are combined
+                    final int last = gapMins.size() - 1;
+                    final long combinedMax = (long)gapMaxs.get(last) + max;
+                    if(combinedMax > MAX_PATTERN_LEN) {
+                        throw new IllegalArgumentException("gaps may span up to " + combinedMax + " octets, which is more than the maximum of " + MAX_PATTERN_LEN);
+                    }
+                    gapMins.set(last, gapMins.get(last) + min);
+                    gapMaxs.set(last, (int)combinedMax);
+                } else {
+                    if(max > MAX_PATTERN_LEN) {
+                        throw new IllegalArgumentException("gap may span up to " + max + " octets, which is more than the maximum of " + MAX_PATTERN_LEN);
+                    }
+                    gapMins.add(min);
+                    gapMaxs.add(max);
+                    inGap = true;
+                }
+                i = end + 1;
+
+            } else {
+                if(i + 1 >= pattern.length()) {
+                    throw new IllegalArgumentException("incomplete octet at: " + i);
+                }
+                final int hi = nibble(pattern.charAt(i));
+                final int lo = nibble(pattern.charAt(i + 1));
+                final int mask = (hi == -1 ? 0x00 : 0xF0) | (lo == -1 ? 0x00 : 0x0F);
+                final int value = ((hi == -1 ? 0 : hi) << 4) | (lo == -1 ? 0 : lo);
+
+                if(inGap) {
+                    runStarts.add(values.size());
+                    inGap = false;
+                }
+                values.add((byte)value);
+                masks.add((byte)mask);
+                i += 2;
+            }
+        }
+
+        if(values.isEmpty()) {
+            throw new IllegalArgumentException("pattern must contain at least one octet");
+        }
+        if(inGap) {
+            throw new IllegalArgumentException("pattern must not end with a gap");
+        }
+
+        final byte[] valuesArray = new byte[values.size()];
+        final byte[] masksArray = new byte[masks.size()];
+        for(int j = 0; j < valuesArray.length; j++) {
+            valuesArray[j] = values.get(j);
+            masksArray[j] = masks.get(j);
+        }
+        final int[] runStartsArray = new int[runStarts.size() + 1];
+        for(int j = 0; j < runStarts.size(); j++) {
+            runStartsArray[j] = runStarts.get(j);
+        }
+        runStartsArray[runStartsArray.length - 1] = valuesArray.length;
+
+        return new BytePattern(valuesArray, masksArray, runStartsArray, toIntArray(gapMins), toIntArray(gapMaxs));
+    }
+
+    private static int nibble(final char c) {
+        if(c == '?') {
+            return -1;
+        }
+        final int digit = Character.digit(c, 16);
+        if(digit == -1) {
+            throw new IllegalArgumentException("invalid character in pattern: " + c);
+        }
+        return digit;
+    }
+
+    private static int[] toIntArray(final List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for(int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @return the maximum number of octets that a match may span
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Determines if the pattern matches at an offset.
+     *
+     * @param data The data to match against
+     * @param offset The offset in {@code data} at which the match must start
+     * @param to The offset in {@code data} beyond which the match may not extend (exclusive)
+     *
+     * @return true if the pattern matches
+     */
+    public boolean matchesAt(final byte[] data, final int offset, final int to) {
+        if(!runMatchesAt(data, offset, to, 0)) {
+            return false;
+        }
+        if(gapMins.length == 0) {
+            return true;
+        }
+
+        // rather than backtracking through each length of each gap, the offsets at
+        // which each run may start are tracked as sorted, disjoint intervals [lo, hi],
+        // so that each offset is tried at most once for each run
+        int[] starts = { offset + runLength(0) + gapMins[0], offset + runLength(0) + gapMaxs[0] };
+        int startsCount = 1;
+        int[] next = new int[2];
+        for(int run = 1; ; run++) {
+            final int len = runLength(run);
+            final boolean lastRun = run == gapMins.length;
+
+            int nextCount = 0;
+            for(int i = 0; i < startsCount; i++) {
+                final int hi = Math.min(starts[2 * i + 1], to - len);
+                for(int start = starts[2 * i]; start <= hi; start++) {
+                    if(!runMatchesAt(data, start, to, run)) {
+                        continue;
+                    }
+                    if(lastRun) {
+                        return true;
+                    }
+
+                    // starts are ascending, so the intervals which follow them are too
+                    final int nextLo = start + len + gapMins[run];
+                    final int nextHi = start + len + gapMaxs[run];
+                    if(nextCount > 0 && nextLo <= next[2 * nextCount - 1] + 1) {
+                        next[2 * nextCount - 1] = nextHi;
+                    } else {
+                        if(2 * nextCount == next.length) {
+                            next = Arrays.copyOf(next, next.length * 2);
+                        }
+                        next[2 * nextCount] = nextLo;
+                        next[2 * nextCount + 1] = nextHi;
+                        nextCount++;
+                    }
+                }
+            }
+
+            if(nextCount == 0) {
+                return false;
+            }
+
+            final int[] tmp = starts;
+            starts = next;
+            startsCount = nextCount;
+            next = tmp;
+        }
+    }
+
+    private int runLength(final int run) {
+        return runStarts[run + 1] - runStarts[run];
+    }
+
+    private boolean runMatchesAt(final byte[] data, final int offset, final int to, final int run) {
+        final int start = runStarts[run];
+        final int len = runStarts[run + 1] - start;
+        if(offset + len > to) {
+            return false;
+        }
+
+        for(int i = 0; i < len; i++) {
+            if((data[offset + i] & masks[start + i]) != values[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the first match of the pattern in the remainder of a stream.
+     *
+     * The stream is read through a window which only retains enough
+     * of the previously read data to match the pattern across two reads,
+     * and reading stops as soon as a match is found.
+     *
+     * @param is The stream to search
+     * @param position The current position of the stream, which is
+     *     added to the offset of any match that is found
+     *
+     * @return the position of the first match, or {@link #NOT_FOUND}
+     */
+    public long indexOf(final InputStream is, final long position) throws IOException {
+        final byte[] buf = new byte[Math.max(ByteSearcher.DEFAULT_BUFFER_SIZE, maxLength * 2)];
+        final boolean exactFirst = masks[0] == (byte)0xFF;
+
+        // the position in the stream of buf[0]
+        long bufPosition = position;
+        int len = 0;
+        int searchFrom = 0;
+        boolean eof = false;
+        while(true) {
+            // matches may only be decided once enough data is available, or the stream is exhausted
+            final int searchTo = eof ? len - minLength : len - maxLength;
+            for(int i = searchFrom; i <= searchTo; i++) {
+                if((!exactFirst || buf[i] == values[0]) && matchesAt(buf, i, len)) {
+                    return bufPosition + i;
+                }
+            }
+
+            if(eof) {
+                return NOT_FOUND;
+            }
+            searchFrom = Math.max(searchFrom, searchTo + 1);
+
+            // retain the undecided tail of the window
+            final int retain = len - searchFrom;
+            System.arraycopy(buf, searchFrom, buf, 0, retain);
+            bufPosition += searchFrom;
+            len = retain;
+            searchFrom = 0;
+
+            // fill the buffer
+            while(len < buf.length) {
+                final int read = is.read(buf, len, buf.length - len);
+                if(read == -1) {
+                    eof = true;
+                    break;
+                }
+                len += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Finds occurrences of a fixed sequence of octets.
+ *
+ * The search algorithm is chosen from the length of the pattern:
+ * a plain scan for a single octet, Boyer-Moore-Horspool for
+ * short patterns, and Two-Way (Crochemore-Perrin) for longer
+ * patterns so that the worst case remains linear.
+ *
+ * Instances are immutable once compiled, and so may be reused
+ * for any number of searches.
+ */
+@ThreadSafe
+public abstract class ByteSearcher {
+
+    /**
+     * Patterns longer than this use the Two-Way algorithm.
+     */
+    static final int MAX_HORSPOOL_PATTERN_LEN = 64;
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;  // 64KB
+
+    public static final int NOT_FOUND = -1;
+
+    protected final byte[] pattern;
+
+    private ByteSearcher(final byte[] pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * Compiles a searcher for the pattern.
+     *
+     * @param pattern The octets to search for, must not be empty.
+     *     The array is not copied and must not be modified afterwards.
+     *
+     * @return a searcher for the pattern
+     */
+    public static ByteSearcher compile(final byte[] pattern) {
+        if(pattern.length == 0) {
+            throw new IllegalArgumentException("pattern must not be empty");
+        } else if(pattern.length == 1) {
+            return new SingleByteSearcher(pattern);
+        } else if(pattern.length <= MAX_HORSPOOL_PATTERN_LEN) {
+            return new HorspoolSearcher(pattern);
+        } else {
+            return new TwoWaySearcher(pattern);
+        }
+    }
+
+    /**
+     * @return the length of the pattern in octets
+     */
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * Finds the first occurrence of the pattern which lies
+     * entirely within {@code data[from, to)}.
+     *
+     * @param data The data to search
+     * @param from The offset in {@code data} to start searching from (inclusive)
+     * @param to The offset in {@code data} to search until (exclusive)
+     *
+     * @return the offset of the first occurrence, or {@link #NOT_FOUND}
+     */
+    public abstract int indexOf(final byte[] data, final int from, final int to);
+
+    /**
+     * Finds the first occurrence of the pattern in the remainder of a stream.
+     *
+     * @param is The stream to search
+     * @param position The current position of the stream, which is
+     *     added to the offset of any match that is found
+     *
+     * @return the position of the first occurrence, or {@link #NOT_FOUND}
+     */
+    public long indexOf(final InputStream is, final long position) throws IOException {
+        return matcher(is, position).find();
+    }
+
+    /**
+     * Creates a matcher which finds successive occurrences
+     * of the pattern in the remainder of a stream.
+     *
+     * @param is The stream to search
+     * @param position The current position of the stream, which is
+     *     added to the offset of any match that is found
+     *
+     * @return the matcher
+     */
+    public StreamMatcher matcher(final InputStream is, final long position) {
+        return new StreamMatcher(is, position);
+    }
+
+    /**
+     * Finds occurrences of the pattern in a stream.
+     *
+     * The stream is read through a window which only retains enough
+     * of the previously read data to match a pattern which spans two
+     * reads, and no more of the stream is read than is needed to find
+     * the next occurrence.
+     */
+    @NotThreadSafe
+    public class StreamMatcher {
+        private final InputStream is;
+        private final byte[] buf = new byte[Math.max(DEFAULT_BUFFER_SIZE, pattern.length * 2)];
+
+        // the position in the stream of buf[0]
+        private long bufPosition;
+        private int len = 0;
+        private int searchFrom = 0;
+        private boolean eof = false;
+
+        private StreamMatcher(final InputStream is, final long position) {
+            this.is = is;
+            this.bufPosition = position;
+        }
+
+        /**
+         * Finds the next occurrence of the pattern, occurrences may overlap.
+         *
+         * @return the position of the next occurrence, or {@link #NOT_FOUND}
+         */
+        public long find() throws IOException {
+            final int m = pattern.length;
+            while(true) {
+                if(searchFrom + m <= len) {
+                    final int found = indexOf(buf, searchFrom, len);
+                    if(found != NOT_FOUND) {
+                        searchFrom = found + 1;
+                        return bufPosition + found;
+                    }
+                }
+
+                if(eof) {
+                    return NOT_FOUND;
+                }
+
+                // retain the tail of the window, as it may be the start of a match
+                final int retainFrom = Math.max(searchFrom, Math.max(0, len - (m - 1)));
+                final int retain = len - retainFrom;
+                System.arraycopy(buf, retainFrom, buf, 0, retain);
+                bufPosition += retainFrom;
+                len = retain;
+                searchFrom = 0;
+
+                // fill the buffer
+                while(len < buf.length) {
+                    final int read = is.read(buf, len, buf.length - len);
+                    if(read == -1) {
+                        eof = true;
+                        break;
+                    }
+                    len += read;
+                }
+            }
+        }
+    }
+
+    private static class SingleByteSearcher extends ByteSearcher {
+        private final byte b;
+
+        private SingleByteSearcher(final byte[] pattern) {
+            super(pattern);
+            this.b = pattern[0];
+        }
+
+        @Override
+        public int indexOf(final byte[] data, final int from, final int to) {
+            for(int i = from; i < to; i++) {
+                if(data[i] == b) {
+                    return i;
+                }
+            }
+            return NOT_FOUND;
+        }
+    }
+
+    private static class HorspoolSearcher extends ByteSearcher {
+        private final int[] skip = new int[256];
+
+        private HorspoolSearcher(final byte[] pattern) {
+            super(pattern);
+            final int m = pattern.length;
+            for(int i = 0; i < skip.length; i++) {
+                skip[i] = m;
+            }
+            for(int i = 0; i < m - 1; i++) {
+                skip[pattern[i] & 0xff] = m - 1 - i;
+            }
+        }
+
+        @Override
+        public int indexOf(final byte[] data, final int from, final int to) {
+            final int m = pattern.length;
+            final byte last = pattern[m - 1];
+            for(int j = from; j <= to - m; ) {
+                final byte c = data[j + m - 1];
+                if(c == last && matchesAt(data, j, m - 1)) {
+                    return j;
+                }
+                j += skip[c & 0xff];
+            }
+            return NOT_FOUND;
+        }
+
+        private boolean matchesAt(final byte[] data, final int offset, final int len) {
+            for(int i = 0; i < len; i++) {
+                if(data[offset + i] != pattern[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Two-Way string matching, see Crochemore and Perrin,
+     * "Two-way string-matching", Journal of the ACM 38(3), 1991.
+     */
+    private static class TwoWaySearcher extends ByteSearcher {
+        // the critical factorization of the pattern: x = x[0..ell] x[ell+1..]
+        private final int ell;
+        private final int period;
+        private final boolean periodic;
+
+        private TwoWaySearcher(final byte[] pattern) {
+            super(pattern);
+            final int m = pattern.length;
+
+            final int[] suffix = maxSuffix(pattern, false);
+            final int[] suffixTilde = maxSuffix(pattern, true);
+            final int p;
+            if(suffix[0] > suffixTilde[0]) {
+                this.ell = suffix[0];
+                p = suffix[1];
+            } else {
+                this.ell = suffixTilde[0];
+                p = suffixTilde[1];
+            }
+
+            if(ell + 1 + p <= m && regionEquals(pattern, 0, p, ell + 1)) {
+                this.periodic = true;
+                this.period = p;
+            } else {
+                this.periodic = false;
+                this.period = Math.max(ell + 1, m - ell - 1) + 1;
+            }
+        }
+
+        @Override
+        public int indexOf(final byte[] data, final int from, final int to) {
+            final int m = pattern.length;
+            int j = from;
+
+            if(periodic) {
+                int memory = -1;
+                while(j <= to - m) {
+                    int i = Math.max(ell, memory) + 1;
+                    while(i < m && pattern[i] == data[i + j]) {
+                        i++;
+                    }
+                    if(i >= m) {
+                        i = ell;
+                        while(i > memory && pattern[i] == data[i + j]) {
+                            i--;
+                        }
+                        if(i <= memory) {
+                            return j;
+                        }
+                        j += period;
+                        memory = m - period - 1;
+                    } else {
+                        j += i - ell;
+                        memory = -1;
+                    }
+                }
+            } else {
+                while(j <= to - m) {
+                    int i = ell + 1;
+                    while(i < m && pattern[i] == data[i + j]) {
+                        i++;
+                    }
+                    if(i >= m) {
+                        i = ell;
+                        while(i >= 0 && pattern[i] == data[i + j]) {
+                            i--;
+                        }
+                        if(i < 0) {
+                            return j;
+                        }
+                        j += period;
+                    } else {
+                        j += i - ell;
+                    }
+                }
+            }
+
+            return NOT_FOUND;
+        }
+
+        /**
+         * Computes the maximal suffix of {@code x}.
+         *
+         * @param x The pattern
+         * @param reversed true to use the reversed ordering of octets
+         *
+         * @return an array of the position preceding the maximal suffix, and its period
+         */
+        private static int[] maxSuffix(final byte[] x, final boolean reversed) {
+            int ms = -1;
+            int j = 0;
+            int k = 1;
+            int p = 1;
+            while(j + k < x.length) {
+                final int a = x[j + k] & 0xff;
+                final int b = x[ms + k] & 0xff;
+                if(reversed ? a > b : a < b) {
+                    j += k;
+                    k = 1;
+                    p = j - ms;
+                } else if(a == b) {
+                    if(k != p) {
+                        k++;
+                    } else {
+                        j += p;
+                        k = 1;
+                    }
+                } else {
+                    ms = j;
+                    j = ms + 1;
+                    k = 1;
+                    p = 1;
+                }
+            }
+            return new int[] { ms, p };
+        }
+
+        private static boolean regionEquals(final byte[] x, final int offset1, final int offset2, final int len) {
+            for(int i = 0; i < len; i++) {
+                if(x[offset1 + i] != x[offset2 + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
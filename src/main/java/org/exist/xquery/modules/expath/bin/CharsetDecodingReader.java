@@ -0,0 +1,260 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Decodes characters from an input stream, feeding
+ * a single buffer of octets through a {@link CharsetDecoder}
+ * directly into the caller's buffer.
+ */
+@NotThreadSafe
+public class CharsetDecodingReader extends Reader {
+
+    public static final int END_OF_STREAM = -1;
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // large enough for any partial multi-octet sequence left over between reads
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    private final InputStream in;
+    private final CharsetDecoder decoder;
+    private final boolean bounded;
+    private long remaining;
+
+    // the position of the start of the input stream within the data, and the number of octets read from it
+    private final long startPosition;
+    private long octetsRead = 0;
+
+    private final ByteBuffer octets;
+    private boolean endOfInput = false;
+    private boolean decodedEnd = false;
+    private boolean flushed = false;
+
+    // holds the second half of a surrogate pair when reading a single character
+    private final char[] pair = new char[2];
+    private int pendingChar = END_OF_STREAM;
+
+    /**
+     * @param in the input stream to decode
+     * @param decoder the decoder, which must be in its initial state
+     * @param maxLength the number of octets to decode, or {@link #END_OF_STREAM}
+     *     to decode to the end of the stream
+     */
+    public CharsetDecodingReader(final InputStream in, final CharsetDecoder decoder, final long maxLength) {
+        this(in, decoder, maxLength, 0);
+    }
+
+    /**
+     * @param in the input stream to decode
+     * @param decoder the decoder, which must be in its initial state
+     * @param maxLength the number of octets to decode, or {@link #END_OF_STREAM}
+     *     to decode to the end of the stream
+     * @param startPosition the position of the start of the input stream
+     *     within the data, see {@link #getPosition()}
+     */
+    public CharsetDecodingReader(final InputStream in, final CharsetDecoder decoder, final long maxLength, final long startPosition) {
+        this.in = in;
+        this.startPosition = startPosition;
+        this.decoder = decoder;
+        this.bounded = maxLength != END_OF_STREAM;
+        this.remaining = bounded ? maxLength : Long.MAX_VALUE;
+        this.octets = ByteBuffer.allocate((int)Math.max(MIN_BUFFER_SIZE, Math.min(BUFFER_SIZE, remaining)));
+        this.octets.flip();
+    }
+
+    /**
+     * @return the decoder which this reader decodes with
+     */
+    CharsetDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Gets the position in the data of the octet which follows
+     * those that were decoded into the characters read so far.
+     *
+     * Only whole characters are decoded, so the position is exact,
+     * unless a surrogate pair was split by reading a single character,
+     * in which case it follows the whole pair.
+     *
+     * @return the position
+     */
+    long getPosition() {
+        return startPosition + octetsRead - octets.remaining();
+    }
+
+    /**
+     * Reads characters without splitting a surrogate pair,
+     * so that {@link #getPosition()} is exact afterwards.
+     *
+     * @param cbuf the buffer to read into
+     * @param off the offset in the buffer to read into
+     * @param len the maximum number of characters to read
+     *
+     * @return the number of characters read, which is 0 if {@code len} is 1 and
+     *     the next character is a surrogate pair, or {@link #END_OF_STREAM}
+     */
+    int readWhole(final char[] cbuf, final int off, final int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(pendingChar != END_OF_STREAM) {
+            cbuf[off] = (char)pendingChar;
+            pendingChar = END_OF_STREAM;
+            return 1;
+        }
+        return decode(cbuf, off, len);
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+
+        int n = 0;
+        if(pendingChar != END_OF_STREAM) {
+            cbuf[off] = (char)pendingChar;
+            pendingChar = END_OF_STREAM;
+            n = 1;
+        }
+
+        if(len - n == 1) {
+            // a single character may be half of a surrogate pair, which can only be decoded whole
+            final int read = decode(pair, 0, 2);
+            if(read == END_OF_STREAM) {
+                return n == 0 ? END_OF_STREAM : n;
+            }
+            cbuf[off + n] = pair[0];
+            if(read == 2) {
+                pendingChar = pair[1];
+            }
+            return n + 1;
+
+        } else if(len - n > 1) {
+            final int read = decode(cbuf, off + n, len - n);
+            if(read == END_OF_STREAM) {
+                return n == 0 ? END_OF_STREAM : n;
+            }
+            return n + read;
+        }
+
+        return n;
+    }
+
+    /**
+     * Decodes at least one character, unless the end of the input is reached
+     * or there is too little room for the next character.
+     *
+     * @param cbuf the buffer to decode into
+     * @param off the offset in the buffer to decode into
+     * @param len the maximum number of characters to decode, which if 1 may
+     *     be too few to decode a surrogate pair
+     *
+     * @return the number of characters decoded, which is only 0 if {@code len}
+     *     is too few for the next character, or {@link #END_OF_STREAM}
+     */
+    private int decode(final char[] cbuf, final int off, final int len) throws IOException {
+        final CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while(true) {
+            final CoderResult result;
+            if(!endOfInput) {
+                result = decoder.decode(octets, out, false);
+            } else if(!decodedEnd) {
+                result = decoder.decode(octets, out, true);
+                if(result.isUnderflow()) {
+                    decodedEnd = true;
+                }
+            } else if(!flushed) {
+                result = decoder.flush(out);
+                if(result.isUnderflow()) {
+                    flushed = true;
+                }
+            } else {
+                break;
+            }
+
+            if(result.isError()) {
+                result.throwException();
+            }
+
+            if(result.isOverflow() || out.position() > off) {
+                // return what has been decoded, rather than reading more input
+                break;
+            }
+
+            if(result.isUnderflow() && !endOfInput) {
+                fill();
+            }
+        }
+
+        final int decoded = out.position() - off;
+        return decoded == 0 && flushed ? END_OF_STREAM : decoded;
+    }
+
+    /**
+     * Reads more octets from the input stream into the buffer.
+     */
+    private void fill() throws IOException {
+        octets.compact();
+        try {
+            final int max = (int)Math.min(octets.remaining(), remaining);
+            final int read = max == 0 ? END_OF_STREAM : in.read(octets.array(), octets.arrayOffset() + octets.position(), max);
+            if(read == END_OF_STREAM) {
+                if(bounded && remaining > 0) {
+                    throw new RegionFilterInputStream.IndexOutOfRangeException("Reached end of stream before end of region");
+                }
+                endOfInput = true;
+            } else {
+                octets.position(octets.position() + read);
+                octetsRead += read;
+                remaining -= read;
+                if(remaining == 0) {
+                    endOfInput = true;
+                }
+            }
+        } finally {
+            octets.flip();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -216,11 +216,10 @@ public class ConversionFunctions extends BasicFunction {
     private BinaryValue fromOctets(final BigInteger[] octets) throws XPathException {
         final byte data[] = new byte[octets.length];
         for(int i = 0; i < octets.length; i++) {
-            final int octet = octets[i].intValue();
-            if(octet < 0 || octet > 255) {
+            if(octets[i].signum() < 0 || octets[i].bitLength() > 8) {
                 throw new XPathException(this, ERROR_OCTET_OUT_OF_RANGE, "octet at index " + i + " is out of range");
             }
-            data[i] = (byte)(octet & 0xff);
+            data[i] = (byte)(octets[i].intValue() & 0xff);
         }
         return newInMemoryBinary(context, data);
     }
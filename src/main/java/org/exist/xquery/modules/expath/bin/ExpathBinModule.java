@@ -31,8 +31,11 @@ import org.exist.xquery.*;
 import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.FunctionReturnSequenceType;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 import static org.exist.xquery.FunctionDSL.functionDefs;
 
@@ -67,7 +70,13 @@ public class ExpathBinModule extends AbstractInternalModule {
                     BasicFunctions.FS_PAD_LEFT[1],
                     BasicFunctions.FS_PAD_RIGHT[0],
                     BasicFunctions.FS_PAD_RIGHT[1],
-                    BasicFunctions.FS_FIND),
+                    BasicFunctions.FS_FIND,
+                    BasicFunctions.FS_FIND_ALL[0],
+                    BasicFunctions.FS_FIND_ALL[1],
+                    BasicFunctions.FS_FIND_ANY[0],
+                    BasicFunctions.FS_FIND_ANY[1],
+                    BasicFunctions.FS_FIND_PATTERN,
+                    BasicFunctions.FS_MATCH),
 
             functionDefs(TextCodingFunctions.class,
                     TextCodingFunctions.FS_DECODE_STRING[0],
@@ -75,13 +84,165 @@ public class ExpathBinModule extends AbstractInternalModule {
                     TextCodingFunctions.FS_DECODE_STRING[2],
                     TextCodingFunctions.FS_DECODE_STRING[3],
                     TextCodingFunctions.FS_ENCODE_STRING[0],
-                    TextCodingFunctions.FS_ENCODE_STRING[1])
+                    TextCodingFunctions.FS_ENCODE_STRING[1],
+                    TextCodingFunctions.FS_DECODE_LINES[0],
+                    TextCodingFunctions.FS_DECODE_LINES[1],
+                    TextCodingFunctions.FS_DECODE_RECORDS[0],
+                    TextCodingFunctions.FS_DECODE_RECORDS[1],
+                    TextCodingFunctions.FS_DECODE_STRING_CHUNKS[0],
+                    TextCodingFunctions.FS_DECODE_STRING_CHUNKS[1],
+                    TextCodingFunctions.FS_DECODE_LINES_PAGE,
+                    TextCodingFunctions.FS_DECODE_RECORDS_PAGE,
+                    TextCodingFunctions.FS_DECODE_STRING_CHUNKS_PAGE),
+
+            functionDefs(BitwiseFunctions.class,
+                    BitwiseFunctions.FS_OR,
+                    BitwiseFunctions.FS_XOR,
+                    BitwiseFunctions.FS_AND,
+                    BitwiseFunctions.FS_NOT,
+                    BitwiseFunctions.FS_SHIFT),
+
+            functionDefs(NumericFunctions.class,
+                    NumericFunctions.FS_PACK_DOUBLE[0],
+                    NumericFunctions.FS_PACK_DOUBLE[1],
+                    NumericFunctions.FS_PACK_FLOAT[0],
+                    NumericFunctions.FS_PACK_FLOAT[1],
+                    NumericFunctions.FS_PACK_INTEGER[0],
+                    NumericFunctions.FS_PACK_INTEGER[1],
+                    NumericFunctions.FS_PACK_DOUBLES[0],
+                    NumericFunctions.FS_PACK_DOUBLES[1],
+                    NumericFunctions.FS_PACK_FLOATS[0],
+                    NumericFunctions.FS_PACK_FLOATS[1],
+                    NumericFunctions.FS_PACK_INTEGERS[0],
+                    NumericFunctions.FS_PACK_INTEGERS[1],
+                    NumericFunctions.FS_UNPACK_DOUBLE[0],
+                    NumericFunctions.FS_UNPACK_DOUBLE[1],
+                    NumericFunctions.FS_UNPACK_FLOAT[0],
+                    NumericFunctions.FS_UNPACK_FLOAT[1],
+                    NumericFunctions.FS_UNPACK_INTEGER[0],
+                    NumericFunctions.FS_UNPACK_INTEGER[1],
+                    NumericFunctions.FS_UNPACK_UNSIGNED_INTEGER[0],
+                    NumericFunctions.FS_UNPACK_UNSIGNED_INTEGER[1],
+                    NumericFunctions.FS_UNPACK_DOUBLES[0],
+                    NumericFunctions.FS_UNPACK_DOUBLES[1],
+                    NumericFunctions.FS_UNPACK_FLOATS[0],
+                    NumericFunctions.FS_UNPACK_FLOATS[1],
+                    NumericFunctions.FS_UNPACK_INTEGERS[0],
+                    NumericFunctions.FS_UNPACK_INTEGERS[1],
+                    NumericFunctions.FS_UNPACK_UNSIGNED_INTEGERS[0],
+                    NumericFunctions.FS_UNPACK_UNSIGNED_INTEGERS[1],
+                    NumericFunctions.FS_UNPACK_RECORD)
     );
 
+    private static final int SEARCHER_CACHE_SIZE = 32;
+
+    // compiled search patterns, reused whilst the module is loaded into a query
+    private final Map<ByteBuffer, ByteSearcher> searchers = new LruCache<>(SEARCHER_CACHE_SIZE);
+    private final Map<List<ByteBuffer>, MultiByteSearcher> multiSearchers = new LruCache<>(SEARCHER_CACHE_SIZE);
+    private final Map<String, BytePattern> patterns = new LruCache<>(SEARCHER_CACHE_SIZE);
+
+    private static final int RECORD_LAYOUT_CACHE_SIZE = 64;
+
+    // compiled record layouts, reused whilst the module is loaded into a query
+    private final Map<String, RecordLayout> recordLayouts = new LruCache<>(RECORD_LAYOUT_CACHE_SIZE);
+
+    // configured from the module parameters when first needed, and shut down when the module is reset
+    private boolean readAheadConfigured = false;
+    private ReadAhead readAhead = null;
+
     public ExpathBinModule(final Map<String, List<? extends Object>> parameters) {
         super(functions, parameters);
     }
 
+    /**
+     * Gets the configuration for reading ahead through
+     * the segments of binary values.
+     *
+     * @return the read-ahead configuration, or empty if
+     *     read-ahead is not enabled
+     */
+    synchronized Optional<ReadAhead> getReadAhead() {
+        if(!readAheadConfigured) {
+            readAhead = ReadAhead.configure(this);
+            readAheadConfigured = true;
+        }
+        return Optional.ofNullable(readAhead);
+    }
+
+    /**
+     * Stops the threads which read ahead for the query, once it has
+     * finished, so that they do not outlive the query which the
+     * module is loaded into. They are started again if the query
+     * is run again.
+     */
+    @Override
+    public void reset(final XQueryContext xqueryContext, final boolean keepGlobals) {
+        super.reset(xqueryContext, keepGlobals);
+        synchronized(this) {
+            if(readAhead != null) {
+                readAhead.shutdown();
+                readAhead = null;
+            }
+            readAheadConfigured = false;
+        }
+    }
+
+    /**
+     * Gets a searcher for the pattern, compiling it if
+     * it has not been recently used.
+     *
+     * @param pattern The octets to search for
+     *
+     * @return the searcher
+     */
+    synchronized ByteSearcher getSearcher(final byte[] pattern) {
+        return searchers.computeIfAbsent(ByteBuffer.wrap(pattern), key -> ByteSearcher.compile(pattern));
+    }
+
+    /**
+     * Gets a searcher for the patterns, compiling it if
+     * the same patterns have not been recently used.
+     *
+     * @param patterns The octets to search for
+     *
+     * @return the searcher
+     */
+    synchronized MultiByteSearcher getMultiSearcher(final byte[][] patterns) {
+        final List<ByteBuffer> key = new ArrayList<>(patterns.length);
+        for(final byte[] pattern : patterns) {
+            key.add(ByteBuffer.wrap(pattern));
+        }
+        return multiSearchers.computeIfAbsent(key, k -> MultiByteSearcher.compile(patterns));
+    }
+
+    /**
+     * Gets a compiled octet pattern, compiling it if
+     * it has not been recently used.
+     *
+     * @param pattern The pattern, see {@link BytePattern}
+     *
+     * @return the compiled pattern
+     *
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    synchronized BytePattern getPattern(final String pattern) {
+        return patterns.computeIfAbsent(pattern, BytePattern::compile);
+    }
+
+    /**
+     * Gets a compiled record layout, compiling it if
+     * it has not been recently used.
+     *
+     * @param layout The layout, see {@link RecordLayout}
+     *
+     * @return the compiled layout
+     *
+     * @throws IllegalArgumentException if the layout is not valid
+     */
+    synchronized RecordLayout getRecordLayout(final String layout) {
+        return recordLayouts.computeIfAbsent(layout, RecordLayout::compile);
+    }
+
     @Override
     public String getNamespaceURI() {
         return NAMESPACE_URI;
@@ -124,4 +285,6 @@ public class ExpathBinModule extends AbstractInternalModule {
     static final ErrorCodes.ErrorCode ERROR_UNKNOWN_ENCODING = new ExpathBinModuleErrorCode("unknown-encoding", "The specified encoding is not supported.");
     static final ErrorCodes.ErrorCode ERROR_CONVERSION_ERROR = new ExpathBinModuleErrorCode("conversion-error", "Error in converting to/from a string.");
     static final ErrorCodes.ErrorCode ERROR_UNKNOWN_SIGNIFICANCE_ORDER = new ExpathBinModuleErrorCode("unknown-significance-order", "Unknown octet-order value.");
+    static final ErrorCodes.ErrorCode ERROR_INVALID_PATTERN = new ExpathBinModuleErrorCode("invalid-pattern", "The octet pattern is not valid.");
+    static final ErrorCodes.ErrorCode ERROR_INVALID_LAYOUT = new ExpathBinModuleErrorCode("invalid-layout", "The record layout is not valid.");
 }
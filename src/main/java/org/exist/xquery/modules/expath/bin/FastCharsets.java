@@ -0,0 +1,109 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import java.nio.charset.Charset;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Fast paths for the common charsets, in which
+ * characters may be copied directly to octets.
+ */
+public class FastCharsets {
+
+    static final int NO_DIRECT_CHARS = -1;
+
+    // from Java 9 strings of these charsets are stored compactly, and already encoded without a decoder
+    static final boolean CHAR_ARRAY_STRINGS = "1.8".equals(System.getProperty("java.specification.version"));
+
+    /**
+     * Determines which characters a charset
+     * encodes as a single octet of the same value.
+     *
+     * @param charset the charset
+     *
+     * @return the highest such character, that is 0x7F for US-ASCII
+     *     and UTF-8 or 0xFF for ISO-8859-1, otherwise {@link #NO_DIRECT_CHARS}
+     */
+    static int maxDirectChar(final Charset charset) {
+        if(charset.equals(UTF_8) || charset.equals(US_ASCII)) {
+            return 0x7F;
+        } else if(charset.equals(ISO_8859_1)) {
+            return 0xFF;
+        } else {
+            return NO_DIRECT_CHARS;
+        }
+    }
+
+    /**
+     * Encodes a string, copying the characters directly
+     * if the charset encodes each of them as a single octet.
+     *
+     * This avoids the encoder, and its worst-case sized
+     * intermediate buffer, of {@link String#getBytes(Charset)} on Java 8.
+     *
+     * @param string the string to encode
+     * @param charset the charset to encode with
+     *
+     * @return the encoded string
+     */
+    static byte[] encode(final String string, final Charset charset) {
+        return encode(string, charset, CHAR_ARRAY_STRINGS);
+    }
+
+    /**
+     * Encodes a string, copying the characters directly if so
+     * requested and the charset encodes each of them as a single octet.
+     *
+     * @param string the string to encode
+     * @param charset the charset to encode with
+     * @param copyDirect true to copy the characters directly, which is only
+     *     faster when strings are stored as arrays of characters, as on Java 8
+     *
+     * @return the encoded string
+     */
+    static byte[] encode(final String string, final Charset charset, final boolean copyDirect) {
+        final int maxDirectChar = maxDirectChar(charset);
+        if(maxDirectChar == NO_DIRECT_CHARS || !copyDirect) {
+            return string.getBytes(charset);
+        }
+
+        final int len = string.length();
+        final byte[] octets = new byte[len];
+        for(int i = 0; i < len; i++) {
+            final char c = string.charAt(i);
+            if(c > maxDirectChar) {
+                return string.getBytes(charset);
+            }
+            octets[i] = (byte)c;
+        }
+        return octets;
+    }
+}
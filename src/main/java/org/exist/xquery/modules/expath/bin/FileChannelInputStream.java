@@ -0,0 +1,133 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An input stream over a {@link FileChannel}, which transfers
+ * data using {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ */
+@NotThreadSafe
+public class FileChannelInputStream extends InputStream implements TransferableInputStream {
+
+    public static final int END_OF_STREAM = -1;
+
+    private final FileChannel channel;
+    private final long size;
+    private long position;
+
+    /**
+     * @param channel the channel to read from, which is closed when this stream is closed
+     * @param position the position within the channel to start reading from
+     */
+    public FileChannelInputStream(final FileChannel channel, final long position) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int read = read(b, 0, 1);
+        return read == END_OF_STREAM ? END_OF_STREAM : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        final int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+        if(read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) {
+        final long skipped = Math.max(0, Math.min(n, size - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int)Math.max(0, Math.min(size - position, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Transfers all of the remaining data.
+     *
+     * @param out the destination for the data
+     *
+     * @return the number of octets transferred
+     */
+    public long transferTo(final OutputStream out) throws IOException {
+        return transferTo(out, Long.MAX_VALUE);
+    }
+
+    @Override
+    public long transferTo(final OutputStream out, final long maxLength) throws IOException {
+        if(out instanceof FileOutputStream) {
+            return transferTo(((FileOutputStream)out).getChannel(), maxLength);
+        } else {
+            return transferTo(Channels.newChannel(out), maxLength);
+        }
+    }
+
+    @Override
+    public long transferTo(final WritableByteChannel target, final long maxLength) throws IOException {
+        final long count = Math.max(0, Math.min(maxLength, size - position));
+        long transferred = 0;
+        while(transferred < count) {
+            final long n = channel.transferTo(position, count - transferred, target);
+            if(n <= 0) {
+                break;
+            }
+            position += n;
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -31,119 +31,258 @@ import org.exist.util.io.CachingFilterInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 /**
+ * Joins input streams end to end.
+ *
+ * Each input stream is only opened when the read position reaches it,
+ * and is closed once it has been drained, so that only one of the input
+ * streams is open at a time regardless of how many are joined.
+ *
  * @author <a href="mailto:adam@evolvedbinary.com">Adam Retter</a>
  */
-public class JoinFilterInputStream extends FilterInputStream {
+public class JoinFilterInputStream extends FilterInputStream implements TransferableInputStream {
 
     public static final int END_OF_STREAM = -1;
 
-    private final InputStream[] ins;
+    /**
+     * Opens an input stream.
+     */
+    @FunctionalInterface
+    public interface InputStreamSupplier {
+        InputStream get() throws IOException;
+    }
+
+    private final InputStreamSupplier[] suppliers;
+    // input streams which were opened before being joined, or null
+    private final InputStream[] opened;
     private int insIdx = 0;
+    private boolean closed = false;
 
+    /**
+     * @param ins The input streams to join, which are already open
+     */
     public JoinFilterInputStream(final InputStream[] ins) {
-        super(ins[0]);
-        this.ins = ins;
-        for(final InputStream in : ins) {
+        super(null);
+        this.suppliers = new InputStreamSupplier[ins.length];
+        this.opened = ins;
+        for(int i = 0; i < ins.length; i++) {
+            final InputStream in = ins[i];
             if (in instanceof CachingFilterInputStream) {
                 ((CachingFilterInputStream) in).incrementSharedReferences();
             }
+            suppliers[i] = () -> in;
+        }
+    }
+
+    /**
+     * @param suppliers Suppliers of the input streams to join,
+     *     each of which is called when the read position reaches it
+     */
+    public JoinFilterInputStream(final InputStreamSupplier[] suppliers) {
+        super(null);
+        this.suppliers = suppliers;
+        this.opened = null;
+    }
+
+    /**
+     * Gets the current input stream, opening it if needed.
+     *
+     * @return the current input stream, or null if there are no input streams
+     */
+    private InputStream current() throws IOException {
+        if(in == null && insIdx < suppliers.length) {
+            if(closed) {
+                throw new IOException("Stream closed");
+            }
+            in = suppliers[insIdx].get();
+        }
+        return in;
+    }
+
+    /**
+     * Closes the current input stream and moves to the next.
+     *
+     * @return false if there is no next input stream
+     */
+    private boolean next() throws IOException {
+        if(insIdx + 1 >= suppliers.length) {
+            return false;
+        }
+
+        final InputStream drained = in;
+        in = null;
+        insIdx++;
+        if(drained != null) {
+            drained.close();
         }
+        return true;
     }
 
     @Override
     public int read() throws IOException {
-        final int data = ins[insIdx].read();
-        if(data == END_OF_STREAM) {
+        InputStream current;
+        while((current = current()) != null) {
+            final int data = current.read();
+            if(data != END_OF_STREAM) {
+                return data;
+            }
+
             // can we move to the next input stream?
-            if(insIdx + 1 < ins.length) {
-                // read from the next input stream
-                insIdx++;
-                return read();
+            if(!next()) {
+                break;
             }
-            return END_OF_STREAM;
-        } else {
-            return data;
         }
+        return END_OF_STREAM;
     }
 
     @Override
     public int read(final byte[] b, final int off, final int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
 
-        int remainingLen = len;
         int totalRead = 0;
-        int writeOffset = off;
-
-        while(remainingLen > 0) {
-            final int read = ins[insIdx].read(b, writeOffset, remainingLen);
+        InputStream current;
+        while(totalRead < len && (current = current()) != null) {
+            final int read = current.read(b, off + totalRead, len - totalRead);
             if(read == END_OF_STREAM) {
                 // can we move to the next input stream?
-                if(insIdx + 1 < ins.length) {
-                    // move to the next input stream
-                    insIdx++;
-                } else {
-                    return totalRead == 0 ? END_OF_STREAM : totalRead;
-                }
-            } else if(read < remainingLen) {
-                totalRead += read;
-                // can we move to the next input stream?
-                if(insIdx + 1 < ins.length) {
-                    // move to the next input stream
-                    insIdx++;
-                    writeOffset += read;
-                    remainingLen -= read;
-                } else {
-                    return totalRead;
+                if(!next()) {
+                    break;
                 }
             } else {
-                // we read exactly the amount we were meant to
                 totalRead += read;
-                remainingLen -= read;
             }
         }
 
-        return totalRead;
+        return totalRead == 0 ? END_OF_STREAM : totalRead;
     }
 
     @Override
     public long skip(final long n) throws IOException {
-        int skipped = 0;
-        while(skipped < n) {
-            final long inSkip = ins[insIdx].skip(n - skipped);
-            if(inSkip <= 0) {
-                // can we move to the next input stream?
-                if(insIdx + 1 < ins.length) {
-                    // move to the next input stream
-                    insIdx++;
-                } else {
-                    // END of input streams
-                    break;
-                }
-            } else {
+        long skipped = 0;
+        InputStream current;
+        while(skipped < n && (current = current()) != null) {
+            final long inSkip = current.skip(n - skipped);
+            if(inSkip > 0) {
                 skipped += inSkip;
+            } else if(current.read() != END_OF_STREAM) {
+                // the stream declined to skip, but is not at its end
+                skipped++;
+            } else if(!next()) {
+                // END of input streams
+                break;
             }
         }
         return skipped;
     }
 
+    /**
+     * Transfers all of the remaining data.
+     *
+     * @param out the destination for the data
+     *
+     * @return the number of octets transferred
+     */
+    public long transferTo(final OutputStream out) throws IOException {
+        return transferTo(out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Transfers all of the remaining data.
+     *
+     * @param target the destination for the data
+     *
+     * @return the number of octets transferred
+     */
+    public long transferTo(final WritableByteChannel target) throws IOException {
+        return transferTo(target, Long.MAX_VALUE);
+    }
+
+    @Override
+    public long transferTo(final OutputStream out, final long maxLength) throws IOException {
+        long transferred = 0;
+        InputStream current;
+        while(transferred < maxLength && (current = current()) != null) {
+            final long count = maxLength - transferred;
+            final long inTransferred = Utils.transfer(current, out, count);
+            transferred += inTransferred;
+            if(inTransferred < count && !next()) {
+                break;
+            }
+        }
+        return transferred;
+    }
+
+    @Override
+    public long transferTo(final WritableByteChannel target, final long maxLength) throws IOException {
+        long transferred = 0;
+        InputStream current;
+        while(transferred < maxLength && (current = current()) != null) {
+            final long count = maxLength - transferred;
+            final long inTransferred = Utils.transfer(current, target, count);
+            transferred += inTransferred;
+            if(inTransferred < count && !next()) {
+                break;
+            }
+        }
+        return transferred;
+    }
+
     @Override
     public int available() throws IOException {
-        return ins[insIdx].available();
+        return in == null ? 0 : in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(final int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
     }
 
     @Override
     public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+
         IOException firstException = null;
 
-        for(int i = ins.length - 1; i > -1; i--) {
+        if(opened != null) {
+            // close the input streams which have not yet been read
+            final int firstUnread = in == null ? insIdx : insIdx + 1;
+            for(int i = opened.length - 1; i >= firstUnread; i--) {
+                try {
+                    opened[i].close();
+                } catch(final IOException e) {
+                    if(firstException == null) {
+                        firstException = e;
+                    }
+                }
+            }
+        }
+
+        if(in != null) {
             try {
-                ins[i].close();
+                in.close();
             } catch(final IOException e) {
                 if(firstException == null) {
                     firstException = e;
                 }
             }
+            in = null;
         }
 
         if(firstException != null) {
@@ -0,0 +1,262 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Finds occurrences of any of a number of fixed sequences
+ * of octets in a single pass, using the Aho-Corasick algorithm.
+ *
+ * Instances are immutable once compiled, and so may be reused
+ * for any number of searches.
+ */
+@ThreadSafe
+public class MultiByteSearcher {
+
+    private static final int ROOT = 0;
+    private static final int[] NO_OUTPUTS = new int[0];
+    private static final byte[] NO_OCTETS = new byte[0];
+    private static final int[] NO_TARGETS = new int[0];
+
+    private final int[] patternLengths;
+
+    // transitions from the root state, indexed by octet
+    private final int[] rootTransitions;
+    // transitions from every other state, as octets in ascending order and their target states
+    private final byte[][] transitionOctets;
+    private final int[][] transitionTargets;
+    private final int[] failure;
+    // the indexes of the patterns which end at each state, in ascending order
+    private final int[][] outputs;
+
+    private MultiByteSearcher(final int[] patternLengths, final int[] rootTransitions, final byte[][] transitionOctets, final int[][] transitionTargets, final int[] failure, final int[][] outputs) {
+        this.patternLengths = patternLengths;
+        this.rootTransitions = rootTransitions;
+        this.transitionOctets = transitionOctets;
+        this.transitionTargets = transitionTargets;
+        this.failure = failure;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Compiles a searcher for the patterns.
+     *
+     * @param patterns The octets to search for, empty patterns are ignored
+     *
+     * @return a searcher for the patterns
+     */
+    public static MultiByteSearcher compile(final byte[][] patterns) {
+        final int[] patternLengths = new int[patterns.length];
+
+        // build the trie, with sparse transitions from all but the root, so that
+        // each state only takes space for the octets which follow it
+        final int[] rootTransitions = new int[256];
+        final List<byte[]> octets = new ArrayList<>();
+        final List<int[]> targets = new ArrayList<>();
+        final List<int[]> own = new ArrayList<>();
+        octets.add(null);
+        targets.add(null);
+        own.add(NO_OUTPUTS);
+        for(int i = 0; i < patterns.length; i++) {
+            final byte[] pattern = patterns[i];
+            patternLengths[i] = pattern.length;
+            if(pattern.length == 0) {
+                continue;
+            }
+
+            int state = ROOT;
+            for(final byte b : pattern) {
+                int next = child(rootTransitions, octets, targets, state, b);
+                if(next == ROOT) {
+                    next = octets.size();
+                    octets.add(NO_OCTETS);
+                    targets.add(NO_TARGETS);
+                    own.add(NO_OUTPUTS);
+                    addChild(rootTransitions, octets, targets, state, b, next);
+                }
+                state = next;
+            }
+            final int[] stateOutputs = Arrays.copyOf(own.get(state), own.get(state).length + 1);
+            stateOutputs[stateOutputs.length - 1] = i;
+            own.set(state, stateOutputs);
+        }
+
+        // compute the failure links and outputs, breadth first
+        final int numStates = octets.size();
+        final int[] failure = new int[numStates];
+        final int[][] outputs = new int[numStates][];
+        outputs[ROOT] = own.get(ROOT);
+        final Deque<Integer> queue = new ArrayDeque<>();
+        for(final int child : rootTransitions) {
+            if(child != ROOT) {
+                failure[child] = ROOT;
+                outputs[child] = own.get(child);
+                queue.add(child);
+            }
+        }
+        while(!queue.isEmpty()) {
+            final int state = queue.remove();
+            final byte[] stateOctets = octets.get(state);
+            final int[] stateTargets = targets.get(state);
+            for(int j = 0; j < stateOctets.length; j++) {
+                final byte b = stateOctets[j];
+                final int child = stateTargets[j];
+
+                int f = failure[state];
+                while(f != ROOT && child(rootTransitions, octets, targets, f, b) == ROOT) {
+                    f = failure[f];
+                }
+                final int target = child(rootTransitions, octets, targets, f, b);
+                failure[child] = target != child ? target : ROOT;
+                outputs[child] = merge(own.get(child), outputs[failure[child]]);
+                queue.add(child);
+            }
+        }
+
+        return new MultiByteSearcher(patternLengths, rootTransitions, octets.toArray(new byte[numStates][]), targets.toArray(new int[numStates][]), failure, outputs);
+    }
+
+    private static int child(final int[] rootTransitions, final List<byte[]> octets, final List<int[]> targets, final int state, final byte b) {
+        if(state == ROOT) {
+            return rootTransitions[b & 0xff];
+        }
+        final int idx = Arrays.binarySearch(octets.get(state), b);
+        return idx >= 0 ? targets.get(state)[idx] : ROOT;
+    }
+
+    private static void addChild(final int[] rootTransitions, final List<byte[]> octets, final List<int[]> targets, final int state, final byte b, final int child) {
+        if(state == ROOT) {
+            rootTransitions[b & 0xff] = child;
+            return;
+        }
+
+        // kept in signed order, for Arrays#binarySearch(byte[], byte)
+        final byte[] stateOctets = octets.get(state);
+        final int[] stateTargets = targets.get(state);
+        final int idx = -(Arrays.binarySearch(stateOctets, b) + 1);
+        final byte[] newOctets = new byte[stateOctets.length + 1];
+        final int[] newTargets = new int[stateTargets.length + 1];
+        System.arraycopy(stateOctets, 0, newOctets, 0, idx);
+        System.arraycopy(stateTargets, 0, newTargets, 0, idx);
+        newOctets[idx] = b;
+        newTargets[idx] = child;
+        System.arraycopy(stateOctets, idx, newOctets, idx + 1, stateOctets.length - idx);
+        System.arraycopy(stateTargets, idx, newTargets, idx + 1, stateTargets.length - idx);
+        octets.set(state, newOctets);
+        targets.set(state, newTargets);
+    }
+
+    private static int[] merge(final int[] a, final int[] b) {
+        if(b.length == 0) {
+            return a;
+        } else if(a.length == 0) {
+            return b;
+        }
+        final int[] merged = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, merged, a.length, b.length);
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * @return the number of patterns
+     */
+    public int getPatternCount() {
+        return patternLengths.length;
+    }
+
+    /**
+     * Receives the occurrences found by a search.
+     */
+    @FunctionalInterface
+    public interface MatchHandler {
+        /**
+         * @param patternIndex The index of the pattern that was found
+         * @param offset The position of the occurrence
+         *
+         * @return true to continue searching, false to stop
+         */
+        boolean match(int patternIndex, long offset) throws IOException;
+    }
+
+    /**
+     * Finds the occurrences of the patterns in the remainder of a stream.
+     *
+     * Occurrences are reported in the order in which they end,
+     * those ending at the same position are ordered by pattern index.
+     * Empty patterns are reported once, at {@code position}.
+     *
+     * @param is The stream to search
+     * @param position The current position of the stream, which is
+     *     added to the offset of any match that is found
+     * @param handler Receives each occurrence
+     */
+    public void search(final InputStream is, final long position, final MatchHandler handler) throws IOException {
+        for(int i = 0; i < patternLengths.length; i++) {
+            if(patternLengths[i] == 0 && !handler.match(i, position)) {
+                return;
+            }
+        }
+
+        final byte[] buf = new byte[ByteSearcher.DEFAULT_BUFFER_SIZE];
+        long bufPosition = position;
+        int state = ROOT;
+        int read;
+        while((read = is.read(buf)) != -1) {
+            for(int i = 0; i < read; i++) {
+                state = next(state, buf[i]);
+                final int[] stateOutputs = outputs[state];
+                for(final int patternIndex : stateOutputs) {
+                    if(!handler.match(patternIndex, bufPosition + i - patternLengths[patternIndex] + 1)) {
+                        return;
+                    }
+                }
+            }
+            bufPosition += read;
+        }
+    }
+
+    private int next(int state, final byte b) {
+        while(state != ROOT) {
+            final int idx = Arrays.binarySearch(transitionOctets[state], b);
+            if(idx >= 0) {
+                return transitionTargets[state][idx];
+            }
+            state = failure[state];
+        }
+        return rootTransitions[b & 0xff];
+    }
+}
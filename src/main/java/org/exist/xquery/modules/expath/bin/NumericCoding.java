@@ -0,0 +1,183 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.exist.xquery.value.IntegerValue;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Conversion between numbers and their binary representations.
+ *
+ * Values of up to eight octets are converted through
+ * {@code long} arithmetic and {@link ByteBuffer} views,
+ * {@link BigInteger} is only used for larger integers.
+ */
+public class NumericCoding {
+
+    /**
+     * Parses an octet order.
+     *
+     * @param octetOrder the octet order as defined by the EXPath Binary Module
+     *
+     * @return the octet order, or null if it is not recognized
+     */
+    static ByteOrder toByteOrder(final String octetOrder) {
+        switch(octetOrder) {
+            case "most-significant-first":
+            case "big-endian":
+            case "BE":
+                return ByteOrder.BIG_ENDIAN;
+
+            case "least-significant-first":
+            case "little-endian":
+            case "LE":
+                return ByteOrder.LITTLE_ENDIAN;
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Writes the twos-complement representation of an integer,
+     * discarding any excess most-significant octets.
+     *
+     * @param value the integer
+     * @param buf the buffer to write to
+     * @param off the offset in the buffer to write at
+     * @param size the number of octets to write
+     * @param order the octet order
+     */
+    static void packInteger(final BigInteger value, final byte[] buf, final int off, final int size, final ByteOrder order) {
+        if(value.bitLength() < 64) {
+            packLong(value.longValue(), buf, off, size, order);
+            return;
+        }
+
+        final byte[] octets = value.toByteArray();  // most significant first
+        final byte sign = value.signum() < 0 ? (byte)0xff : 0;
+        for(int i = 0; i < size; i++) {
+            // i counts from the least significant octet
+            final int src = octets.length - 1 - i;
+            final byte octet = src >= 0 ? octets[src] : sign;
+            buf[order == ByteOrder.BIG_ENDIAN ? off + size - 1 - i : off + i] = octet;
+        }
+    }
+
+    /**
+     * Writes the twos-complement representation of a long,
+     * discarding any excess most-significant octets.
+     *
+     * @param value the integer
+     * @param buf the buffer to write to
+     * @param off the offset in the buffer to write at
+     * @param size the number of octets to write
+     * @param order the octet order
+     */
+    static void packLong(final long value, final byte[] buf, final int off, final int size, final ByteOrder order) {
+        switch(size) {
+            case 2:
+                ByteBuffer.wrap(buf).order(order).putShort(off, (short)value);
+                return;
+
+            case 4:
+                ByteBuffer.wrap(buf).order(order).putInt(off, (int)value);
+                return;
+
+            case 8:
+                ByteBuffer.wrap(buf).order(order).putLong(off, value);
+                return;
+
+            default:
+                for(int i = 0; i < size; i++) {
+                    // i counts from the least significant octet, beyond 8 octets the sign is extended
+                    final byte octet = (byte)(value >> Math.min(i * 8, 63));
+                    buf[order == ByteOrder.BIG_ENDIAN ? off + size - 1 - i : off + i] = octet;
+                }
+        }
+    }
+
+    /**
+     * Reads an integer from its binary representation.
+     *
+     * @param buf the buffer to read from
+     * @param off the offset in the buffer to read from
+     * @param size the number of octets to read
+     * @param order the octet order
+     * @param signed true to interpret the octets as twos-complement, false as unsigned
+     *
+     * @return the integer
+     */
+    static IntegerValue unpackInteger(final byte[] buf, final int off, final int size, final ByteOrder order, final boolean signed) {
+        final ByteBuffer view = ByteBuffer.wrap(buf).order(order);
+        switch(size) {
+            case 0:
+                return new IntegerValue(0);
+
+            case 2:
+                final short s = view.getShort(off);
+                return new IntegerValue(signed ? s : s & 0xffff);
+
+            case 4:
+                final int i = view.getInt(off);
+                return new IntegerValue(signed ? i : i & 0xffffffffL);
+
+            case 8:
+                final long l = view.getLong(off);
+                if(signed || l >= 0) {
+                    return new IntegerValue(l);
+                }
+                // needs more than 63 bits
+                break;
+
+            default:
+                if(size < 8) {
+                    long value = 0;
+                    for(int idx = 0; idx < size; idx++) {
+                        // from the most significant octet
+                        final byte octet = buf[order == ByteOrder.BIG_ENDIAN ? off + idx : off + size - 1 - idx];
+                        value = (value << 8) | (octet & 0xff);
+                    }
+                    if(signed) {
+                        // sign extend
+                        final int shift = 64 - (size * 8);
+                        value = (value << shift) >> shift;
+                    }
+                    return new IntegerValue(value);
+                }
+        }
+
+        final byte[] magnitude = new byte[size];
+        for(int i = 0; i < size; i++) {
+            magnitude[i] = buf[order == ByteOrder.BIG_ENDIAN ? off + i : off + size - 1 - i];
+        }
+        return new IntegerValue(signed ? new BigInteger(magnitude) : new BigInteger(1, magnitude));
+    }
+}
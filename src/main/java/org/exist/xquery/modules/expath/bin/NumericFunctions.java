@@ -0,0 +1,692 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.exist.xquery.FunctionDSL.*;
+import static org.exist.xquery.modules.expath.bin.ExpathBinModule.*;
+import static org.exist.xquery.modules.expath.bin.NumericCoding.*;
+import static org.exist.xquery.modules.expath.bin.Utils.*;
+
+/**
+ * Numeric packing and unpacking.
+ */
+public class NumericFunctions extends BasicFunction {
+
+    private static final FunctionParameterSequenceType FS_PARAM_OCTET_ORDER = param("octet-order", Type.STRING, "The octet order, either 'most-significant-first' (the default), 'big-endian' or 'BE', or 'least-significant-first', 'little-endian' or 'LE'");
+    private static final FunctionParameterSequenceType FS_UNPACK_PARAM_IN = param("in", Type.BASE64_BINARY, "The binary data");
+    private static final FunctionParameterSequenceType FS_UNPACK_PARAM_OFFSET = param("offset", Type.INTEGER, "The offset to unpack from");
+    private static final FunctionParameterSequenceType FS_UNPACK_PARAM_SIZE = param("size", Type.INTEGER, "The number of octets to unpack");
+
+    private static final String FS_PACK_DOUBLE_NAME = "pack-double";
+    private static final FunctionParameterSequenceType FS_PACK_DOUBLE_PARAM_IN = param("in", Type.DOUBLE, "The double to pack");
+    static final FunctionSignature[] FS_PACK_DOUBLE = functionSignatures(
+            FS_PACK_DOUBLE_NAME,
+            "Returns the 8-octet binary representation of a double value.",
+            returns(Type.BASE64_BINARY),
+            arities(
+                    arity(
+                            FS_PACK_DOUBLE_PARAM_IN
+                    ),
+                    arity(
+                            FS_PACK_DOUBLE_PARAM_IN,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_PACK_FLOAT_NAME = "pack-float";
+    private static final FunctionParameterSequenceType FS_PACK_FLOAT_PARAM_IN = param("in", Type.FLOAT, "The float to pack");
+    static final FunctionSignature[] FS_PACK_FLOAT = functionSignatures(
+            FS_PACK_FLOAT_NAME,
+            "Returns the 4-octet binary representation of a float value.",
+            returns(Type.BASE64_BINARY),
+            arities(
+                    arity(
+                            FS_PACK_FLOAT_PARAM_IN
+                    ),
+                    arity(
+                            FS_PACK_FLOAT_PARAM_IN,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_PACK_INTEGER_NAME = "pack-integer";
+    private static final FunctionParameterSequenceType FS_PACK_INTEGER_PARAM_IN = param("in", Type.INTEGER, "The integer to pack");
+    private static final FunctionParameterSequenceType FS_PACK_INTEGER_PARAM_SIZE = param("size", Type.INTEGER, "The number of octets to pack into");
+    static final FunctionSignature[] FS_PACK_INTEGER = functionSignatures(
+            FS_PACK_INTEGER_NAME,
+            "Returns the twos-complement binary representation of an integer value, in $size octets. Excess most-significant octets are discarded.",
+            returns(Type.BASE64_BINARY),
+            arities(
+                    arity(
+                            FS_PACK_INTEGER_PARAM_IN,
+                            FS_PACK_INTEGER_PARAM_SIZE
+                    ),
+                    arity(
+                            FS_PACK_INTEGER_PARAM_IN,
+                            FS_PACK_INTEGER_PARAM_SIZE,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_UNPACK_DOUBLE_NAME = "unpack-double";
+    static final FunctionSignature[] FS_UNPACK_DOUBLE = functionSignatures(
+            FS_UNPACK_DOUBLE_NAME,
+            "Extracts a double value from the 8 octets of binary data at $offset.",
+            returns(Type.DOUBLE),
+            arities(
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET
+                    ),
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_UNPACK_FLOAT_NAME = "unpack-float";
+    static final FunctionSignature[] FS_UNPACK_FLOAT = functionSignatures(
+            FS_UNPACK_FLOAT_NAME,
+            "Extracts a float value from the 4 octets of binary data at $offset.",
+            returns(Type.FLOAT),
+            arities(
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET
+                    ),
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_UNPACK_INTEGER_NAME = "unpack-integer";
+    static final FunctionSignature[] FS_UNPACK_INTEGER = functionSignatures(
+            FS_UNPACK_INTEGER_NAME,
+            "Returns a signed integer value represented by the $size octets of binary data at $offset, interpreted as twos-complement.",
+            returns(Type.INTEGER),
+            arities(
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_SIZE
+                    ),
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_SIZE,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_UNPACK_UNSIGNED_INTEGER_NAME = "unpack-unsigned-integer";
+    static final FunctionSignature[] FS_UNPACK_UNSIGNED_INTEGER = functionSignatures(
+            FS_UNPACK_UNSIGNED_INTEGER_NAME,
+            "Returns an unsigned integer value represented by the $size octets of binary data at $offset.",
+            returns(Type.INTEGER),
+            arities(
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_SIZE
+                    ),
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_SIZE,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final FunctionParameterSequenceType FS_UNPACK_PARAM_COUNT = param("count", Type.INTEGER, "The number of values to unpack");
+
+    private static final String FS_UNPACK_DOUBLES_NAME = "unpack-doubles";
+    static final FunctionSignature[] FS_UNPACK_DOUBLES = functionSignatures(
+            FS_UNPACK_DOUBLES_NAME,
+            "Extracts $count consecutive double values from the binary data, starting at $offset.",
+            returnsOptMany(Type.DOUBLE),
+            arities(
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_COUNT
+                    ),
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_COUNT,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_UNPACK_FLOATS_NAME = "unpack-floats";
+    static final FunctionSignature[] FS_UNPACK_FLOATS = functionSignatures(
+            FS_UNPACK_FLOATS_NAME,
+            "Extracts $count consecutive float values from the binary data, starting at $offset.",
+            returnsOptMany(Type.FLOAT),
+            arities(
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_COUNT
+                    ),
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_COUNT,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_UNPACK_INTEGERS_NAME = "unpack-integers";
+    static final FunctionSignature[] FS_UNPACK_INTEGERS = functionSignatures(
+            FS_UNPACK_INTEGERS_NAME,
+            "Extracts $count consecutive signed integer values, each of $size octets interpreted as twos-complement, from the binary data, starting at $offset. $size must not be zero unless $count is zero.",
+            returnsOptMany(Type.INTEGER),
+            arities(
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_COUNT,
+                            FS_UNPACK_PARAM_SIZE
+                    ),
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_COUNT,
+                            FS_UNPACK_PARAM_SIZE,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_UNPACK_UNSIGNED_INTEGERS_NAME = "unpack-unsigned-integers";
+    static final FunctionSignature[] FS_UNPACK_UNSIGNED_INTEGERS = functionSignatures(
+            FS_UNPACK_UNSIGNED_INTEGERS_NAME,
+            "Extracts $count consecutive unsigned integer values, each of $size octets, from the binary data, starting at $offset. $size must not be zero unless $count is zero.",
+            returnsOptMany(Type.INTEGER),
+            arities(
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_COUNT,
+                            FS_UNPACK_PARAM_SIZE
+                    ),
+                    arity(
+                            FS_UNPACK_PARAM_IN,
+                            FS_UNPACK_PARAM_OFFSET,
+                            FS_UNPACK_PARAM_COUNT,
+                            FS_UNPACK_PARAM_SIZE,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_PACK_DOUBLES_NAME = "pack-doubles";
+    private static final FunctionParameterSequenceType FS_PACK_DOUBLES_PARAM_VALUES = optManyParam("values", Type.DOUBLE, "The doubles to pack");
+    static final FunctionSignature[] FS_PACK_DOUBLES = functionSignatures(
+            FS_PACK_DOUBLES_NAME,
+            "Returns the concatenated 8-octet binary representations of a sequence of double values.",
+            returns(Type.BASE64_BINARY),
+            arities(
+                    arity(
+                            FS_PACK_DOUBLES_PARAM_VALUES
+                    ),
+                    arity(
+                            FS_PACK_DOUBLES_PARAM_VALUES,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_PACK_FLOATS_NAME = "pack-floats";
+    private static final FunctionParameterSequenceType FS_PACK_FLOATS_PARAM_VALUES = optManyParam("values", Type.FLOAT, "The floats to pack");
+    static final FunctionSignature[] FS_PACK_FLOATS = functionSignatures(
+            FS_PACK_FLOATS_NAME,
+            "Returns the concatenated 4-octet binary representations of a sequence of float values.",
+            returns(Type.BASE64_BINARY),
+            arities(
+                    arity(
+                            FS_PACK_FLOATS_PARAM_VALUES
+                    ),
+                    arity(
+                            FS_PACK_FLOATS_PARAM_VALUES,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_PACK_INTEGERS_NAME = "pack-integers";
+    private static final FunctionParameterSequenceType FS_PACK_INTEGERS_PARAM_VALUES = optManyParam("values", Type.INTEGER, "The integers to pack");
+    static final FunctionSignature[] FS_PACK_INTEGERS = functionSignatures(
+            FS_PACK_INTEGERS_NAME,
+            "Returns the concatenated twos-complement binary representations of a sequence of integer values, each in $size octets. Excess most-significant octets are discarded.",
+            returns(Type.BASE64_BINARY),
+            arities(
+                    arity(
+                            FS_PACK_INTEGERS_PARAM_VALUES,
+                            FS_PACK_INTEGER_PARAM_SIZE
+                    ),
+                    arity(
+                            FS_PACK_INTEGERS_PARAM_VALUES,
+                            FS_PACK_INTEGER_PARAM_SIZE,
+                            FS_PARAM_OCTET_ORDER
+                    )
+            )
+    );
+
+    private static final String FS_UNPACK_RECORD_NAME = "unpack-record";
+    static final FunctionSignature FS_UNPACK_RECORD = functionSignature(
+            FS_UNPACK_RECORD_NAME,
+            "Decodes a fixed-size record from the binary data at $offset. Returns a map from the position of each field, starting at 1, to its value.",
+            returns(Type.MAP),
+            FS_UNPACK_PARAM_IN,
+            FS_UNPACK_PARAM_OFFSET,
+            param("layout", Type.STRING, "The layout of the record, for example '>I2HQd8s'. The octet order is one of '>' (the default) or '!', '<', or '=' for native. Each field is a type code, optionally preceded by a repeat count: 'x' padding, '?' boolean, 'b'/'B' 1, 'h'/'H' 2, 'i'/'I' or 'l'/'L' 4, 'q'/'Q' 8 octet signed/unsigned integers, 'f' float, 'd' double, and 's' binary data whose count is its length.")
+    );
+
+    // the number of octets read at a time when unpacking many values
+    private static final int UNPACK_CHUNK_SIZE = 64 * 1024;
+
+    public NumericFunctions(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        switch(getName().getLocalPart()) {
+            case FS_PACK_DOUBLE_NAME:
+                final double d = args[0].itemAt(0).toJavaObject(Double.class);
+                final byte[] doubleBuf = new byte[8];
+                ByteBuffer.wrap(doubleBuf).order(getOctetOrder(args, 1)).putDouble(0, d);
+                return newInMemoryBinary(context, doubleBuf);
+
+            case FS_PACK_FLOAT_NAME:
+                final float f = args[0].itemAt(0).toJavaObject(Float.class);
+                final byte[] floatBuf = new byte[4];
+                ByteBuffer.wrap(floatBuf).order(getOctetOrder(args, 1)).putFloat(0, f);
+                return newInMemoryBinary(context, floatBuf);
+
+            case FS_PACK_INTEGER_NAME:
+                final BigInteger value = getIntegerArg(args, 0).get();
+                final int packSize = getSize(getIntegerArg(args, 1).get());
+                final byte[] integerBuf = new byte[packSize];
+                packInteger(value, integerBuf, 0, packSize, getOctetOrder(args, 2));
+                return newInMemoryBinary(context, integerBuf);
+
+            case FS_PACK_DOUBLES_NAME:
+                return packAll(args[0], 8, getOctetOrder(args, 1));
+
+            case FS_PACK_FLOATS_NAME:
+                return packAll(args[0], 4, getOctetOrder(args, 1));
+
+            case FS_PACK_INTEGERS_NAME:
+                return packAll(args[0], getSize(getIntegerArg(args, 1).get()), getOctetOrder(args, 2));
+
+            case FS_UNPACK_DOUBLE_NAME:
+                final ByteBuffer doubleView = unpack(args, 8, 2);
+                return new DoubleValue(doubleView.getDouble(0));
+
+            case FS_UNPACK_FLOAT_NAME:
+                final ByteBuffer floatView = unpack(args, 4, 2);
+                return new FloatValue(floatView.getFloat(0));
+
+            case FS_UNPACK_INTEGER_NAME:
+            case FS_UNPACK_UNSIGNED_INTEGER_NAME:
+                final int unpackSize = getSize(getIntegerArg(args, 2).get());
+                final ByteBuffer integerView = unpack(args, unpackSize, 3);
+                return unpackInteger(integerView.array(), 0, unpackSize, integerView.order(), FS_UNPACK_INTEGER_NAME.equals(getName().getLocalPart()));
+
+            case FS_UNPACK_DOUBLES_NAME:
+                return unpackAll(args, 8, 3);
+
+            case FS_UNPACK_FLOATS_NAME:
+                return unpackAll(args, 4, 3);
+
+            case FS_UNPACK_INTEGERS_NAME:
+            case FS_UNPACK_UNSIGNED_INTEGERS_NAME:
+                return unpackAll(args, getSize(getIntegerArg(args, 3).get()), 4);
+
+            case FS_UNPACK_RECORD_NAME:
+                final String layoutString = getStringArg(args, 2).get();
+                final RecordLayout layout;
+                try {
+                    layout = getModule(context).getRecordLayout(layoutString);
+                } catch(final IllegalArgumentException e) {
+                    throw new XPathException(this, ERROR_INVALID_LAYOUT, "$layout is invalid: " + e.getMessage());
+                }
+                return unpackRecord(args, layout);
+
+            default:
+                throw new XPathException(this, "No function: " + getName() + "#" + getSignature().getArgumentCount());
+        }
+    }
+
+    private int getSize(final BigInteger size) throws XPathException {
+        if(size.signum() < 0) {
+            throw new XPathException(this, ERROR_NEGATIVE_SIZE, "$size is negative: " + size);
+        }
+        if(size.bitLength() > 31) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$size is out of range: " + size);
+        }
+        return size.intValue();
+    }
+
+    private ByteOrder getOctetOrder(final Sequence[] args, final int idx) throws XPathException {
+        final Optional<String> octetOrder = getStringArg(args, idx);
+        if(!octetOrder.isPresent()) {
+            return ByteOrder.BIG_ENDIAN;
+        }
+        final ByteOrder order = toByteOrder(octetOrder.get());
+        if(order == null) {
+            throw new XPathException(this, ERROR_UNKNOWN_SIGNIFICANCE_ORDER, "$octet-order is not recognized: " + octetOrder.get());
+        }
+        return order;
+    }
+
+    /**
+     * Reads the octets to unpack from the binary data argument.
+     *
+     * @param args the function arguments, {@code $in} then {@code $offset}
+     * @param size the number of octets to read
+     * @param octetOrderIdx the index of the {@code $octet-order} argument
+     *
+     * @return a view of the octets, in the requested octet order
+     */
+    private ByteBuffer unpack(final Sequence[] args, final int size, final int octetOrderIdx) throws XPathException {
+        final BinaryValue in = getBinaryArg(args, 0).get();
+        final BigInteger offset = getIntegerArg(args, 1).get();
+        if(offset.signum() < 0) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is negative: " + offset);
+        }
+        final ByteOrder order = getOctetOrder(args, octetOrderIdx);
+        final long off = toLong(this, offset, "$offset");
+
+        // checked before allocating, as $size may be far larger than $in
+        final Optional<Long> length = getKnownLength(context, in);
+        if(length.isPresent() && size > length.get() - off) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset + $size is greater than the size of binary data $in");
+        }
+
+        final byte[] buf;
+        try {
+            if(length.isPresent() || size <= UNPACK_CHUNK_SIZE) {
+                buf = new byte[size];
+                readFully(context, in, off, buf, size);
+            } else {
+                try(final InputStream is = openInputStream(context, in, off)) {
+                    buf = readOctets(is, size);
+                }
+            }
+        } catch(final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset + $size is greater than the size of binary data $in");
+        } catch(final IOException e) {
+            throw new XPathException(this, e);
+        }
+        return ByteBuffer.wrap(buf).order(order);
+    }
+
+    /**
+     * Reads octets of binary data whose length is unknown, growing
+     * the buffer as the octets are read, so that no more memory is
+     * allocated than the data which is actually available.
+     *
+     * @param is the input stream
+     * @param len the number of octets to read
+     *
+     * @return the octets
+     *
+     * @throws RegionFilterInputStream.IndexOutOfRangeException if the end of the stream is reached first
+     */
+    private static byte[] readOctets(final InputStream is, final int len) throws IOException {
+        byte[] buf = new byte[Math.min(len, UNPACK_CHUNK_SIZE)];
+        int total = 0;
+        while(total < len) {
+            if(total == buf.length) {
+                buf = Arrays.copyOf(buf, (int)Math.min(len, 2L * buf.length));
+            }
+            final int read = is.read(buf, total, buf.length - total);
+            if(read == -1) {
+                throw new RegionFilterInputStream.IndexOutOfRangeException("Reached end of stream before end of region");
+            }
+            total += read;
+        }
+        return buf;
+    }
+
+    /**
+     * Packs a sequence of values into a single buffer.
+     *
+     * @param values the values to pack
+     * @param size the number of octets for each value
+     * @param order the octet order
+     *
+     * @return the packed values
+     */
+    private BinaryValue packAll(final Sequence values, final int size, final ByteOrder order) throws XPathException {
+        final int count = values.getItemCount();
+        final long len = (long)count * size;
+        if(len > Integer.MAX_VALUE) {
+            throw new XPathException(this, "Packing " + count + " values of " + size + " octets exceeds the maximum size of an in-memory binary value");
+        }
+
+        final byte[] buf = new byte[(int)len];
+        final ByteBuffer view = ByteBuffer.wrap(buf).order(order);
+        switch(getName().getLocalPart()) {
+            case FS_PACK_DOUBLES_NAME:
+                for(int i = 0; i < count; i++) {
+                    view.putDouble(i * 8, values.itemAt(i).toJavaObject(Double.class));
+                }
+                break;
+
+            case FS_PACK_FLOATS_NAME:
+                for(int i = 0; i < count; i++) {
+                    view.putFloat(i * 4, values.itemAt(i).toJavaObject(Float.class));
+                }
+                break;
+
+            default:
+                for(int i = 0; i < count; i++) {
+                    packInteger(values.itemAt(i).toJavaObject(BigInteger.class), buf, i * size, size, order);
+                }
+        }
+        return newInMemoryBinary(context, buf);
+    }
+
+    /**
+     * Decodes a record from a single read of its octets.
+     *
+     * @param args the function arguments, {@code $in} then {@code $offset}
+     * @param layout the layout of the record
+     *
+     * @return a map from the position of each field to its value
+     */
+    private MapType unpackRecord(final Sequence[] args, final RecordLayout layout) throws XPathException {
+        final BinaryValue in = getBinaryArg(args, 0).get();
+        final BigInteger offset = getIntegerArg(args, 1).get();
+        if(offset.signum() < 0) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is negative: " + offset);
+        }
+
+        final byte[] buf = new byte[layout.getSize()];
+        try {
+            readFully(context, in, toLong(this, offset, "$offset"), buf, buf.length);
+        } catch(final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset + the size of $layout is greater than the size of binary data $in");
+        } catch(final IOException e) {
+            throw new XPathException(this, e);
+        }
+
+        final ByteOrder order = layout.getOrder();
+        final ByteBuffer view = ByteBuffer.wrap(buf).order(order);
+        final MapType record = new MapType(context);
+        final RecordLayout.Field[] fields = layout.getFields();
+        for(int i = 0; i < fields.length; i++) {
+            final RecordLayout.Field field = fields[i];
+            final AtomicValue value;
+            switch(field.getType()) {
+                case BOOLEAN:
+                    value = BooleanValue.valueOf(buf[field.getOffset()] != 0);
+                    break;
+
+                case SIGNED_INTEGER:
+                case UNSIGNED_INTEGER:
+                    value = unpackInteger(buf, field.getOffset(), field.getSize(), order, field.getType() == RecordLayout.FieldType.SIGNED_INTEGER);
+                    break;
+
+                case FLOAT:
+                    value = new FloatValue(view.getFloat(field.getOffset()));
+                    break;
+
+                case DOUBLE:
+                    value = new DoubleValue(view.getDouble(field.getOffset()));
+                    break;
+
+                default:
+                    value = newInMemoryBinary(context, Arrays.copyOfRange(buf, field.getOffset(), field.getOffset() + field.getSize()));
+            }
+            record.add(new IntegerValue(i + 1), value);
+        }
+        return record;
+    }
+
+    /**
+     * Unpacks consecutive values, reading the region
+     * containing them through a single stream.
+     *
+     * @param args the function arguments, {@code $in}, {@code $offset} and then {@code $count}
+     * @param size the number of octets in each value
+     * @param octetOrderIdx the index of the {@code $octet-order} argument
+     *
+     * @return the values
+     */
+    private Sequence unpackAll(final Sequence[] args, final int size, final int octetOrderIdx) throws XPathException {
+        final BinaryValue in = getBinaryArg(args, 0).get();
+        final BigInteger offset = getIntegerArg(args, 1).get();
+        if(offset.signum() < 0) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is negative: " + offset);
+        }
+        final BigInteger count = getIntegerArg(args, 2).get();
+        if(count.signum() < 0) {
+            throw new XPathException(this, ERROR_NEGATIVE_SIZE, "$count is negative: " + count);
+        }
+        final ByteOrder order = getOctetOrder(args, octetOrderIdx);
+
+        final long off = toLong(this, offset, "$offset");
+        final int n = count.bitLength() < 32 ? count.intValue() : Integer.MAX_VALUE;
+        final Optional<Long> length = getKnownLength(context, in);
+        if(count.bitLength() >= 32 || (length.isPresent() && (long)n * size > length.get() - off)) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset + $count * $size is greater than the size of binary data $in");
+        }
+        if(n == 0) {
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        if(size == 0) {
+            // otherwise any number of values could be unpacked from no data
+            throw new XPathException(this, ERROR_CONVERSION_ERROR, "$size must not be zero when $count is positive");
+        }
+
+        // whole values per chunk
+        final int perChunk = Math.max(1, UNPACK_CHUNK_SIZE / size);
+        // a value larger than a chunk of $in of unknown length is only held as its octets are read
+        final byte[] chunk = size > UNPACK_CHUNK_SIZE && !length.isPresent() ? null : new byte[(int)Math.min((long)perChunk * size, (long)n * size)];
+        final ByteBuffer view = chunk == null ? null : ByteBuffer.wrap(chunk).order(order);
+        final String name = getName().getLocalPart();
+
+        // when the length of $in is unknown, $count may be larger than the values available
+        final ValueSequence result = new ValueSequence(length.isPresent() ? n : Math.min(n, perChunk));
+        try(final InputStream is = openInputStream(context, in, off)) {
+            int remaining = n;
+            while(remaining > 0) {
+                final int values = Math.min(remaining, perChunk);
+                final int len = values * size;
+                final byte[] octets;
+                if(chunk == null) {
+                    octets = readOctets(is, len);
+                } else {
+                    if(readFully(is, chunk, 0, len) < len) {
+                        throw new RegionFilterInputStream.IndexOutOfRangeException("Reached end of stream before end of region");
+                    }
+                    octets = chunk;
+                }
+
+                switch(name) {
+                    case FS_UNPACK_DOUBLES_NAME:
+                        for(int i = 0; i < len; i += 8) {
+                            result.add(new DoubleValue(view.getDouble(i)));
+                        }
+                        break;
+
+                    case FS_UNPACK_FLOATS_NAME:
+                        for(int i = 0; i < len; i += 4) {
+                            result.add(new FloatValue(view.getFloat(i)));
+                        }
+                        break;
+
+                    default:
+                        final boolean signed = FS_UNPACK_INTEGERS_NAME.equals(name);
+                        for(int i = 0; i < len; i += size) {
+                            result.add(unpackInteger(octets, i, size, order, signed));
+                        }
+                }
+
+                remaining -= values;
+            }
+        } catch(final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset + $count * $size is greater than the size of binary data $in");
+        } catch(final IOException e) {
+            throw new XPathException(this, e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,465 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the segments of a joined stream ahead of the reader,
+ * on a bounded pool of background threads.
+ *
+ * When a segment is opened, the next segment is also opened
+ * and its first buffer is read in the background. Whilst a
+ * segment is being read, its next buffer is filled in the
+ * background, so that the reader and the underlying data
+ * are double-buffered.
+ *
+ * Read-ahead is disabled by default, and may be configured
+ * through the parameters of the module, e.g.
+ *
+ * <pre>{@code
+ * <module uri="http://expath.org/ns/binary" class="org.exist.xquery.modules.expath.bin.ExpathBinModule">
+ *     <parameter name="read-ahead" value="true"/>
+ *     <parameter name="read-ahead-buffer-size" value="65536"/>
+ *     <parameter name="read-ahead-threads" value="8"/>
+ * </module>
+ * }</pre>
+ *
+ * Each instance of the module, and so each query, has its own pool
+ * of threads, which is shut down when the module is reset at the end
+ * of the query. Tasks are handed directly to idle threads rather than
+ * queued, so when every thread is busy a segment is read without
+ * read-ahead, rather than waiting for a thread which may itself be
+ * waiting for its reader.
+ *
+ * Only segments of data held in a file or in memory are read in the
+ * background. Other binary values may be backed by the database, and
+ * are only read by the thread of the query, which holds the broker.
+ *
+ * A background read which has filled its buffers waits for a limited
+ * time for its reader, so a stream which is abandoned without being
+ * closed does not hold a thread for the rest of the query.
+ */
+@ThreadSafe
+public class ReadAhead {
+
+    public static final String PARAM_READ_AHEAD = "read-ahead";
+    public static final String PARAM_BUFFER_SIZE = "read-ahead-buffer-size";
+    public static final String PARAM_THREADS = "read-ahead-threads";
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // how long a background read waits for its reader to take a buffer, before giving up
+    static final long DEFAULT_READER_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    private final ExecutorService readAheadExecutor;
+    private final int bufferSize;
+    private final long readerTimeout;
+
+    ReadAhead(final ExecutorService readAheadExecutor, final int bufferSize) {
+        this(readAheadExecutor, bufferSize, DEFAULT_READER_TIMEOUT);
+    }
+
+    /**
+     * @param readAheadExecutor runs the background reads
+     * @param bufferSize the size of each buffer which is read ahead
+     * @param readerTimeout the time in milliseconds that a background read
+     *     waits for its reader to take a buffer, before abandoning the read
+     */
+    ReadAhead(final ExecutorService readAheadExecutor, final int bufferSize, final long readerTimeout) {
+        this.readAheadExecutor = readAheadExecutor;
+        this.bufferSize = bufferSize;
+        this.readerTimeout = readerTimeout;
+    }
+
+    /**
+     * Configures read-ahead from the parameters of the module.
+     *
+     * @param module the module
+     *
+     * @return the read-ahead configuration, or null if read-ahead is not enabled,
+     *     which must be shut down once the module no longer needs it
+     */
+    static ReadAhead configure(final ExpathBinModule module) {
+        if(!Boolean.parseBoolean(getParameter(module, PARAM_READ_AHEAD))) {
+            return null;
+        }
+
+        final int bufferSize = getIntParameter(module, PARAM_BUFFER_SIZE, DEFAULT_BUFFER_SIZE);
+        final int threads = getIntParameter(module, PARAM_THREADS, DEFAULT_THREADS);
+        return new ReadAhead(newExecutor(threads), bufferSize);
+    }
+
+    /**
+     * Stops any reads which are in progress in the background,
+     * and the threads which run them.
+     *
+     * Streams which are still being read afterwards continue
+     * without read-ahead, or fail if their background read
+     * was stopped.
+     */
+    void shutdown() {
+        readAheadExecutor.shutdownNow();
+    }
+
+    private static String getParameter(final ExpathBinModule module, final String name) {
+        final List<? extends Object> values = module.getParameter(name);
+        if(values == null || values.isEmpty() || values.get(0) == null) {
+            return null;
+        }
+        return values.get(0).toString().trim();
+    }
+
+    private static int getIntParameter(final ExpathBinModule module, final String name, final int defaultValue) {
+        final String value = getParameter(module, name);
+        if(value != null) {
+            try {
+                final int i = Integer.parseInt(value);
+                if(i > 0) {
+                    return i;
+                }
+            } catch(final NumberFormatException e) {
+                // use the default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Creates an executor which rejects a task when all
+     * of its threads are busy, rather than queueing it.
+     *
+     * A thread which is reading ahead may wait for as long
+     * as its reader has not consumed what was read, so a queued
+     * task could wait indefinitely, as could its reader.
+     *
+     * @param threads the maximum number of threads
+     *
+     * @return the executor
+     */
+    static ExecutorService newExecutor(final int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread = new Thread(runnable, "expath-bin-read-ahead-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), threadFactory);
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Reads ahead through segments.
+     *
+     * @param suppliers suppliers of the segments, in the order that they will be read
+     *
+     * @return the segments, which are read ahead as they are opened in order
+     */
+    Prefetcher prefetch(final JoinFilterInputStream.InputStreamSupplier[] suppliers) {
+        final Object[] data = new Object[suppliers.length];
+        final boolean[] background = new boolean[suppliers.length];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = suppliers[i];
+            background[i] = true;
+        }
+        return prefetch(suppliers, data, background);
+    }
+
+    /**
+     * Reads ahead through segments, some of which may read the same data.
+     *
+     * A segment is not read ahead whilst the segment before it is
+     * being read from the same data, as they would then compete
+     * for the position in that data.
+     *
+     * @param suppliers suppliers of the segments, in the order that they will be read
+     * @param data identifies the data which each segment reads
+     * @param background whether each segment may be read by a background thread,
+     *     otherwise it is only read by the thread which reads the segments
+     *
+     * @return the segments, which are read ahead as they are opened in order
+     */
+    Prefetcher prefetch(final JoinFilterInputStream.InputStreamSupplier[] suppliers, final Object[] data, final boolean[] background) {
+        return new Prefetcher(suppliers, data, background);
+    }
+
+    /**
+     * Opens segments ahead of the reader.
+     *
+     * Must be closed to release any segment which
+     * was opened ahead but never read.
+     */
+    @NotThreadSafe
+    class Prefetcher implements Closeable {
+        private final JoinFilterInputStream.InputStreamSupplier[] suppliers;
+        private final Object[] data;
+        private final boolean[] background;
+        private final InputStream[] prefetched;
+
+        private Prefetcher(final JoinFilterInputStream.InputStreamSupplier[] suppliers, final Object[] data, final boolean[] background) {
+            this.suppliers = suppliers;
+            this.data = data;
+            this.background = background;
+            this.prefetched = new InputStream[suppliers.length];
+        }
+
+        /**
+         * @return suppliers of the segments, each of which also starts
+         *     reading ahead the next segment
+         */
+        JoinFilterInputStream.InputStreamSupplier[] getSuppliers() {
+            final JoinFilterInputStream.InputStreamSupplier[] readAheadSuppliers = new JoinFilterInputStream.InputStreamSupplier[suppliers.length];
+            for(int i = 0; i < suppliers.length; i++) {
+                final int idx = i;
+                readAheadSuppliers[i] = () -> open(idx);
+            }
+            return readAheadSuppliers;
+        }
+
+        private InputStream open(final int idx) throws IOException {
+            InputStream is = prefetched[idx];
+            prefetched[idx] = null;
+            if(is == null) {
+                is = background[idx] ? start(suppliers[idx]) : suppliers[idx].get();
+            }
+
+            if(idx + 1 < suppliers.length && background[idx + 1] && prefetched[idx + 1] == null && data[idx + 1] != data[idx]) {
+                prefetched[idx + 1] = start(suppliers[idx + 1]);
+            }
+            return is;
+        }
+
+        private InputStream start(final JoinFilterInputStream.InputStreamSupplier supplier) throws IOException {
+            final ReadAheadInputStream is = new ReadAheadInputStream(bufferSize, readerTimeout);
+            try {
+                readAheadExecutor.execute(() -> is.fill(supplier));
+                return is;
+            } catch(final RejectedExecutionException e) {
+                // all of the read-ahead threads are busy, so read without read-ahead
+                return supplier.get();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException firstException = null;
+            for(int i = 0; i < prefetched.length; i++) {
+                if(prefetched[i] != null) {
+                    try {
+                        prefetched[i].close();
+                    } catch(final IOException e) {
+                        if(firstException == null) {
+                            firstException = e;
+                        }
+                    }
+                    prefetched[i] = null;
+                }
+            }
+
+            if(firstException != null) {
+                throw firstException;
+            }
+        }
+    }
+
+    /**
+     * An input stream which is filled by a background task.
+     */
+    @NotThreadSafe
+    private static class ReadAheadInputStream extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        // at most two buffers are filled ahead of the reader
+        private final BlockingQueue<Object> buffers = new ArrayBlockingQueue<>(2);
+        private final int bufferSize;
+        private final long readerTimeout;
+        private volatile boolean closed = false;
+        // set when the background read gives up before the end of the data
+        private volatile boolean abandoned = false;
+
+        private byte[] buffer = null;
+        private int bufferPos = 0;
+
+        ReadAheadInputStream(final int bufferSize, final long readerTimeout) {
+            this.bufferSize = bufferSize;
+            this.readerTimeout = readerTimeout;
+        }
+
+        /**
+         * Fills buffers from the underlying stream, run by a background thread.
+         */
+        void fill(final JoinFilterInputStream.InputStreamSupplier supplier) {
+            if(closed) {
+                return;
+            }
+
+            try {
+                final InputStream in = supplier.get();
+                try {
+                    while(!closed) {
+                        final byte[] buf = new byte[bufferSize];
+                        int len = 0;
+                        int read;
+                        while(len < bufferSize && (read = in.read(buf, len, bufferSize - len)) != -1) {
+                            len += read;
+                        }
+
+                        if(len > 0 && !put(len == bufferSize ? buf : Arrays.copyOf(buf, len))) {
+                            // the reader has gone away, or the read-ahead was shut down
+                            return;
+                        }
+
+                        if(len < bufferSize) {
+                            break;
+                        }
+                    }
+                } finally {
+                    // closed before the end is signalled, so that the reader may then reuse the data
+                    in.close();
+                }
+                put(END);
+            } catch(final IOException e) {
+                put(e);
+            } catch(final RuntimeException e) {
+                put(new IOException(e.getMessage(), e));
+            }
+        }
+
+        /**
+         * Passes an item to the reader, waiting for room in the queue
+         * for no longer than the reader timeout.
+         *
+         * @return true if the item was passed to the reader, false if the
+         *     stream was closed, the timeout elapsed, or the thread was interrupted
+         */
+        private boolean put(final Object item) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readerTimeout);
+            try {
+                while(!closed) {
+                    if(buffers.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                    if(System.nanoTime() - deadline > 0) {
+                        break;
+                    }
+                }
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            abandoned = true;
+            return false;
+        }
+
+        /**
+         * @return false if the end of the stream was reached
+         */
+        private boolean nextBuffer() throws IOException {
+            if(closed) {
+                throw new IOException("Stream closed");
+            }
+
+            while(buffer == null || (buffer != END && bufferPos == buffer.length)) {
+                final Object next;
+                try {
+                    next = buffers.poll(100, TimeUnit.MILLISECONDS);
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted whilst waiting for read-ahead");
+                }
+
+                if(next == null) {
+                    if(abandoned && buffers.isEmpty()) {
+                        buffer = END;
+                        throw new IOException("The read-ahead was abandoned, as the stream was not read for " + readerTimeout + " ms, or the read-ahead was shut down");
+                    }
+                    continue;
+                }
+
+                if(next instanceof IOException) {
+                    buffer = END;
+                    throw (IOException)next;
+                }
+
+                buffer = (byte[])next;
+                bufferPos = 0;
+            }
+            return buffer != END;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!nextBuffer()) {
+                return -1;
+            }
+            return buffer[bufferPos++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!nextBuffer()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.length - bufferPos);
+            System.arraycopy(buffer, bufferPos, b, off, n);
+            bufferPos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer == null || buffer == END ? 0 : buffer.length - bufferPos;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            buffers.clear();
+        }
+    }
+}
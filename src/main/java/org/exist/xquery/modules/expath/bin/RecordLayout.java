@@ -0,0 +1,282 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled layout of a fixed-size binary record.
+ *
+ * A layout is written as an optional octet order followed by a sequence
+ * of fields, which may be separated by whitespace. The octet order is one of:
+ * <ul>
+ *     <li>{@code >} or {@code !} most significant octet first (the default)</li>
+ *     <li>{@code <} least significant octet first</li>
+ *     <li>{@code =} the native octet order of the platform</li>
+ * </ul>
+ *
+ * Each field is a type code, optionally preceded by a repeat count:
+ * <ul>
+ *     <li>{@code x} a padding octet, which is skipped</li>
+ *     <li>{@code ?} a 1 octet boolean</li>
+ *     <li>{@code b} / {@code B} a 1 octet signed / unsigned integer</li>
+ *     <li>{@code h} / {@code H} a 2 octet signed / unsigned integer</li>
+ *     <li>{@code i} / {@code I} a 4 octet signed / unsigned integer, as is {@code l} / {@code L}</li>
+ *     <li>{@code q} / {@code Q} an 8 octet signed / unsigned integer</li>
+ *     <li>{@code f} a 4 octet float</li>
+ *     <li>{@code d} an 8 octet double</li>
+ *     <li>{@code s} binary data, where the count is its length in octets rather than a repeat count</li>
+ * </ul>
+ *
+ * For example {@code >I2HQd8s} is an unsigned 4 octet integer, two unsigned
+ * 2 octet integers, an unsigned 8 octet integer, a double, and 8 octets of binary data.
+ *
+ * Instances are immutable once compiled, and so may be reused
+ * for any number of records.
+ */
+@ThreadSafe
+public class RecordLayout {
+
+    /**
+     * The maximum number of octets that a record may span.
+     */
+    static final int MAX_RECORD_LEN = 1024 * 1024;  // 1MB
+
+    public enum FieldType {
+        BOOLEAN,
+        SIGNED_INTEGER,
+        UNSIGNED_INTEGER,
+        FLOAT,
+        DOUBLE,
+        BINARY
+    }
+
+    @ThreadSafe
+    public static class Field {
+        private final FieldType type;
+        private final int offset;
+        private final int size;
+
+        private Field(final FieldType type, final int offset, final int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        public FieldType getType() {
+            return type;
+        }
+
+        /**
+         * @return the offset of the field from the start of the record
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the size of the field in octets
+         */
+        public int getSize() {
+            return size;
+        }
+    }
+
+    private final ByteOrder order;
+    private final Field[] fields;
+    private final int size;
+
+    private RecordLayout(final ByteOrder order, final Field[] fields, final int size) {
+        this.order = order;
+        this.fields = fields;
+        this.size = size;
+    }
+
+    /**
+     * Compiles a layout.
+     *
+     * @param layout The layout
+     *
+     * @return the compiled layout
+     *
+     * @throws IllegalArgumentException if the layout is not valid
+     */
+    public static RecordLayout compile(final String layout) {
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        final List<Field> fields = new ArrayList<>();
+        long offset = 0;
+
+        int i = 0;
+        if(!layout.isEmpty()) {
+            switch(layout.charAt(0)) {
+                case '>':
+                case '!':
+                    i++;
+                    break;
+
+                case '<':
+                    order = ByteOrder.LITTLE_ENDIAN;
+                    i++;
+                    break;
+
+                case '=':
+                    order = ByteOrder.nativeOrder();
+                    i++;
+                    break;
+
+                default:
+            }
+        }
+
+        while(i < layout.length()) {
+            final char c = layout.charAt(i);
+            if(Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+
+            final int countStart = i;
+            while(i < layout.length() && layout.charAt(i) >= '0' && layout.charAt(i) <= '9') {
+                i++;
+            }
+            final int count;
+            if(i == countStart) {
+                count = 1;
+            } else {
+                try {
+                    count = Integer.parseInt(layout.substring(countStart, i));
+                } catch(final NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid count at: " + countStart);
+                }
+            }
+            if(i == layout.length()) {
+                throw new IllegalArgumentException("count without a type code at: " + countStart);
+            }
+
+            final char code = layout.charAt(i);
+            final FieldType type;
+            final int fieldSize;
+            switch(code) {
+                case 'x':
+                    type = null;
+                    fieldSize = 1;
+                    break;
+
+                case '?':
+                    type = FieldType.BOOLEAN;
+                    fieldSize = 1;
+                    break;
+
+                case 'b':
+                case 'B':
+                    type = code == 'b' ? FieldType.SIGNED_INTEGER : FieldType.UNSIGNED_INTEGER;
+                    fieldSize = 1;
+                    break;
+
+                case 'h':
+                case 'H':
+                    type = code == 'h' ? FieldType.SIGNED_INTEGER : FieldType.UNSIGNED_INTEGER;
+                    fieldSize = 2;
+                    break;
+
+                case 'i':
+                case 'I':
+                case 'l':
+                case 'L':
+                    type = code == 'i' || code == 'l' ? FieldType.SIGNED_INTEGER : FieldType.UNSIGNED_INTEGER;
+                    fieldSize = 4;
+                    break;
+
+                case 'q':
+                case 'Q':
+                    type = code == 'q' ? FieldType.SIGNED_INTEGER : FieldType.UNSIGNED_INTEGER;
+                    fieldSize = 8;
+                    break;
+
+                case 'f':
+                    type = FieldType.FLOAT;
+                    fieldSize = 4;
+                    break;
+
+                case 'd':
+                    type = FieldType.DOUBLE;
+                    fieldSize = 8;
+                    break;
+
+                case 's':
+                    type = FieldType.BINARY;
+                    fieldSize = count;
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("unknown type code '" + code + "' at: " + i);
+            }
+            i++;
+
+            if(type == FieldType.BINARY) {
+                fields.add(new Field(type, (int)offset, fieldSize));
+                offset += fieldSize;
+            } else {
+                for(int j = 0; j < count && offset <= MAX_RECORD_LEN; j++) {
+                    if(type != null) {
+                        fields.add(new Field(type, (int)offset, fieldSize));
+                    }
+                    offset += fieldSize;
+                }
+            }
+
+            if(offset > MAX_RECORD_LEN) {
+                throw new IllegalArgumentException("record spans more than the maximum of " + MAX_RECORD_LEN + " octets");
+            }
+        }
+
+        return new RecordLayout(order, fields.toArray(new Field[fields.size()]), (int)offset);
+    }
+
+    public ByteOrder getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the fields of the record, in order,
+     *     excluding any padding. Must not be modified.
+     */
+    public Field[] getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the size of the record in octets
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -34,6 +34,8 @@ import org.exist.xquery.XPathErrorProvider;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 import static org.exist.xquery.modules.expath.bin.ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE;
 
@@ -41,22 +43,22 @@ import static org.exist.xquery.modules.expath.bin.ExpathBinModule.ERROR_INDEX_OU
  * @author <a href="mailto:adam@evolvedbinary.com">Adam Retter</a>
  */
 @NotThreadSafe
-public class RegionFilterInputStream extends FilterInputStream {
+public class RegionFilterInputStream extends FilterInputStream implements TransferableInputStream {
 
     public static final int END_OF_STREAM = -1;
 
     // the region within `in` that is accessible to us
-    private final int regionOffset;
-    private final int regionLen;
+    private final long regionOffset;
+    private final long regionLen;
 
-    private int curOffset = 0;
+    private long curOffset = 0;
 
     /**
      * @param in The input stream to provide a region of
      * @param regionOffset The offset for the start of the region
      * @param regionLen The length of the region (starting at regionOffset) within the input stream, or -1 to extend the region to the end of the stream
      */
-    public RegionFilterInputStream(final InputStream in, final int regionOffset, final int regionLen) {
+    public RegionFilterInputStream(final InputStream in, final long regionOffset, final long regionLen) {
         super(in);
         this.regionOffset = regionOffset;
         this.regionLen = regionLen;
@@ -81,7 +83,7 @@ public class RegionFilterInputStream extends FilterInputStream {
             curOffset++;
         }
 
-        if(data == END_OF_STREAM && curOffset < regionOffset + regionLen) {
+        if(data == END_OF_STREAM && regionLen != END_OF_STREAM && curOffset < regionOffset + regionLen) {
             // reached end of stream before all bytes were read
             throw new IndexOutOfRangeException("Reached underlying END_OF_STREAM, before end of region");
         }
@@ -98,7 +100,7 @@ public class RegionFilterInputStream extends FilterInputStream {
         // restrict to within the region
         if(regionLen != END_OF_STREAM) {
             if(curOffset + len > regionOffset + regionLen) {
-                len = (regionOffset + regionLen) - curOffset;
+                len = (int)((regionOffset + regionLen) - curOffset);
                 if(len == 0) {
                     return END_OF_STREAM;
                 }
@@ -110,7 +112,7 @@ public class RegionFilterInputStream extends FilterInputStream {
             curOffset += read;
         }
 
-        if(read < len && curOffset < regionOffset + regionLen) {
+        if(read < len && regionLen != END_OF_STREAM && curOffset < regionOffset + regionLen) {
             // reached end of stream before all bytes were read
             throw new IndexOutOfRangeException("Reached underlying END_OF_STREAM, before end of region");
         }
@@ -124,11 +126,76 @@ public class RegionFilterInputStream extends FilterInputStream {
             seekRegionStart();
         }
 
-        if(n > regionLen) {
-            return in.skip(regionLen);
+        // restrict to within the region
+        long toSkip = n;
+        if(regionLen != END_OF_STREAM) {
+            toSkip = Math.min(n, (regionOffset + regionLen) - curOffset);
+        }
+
+        if(toSkip <= 0) {
+            return 0;
+        }
+
+        final long skipped = in.skip(toSkip);
+        if(skipped > 0) {
+            curOffset += skipped;
+        }
+        return skipped;
+    }
+
+    /**
+     * Transfers all of the remaining data in the region.
+     *
+     * @param out the destination for the data
+     *
+     * @return the number of octets transferred
+     */
+    public long transferTo(final OutputStream out) throws IOException {
+        return transferTo(out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Transfers all of the remaining data in the region.
+     *
+     * @param target the destination for the data
+     *
+     * @return the number of octets transferred
+     */
+    public long transferTo(final WritableByteChannel target) throws IOException {
+        return transferTo(target, Long.MAX_VALUE);
+    }
+
+    @Override
+    public long transferTo(final OutputStream out, final long maxLength) throws IOException {
+        final long count = transferCount(maxLength);
+        return transferred(count, Utils.transfer(in, out, count));
+    }
+
+    @Override
+    public long transferTo(final WritableByteChannel target, final long maxLength) throws IOException {
+        final long count = transferCount(maxLength);
+        return transferred(count, Utils.transfer(in, target, count));
+    }
+
+    private long transferCount(final long maxLength) throws IOException {
+        if(curOffset == 0) {
+            seekRegionStart();
+        }
+
+        if(regionLen != END_OF_STREAM) {
+            return Math.min(maxLength, (regionOffset + regionLen) - curOffset);
         } else {
-            return in.skip(n);
+            return maxLength;
+        }
+    }
+
+    private long transferred(final long count, final long transferred) throws IndexOutOfRangeException {
+        curOffset += transferred;
+        if(transferred < count && regionLen != END_OF_STREAM && curOffset < regionOffset + regionLen) {
+            // reached end of stream before all bytes were read
+            throw new IndexOutOfRangeException("Reached underlying END_OF_STREAM, before end of region");
         }
+        return transferred;
     }
 
     @Override
@@ -138,8 +205,8 @@ public class RegionFilterInputStream extends FilterInputStream {
         }
 
         if(regionLen != END_OF_STREAM) {
-            final int availableInRegion = (regionOffset + regionLen) - curOffset;
-            return Math.min(in.available(), availableInRegion);
+            final long availableInRegion = (regionOffset + regionLen) - curOffset;
+            return (int)Math.min(in.available(), availableInRegion);
         } else {
             return in.available();
         }
@@ -150,21 +217,11 @@ public class RegionFilterInputStream extends FilterInputStream {
             return;
         }
 
-        int toSkip = regionOffset;
-
-        while(toSkip > 0) {
-            final int skipped = (int) in.skip(regionOffset);
-
-            if(skipped == END_OF_STREAM) {
-                return;
-            }
-
-            toSkip -= skipped;
-            curOffset += skipped;
-        }
+        final long skipped = Utils.skipFully(in, regionOffset);
+        curOffset += skipped;
 
-        if(toSkip > 0) {
-            throw new ArrayIndexOutOfBoundsException("Reached end of stream whilst trying to seek to region start. regionOffset=" + regionOffset + ", curOffset=" + curOffset);
+        if(skipped < regionOffset) {
+            throw new IndexOutOfRangeException("Reached end of stream whilst trying to seek to region start. regionOffset=" + regionOffset + ", curOffset=" + curOffset);
         }
     }
 
@@ -0,0 +1,110 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Binary data consisting of a single octet repeated, which
+ * is generated as it is read rather than held in memory.
+ */
+public class RepeatingByteBinarySource implements BinarySource {
+
+    private final byte octet;
+    private final long length;
+
+    /**
+     * @param octet the octet to repeat
+     * @param length the number of times to repeat the octet
+     */
+    public RepeatingByteBinarySource(final byte octet, final long length) {
+        this.octet = octet;
+        this.length = length;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream open(final long offset) throws RegionFilterInputStream.IndexOutOfRangeException {
+        if(offset > length) {
+            throw new RegionFilterInputStream.IndexOutOfRangeException("offset: " + offset + " is beyond the end of the data: " + length);
+        }
+        return new RepeatingByteInputStream(octet, length - offset);
+    }
+
+    @NotThreadSafe
+    private static class RepeatingByteInputStream extends InputStream {
+        private final byte octet;
+        private long remaining;
+
+        RepeatingByteInputStream(final byte octet, final long remaining) {
+            this.octet = octet;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() {
+            if(remaining == 0) {
+                return -1;
+            }
+            remaining--;
+            return octet & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if(len == 0) {
+                return 0;
+            }
+            if(remaining == 0) {
+                return -1;
+            }
+            final int n = (int)Math.min(len, remaining);
+            Arrays.fill(b, off, off + n, octet);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int)Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,601 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.BinaryValueFromInputStream;
+import org.exist.xquery.value.BinaryValueManager;
+import org.exist.xquery.value.BinaryValueType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A binary value which is composed of a flat list of segments,
+ * each of which is a region of some other binary data.
+ *
+ * Composing binary values, e.g. by bin:part, bin:join or
+ * bin:insert-before, rewrites the list of segments rather than
+ * wrapping one stream around another, so reading a value which
+ * was built by many operations does not recurse through a chain
+ * of streams.
+ */
+public class SegmentedBinaryValue extends BinaryValueFromInputStream {
+
+    public static final long UNKNOWN_LENGTH = -1;
+
+    private static final Segment[] NO_SEGMENTS = new Segment[0];
+
+    private final Segment[] segments;
+    private final long length;
+    private final Optional<ReadAhead> readAhead;
+
+    private SegmentedBinaryValue(final BinaryValueManager manager, final BinaryValueType binaryValueType, final InputStream is, final Segment[] segments, final long length, final Optional<ReadAhead> readAhead) throws XPathException {
+        super(manager, binaryValueType, is);
+        this.segments = segments;
+        this.length = length;
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * @param manager the binary value manager
+     * @param binaryValueType the type of the binary value
+     * @param segments the segments of the binary value, in order
+     * @param readAhead the configuration for reading ahead through the segments, if enabled
+     *
+     * @return the binary value
+     */
+    public static SegmentedBinaryValue getInstance(final BinaryValueManager manager, final BinaryValueType binaryValueType, final List<Segment> segments, final Optional<ReadAhead> readAhead) throws XPathException {
+        final Segment[] segs = segments.toArray(NO_SEGMENTS);
+
+        long length = 0;
+        for(final Segment segment : segs) {
+            if(segment.length == UNKNOWN_LENGTH) {
+                length = UNKNOWN_LENGTH;
+                break;
+            }
+            length += segment.length;
+        }
+
+        final InputStream is;
+        try {
+            is = open(segs, 0, readAhead);
+        } catch(final IOException e) {
+            throw new XPathException((Expression) null, e);
+        }
+
+        final SegmentedBinaryValue binaryValue = new SegmentedBinaryValue(manager, binaryValueType, is, segs, length, readAhead);
+        manager.registerBinaryValueInstance(binaryValue);
+        return binaryValue;
+    }
+
+    /**
+     * @return the length of the binary data in octets,
+     *     or {@link #UNKNOWN_LENGTH} if it can only be determined
+     *     by reading the data
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the segments of the binary data
+     */
+    Segment[] getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return the binary data as a source which can be read from an offset,
+     *     if its length is known
+     */
+    public Optional<BinarySource> getSource() {
+        if(segments.length == 1 && segments[0].source != null && segments[0].offset == 0 && segments[0].length == segments[0].source.getLength()) {
+            // the whole of a single source
+            return Optional.of(segments[0].source);
+        }
+
+        if(length == UNKNOWN_LENGTH) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new BinarySource() {
+            @Override
+            public long getLength() {
+                return length;
+            }
+
+            @Override
+            public InputStream open(final long offset) throws IOException {
+                if(offset > length) {
+                    throw new RegionFilterInputStream.IndexOutOfRangeException("offset: " + offset + " is beyond the end of the data: " + length);
+                }
+                return SegmentedBinaryValue.open(segments, offset, readAhead);
+            }
+        });
+    }
+
+    /**
+     * Streams the binary data directly from its segments, so
+     * that segments which are held in files can be transferred
+     * without copying them through user space.
+     */
+    @Override
+    public void streamBinaryTo(final OutputStream os) throws IOException {
+        try(final InputStream is = open(segments, 0, readAhead)) {
+            Utils.transfer(is, os, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Opens a stream over segments, starting from an offset.
+     *
+     * Segments before the offset are not opened, and the segment
+     * containing the offset is opened at the offset.
+     *
+     * @param segments the segments
+     * @param offset the offset to start reading from
+     *
+     * @return the stream, which the caller must close
+     */
+    static InputStream open(final Segment[] segments, final long offset) throws IOException {
+        return open(segments, offset, Optional.empty());
+    }
+
+    private static InputStream open(final Segment[] segments, final long offset, final Optional<ReadAhead> readAhead) throws IOException {
+        long pos = 0;
+        int idx = 0;
+        while(idx < segments.length && segments[idx].length != UNKNOWN_LENGTH && pos + segments[idx].length <= offset) {
+            pos += segments[idx].length;
+            idx++;
+        }
+
+        if(idx == segments.length) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        // regions of the same data share a cursor, so that e.g. the region
+        // which follows an insertion continues from where the preceding
+        // region of the same data finished, rather than opening it again
+        final Map<Object, SharedCursor> cursors = new IdentityHashMap<>();
+        final JoinFilterInputStream.InputStreamSupplier[] ins = new JoinFilterInputStream.InputStreamSupplier[segments.length - idx];
+        final SharedCursor[] insCursors = new SharedCursor[ins.length];
+        final boolean[] insBackground = new boolean[ins.length];
+        for(int i = 0; i < ins.length; i++) {
+            final Segment segment = segments[idx + i];
+            final long segOffset = i == 0 ? offset - pos : 0;
+            final SharedCursor cursor = cursors.computeIfAbsent(segment.getData(), data -> new SharedCursor(segment));
+            cursor.retain();
+            insCursors[i] = cursor;
+            insBackground[i] = segment.isReadableInBackground();
+            ins[i] = () -> new CursorRegionInputStream(cursor, segment.offset + segOffset, segment.length == UNKNOWN_LENGTH ? UNKNOWN_LENGTH : segment.length - segOffset);
+        }
+
+        if(ins.length == 1) {
+            return ins[0].get();
+        }
+
+        // a region is not read ahead whilst the preceding region of the same data is read,
+        // and only data in files or in memory is read by the threads which read ahead
+        final Optional<ReadAhead.Prefetcher> prefetcher = readAhead.map(ra -> ra.prefetch(ins, insCursors, insBackground));
+
+        // each segment is only opened when it is reached, and is closed once it has been read
+        return new JoinFilterInputStream(prefetcher.isPresent() ? prefetcher.get().getSuppliers() : ins) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                    if(prefetcher.isPresent()) {
+                        prefetcher.get().close();
+                    }
+                } finally {
+                    // release any data which was held for segments that were never reached
+                    for(final SharedCursor cursor : cursors.values()) {
+                        cursor.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Extracts a region of segments.
+     *
+     * @param segments the segments
+     * @param offset the offset of the start of the region
+     * @param len the length of the region, or {@link #UNKNOWN_LENGTH} to extend the region to the end of the segments
+     *
+     * @return the segments of the region, or empty if a segment of unknown
+     *     length precedes the end of the region, in which case the region
+     *     cannot be determined without reading the data
+     */
+    static Optional<List<Segment>> region(final Segment[] segments, final long offset, final long len) {
+        final List<Segment> region = new ArrayList<>();
+        long pos = 0;
+        long remaining = len;
+        for(int i = 0; i < segments.length && remaining != 0; i++) {
+            final Segment segment = segments[i];
+
+            if(segment.length == UNKNOWN_LENGTH) {
+                if(i < segments.length - 1) {
+                    // we can't know where the following segments start
+                    return Optional.empty();
+                }
+                append(region, segment.region(Math.max(0, offset - pos), remaining));
+                break;
+            }
+
+            final long end = pos + segment.length;
+            if(end > offset) {
+                final long segOffset = Math.max(0, offset - pos);
+                final long segLen = remaining == UNKNOWN_LENGTH ? segment.length - segOffset : Math.min(remaining, segment.length - segOffset);
+                append(region, segment.region(segOffset, segLen));
+                if(remaining != UNKNOWN_LENGTH) {
+                    remaining -= segLen;
+                }
+            }
+            pos = end;
+        }
+        return Optional.of(region);
+    }
+
+    /**
+     * Appends a segment to a list of segments, merging it
+     * with the last segment if they are contiguous regions
+     * of the same data.
+     *
+     * @param segments the list of segments
+     * @param segment the segment to append
+     */
+    static void append(final List<Segment> segments, final Segment segment) {
+        if(segment.length == 0) {
+            return;
+        }
+
+        if(!segments.isEmpty()) {
+            final int lastIdx = segments.size() - 1;
+            final Segment last = segments.get(lastIdx);
+            if(last.isContinuedBy(segment)) {
+                segments.set(lastIdx, new Segment(last.source, last.value, last.offset, segment.length == UNKNOWN_LENGTH ? UNKNOWN_LENGTH : last.length + segment.length));
+                return;
+            }
+        }
+        segments.add(segment);
+    }
+
+    /**
+     * A region of some binary data.
+     */
+    public static final class Segment {
+        // exactly one of source or value is set
+        private final BinarySource source;
+        private final BinaryValue value;
+        private final long offset;
+        private final long length;
+
+        private Segment(final BinarySource source, final BinaryValue value, final long offset, final long length) {
+            this.source = source;
+            this.value = value;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @param source binary data which can be read from an offset
+         *
+         * @return a segment of all of the source
+         */
+        public static Segment of(final BinarySource source) {
+            return new Segment(source, null, 0, source.getLength());
+        }
+
+        /**
+         * @param value binary data which can only be read from its start
+         * @param length the length of the binary data, or {@link #UNKNOWN_LENGTH}
+         *
+         * @return a segment of all of the binary value
+         */
+        public static Segment of(final BinaryValue value, final long length) {
+            return new Segment(null, value, 0, length);
+        }
+
+        /**
+         * @return the length of the segment in octets, or {@link #UNKNOWN_LENGTH}
+         */
+        public long getLength() {
+            return length;
+        }
+
+        private Segment region(final long regionOffset, final long regionLen) {
+            final long len;
+            if(regionLen != UNKNOWN_LENGTH) {
+                len = regionLen;
+            } else if(length != UNKNOWN_LENGTH) {
+                len = length - regionOffset;
+            } else {
+                len = UNKNOWN_LENGTH;
+            }
+            return new Segment(source, value, offset + regionOffset, len);
+        }
+
+        private boolean isContinuedBy(final Segment next) {
+            return length != UNKNOWN_LENGTH
+                    && source == next.source
+                    && value == next.value
+                    && offset + length == next.offset;
+        }
+
+        private Object getData() {
+            return source != null ? source : value;
+        }
+
+        /**
+         * @return true if the data is held in a file or in memory, and so may be
+         *     read by a thread other than that of the query, whereas a binary value
+         *     may be backed by the database and only be readable whilst holding its broker,
+         *     and a binary document is only opened whilst the query's thread holds its lock
+         */
+        private boolean isReadableInBackground() {
+            return (source instanceof FileBinarySource && !(source instanceof BinaryDocumentSource)) || source instanceof ByteArrayBinarySource;
+        }
+
+        /**
+         * Opens the data which the segment is a region of.
+         *
+         * @param dataOffset the offset within the data
+         */
+        private InputStream openData(final long dataOffset) throws IOException {
+            if(source != null) {
+                return source.open(dataOffset);
+            } else {
+                return Utils.openInputStream(value, dataOffset);
+            }
+        }
+    }
+
+    /**
+     * An open stream of some binary data, which is shared
+     * by the regions of that data which are read in order.
+     *
+     * The stream is only re-opened when a region starts
+     * before the current position. Regions may be read
+     * from different threads when reading ahead.
+     */
+    @ThreadSafe
+    private static final class SharedCursor {
+        private final Segment data;
+        private int references = 0;
+        private InputStream in = null;
+        private long position;
+
+        SharedCursor(final Segment data) {
+            this.data = data;
+        }
+
+        private InputStream seek(final long offset) throws IOException {
+            if(in != null && offset < position) {
+                in.close();
+                in = null;
+            }
+
+            if(in == null) {
+                in = data.openData(offset);
+                position = offset;
+            } else if(offset > position) {
+                position += Utils.skipFully(in, offset - position);
+                if(position < offset) {
+                    throw new RegionFilterInputStream.IndexOutOfRangeException("Reached end of stream whilst trying to seek to region start. regionOffset=" + offset + ", curOffset=" + position);
+                }
+            }
+            return in;
+        }
+
+        synchronized int read(final long offset) throws IOException {
+            final int data = seek(offset).read();
+            if(data != RegionFilterInputStream.END_OF_STREAM) {
+                position++;
+            }
+            return data;
+        }
+
+        synchronized int read(final long offset, final byte[] b, final int off, final int len) throws IOException {
+            final int read = seek(offset).read(b, off, len);
+            if(read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        synchronized long skip(final long offset, final long n) throws IOException {
+            final long skipped = seek(offset).skip(n);
+            if(skipped > 0) {
+                position += skipped;
+            }
+            return skipped;
+        }
+
+        synchronized long transferTo(final long offset, final OutputStream out, final long maxLength) throws IOException {
+            final long transferred = Utils.transfer(seek(offset), out, maxLength);
+            position += transferred;
+            return transferred;
+        }
+
+        synchronized long transferTo(final long offset, final WritableByteChannel target, final long maxLength) throws IOException {
+            final long transferred = Utils.transfer(seek(offset), target, maxLength);
+            position += transferred;
+            return transferred;
+        }
+
+        synchronized void retain() {
+            references++;
+        }
+
+        synchronized void release() throws IOException {
+            if(--references == 0) {
+                close();
+            }
+        }
+
+        synchronized void close() throws IOException {
+            if(in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * A region of binary data, read through a {@link SharedCursor}.
+     *
+     * The cursor must be retained for the region before it is
+     * constructed, and is released when the region is closed.
+     */
+    @NotThreadSafe
+    private static final class CursorRegionInputStream extends InputStream implements TransferableInputStream {
+        private final SharedCursor cursor;
+        private final long regionOffset;
+        private final long regionLen;
+        private long curOffset = 0;
+        private boolean closed = false;
+
+        CursorRegionInputStream(final SharedCursor cursor, final long regionOffset, final long regionLen) {
+            this.cursor = cursor;
+            this.regionOffset = regionOffset;
+            this.regionLen = regionLen;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(regionLen != UNKNOWN_LENGTH && curOffset == regionLen) {
+                return RegionFilterInputStream.END_OF_STREAM;
+            }
+
+            final int data = cursor.read(regionOffset + curOffset);
+            if(data == RegionFilterInputStream.END_OF_STREAM) {
+                checkEndOfRegion();
+            } else {
+                curOffset++;
+            }
+            return data;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+
+            int toRead = len;
+            if(regionLen != UNKNOWN_LENGTH) {
+                if(curOffset == regionLen) {
+                    return RegionFilterInputStream.END_OF_STREAM;
+                }
+                toRead = (int)Math.min(len, regionLen - curOffset);
+            }
+
+            final int read = cursor.read(regionOffset + curOffset, b, off, toRead);
+            if(read == RegionFilterInputStream.END_OF_STREAM) {
+                checkEndOfRegion();
+            } else {
+                curOffset += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long toSkip = n;
+            if(regionLen != UNKNOWN_LENGTH) {
+                toSkip = Math.min(n, regionLen - curOffset);
+            }
+            if(toSkip <= 0) {
+                return 0;
+            }
+
+            final long skipped = cursor.skip(regionOffset + curOffset, toSkip);
+            if(skipped > 0) {
+                curOffset += skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public long transferTo(final OutputStream out, final long maxLength) throws IOException {
+            final long count = transferCount(maxLength);
+            return transferred(count, count == 0 ? 0 : cursor.transferTo(regionOffset + curOffset, out, count));
+        }
+
+        @Override
+        public long transferTo(final WritableByteChannel target, final long maxLength) throws IOException {
+            final long count = transferCount(maxLength);
+            return transferred(count, count == 0 ? 0 : cursor.transferTo(regionOffset + curOffset, target, count));
+        }
+
+        private long transferCount(final long maxLength) {
+            if(regionLen != UNKNOWN_LENGTH) {
+                return Math.min(maxLength, regionLen - curOffset);
+            } else {
+                return maxLength;
+            }
+        }
+
+        private long transferred(final long count, final long transferred) throws RegionFilterInputStream.IndexOutOfRangeException {
+            curOffset += transferred;
+            if(transferred < count) {
+                checkEndOfRegion();
+            }
+            return transferred;
+        }
+
+        private void checkEndOfRegion() throws RegionFilterInputStream.IndexOutOfRangeException {
+            if(regionLen != UNKNOWN_LENGTH && curOffset < regionLen) {
+                // reached end of stream before all bytes were read
+                throw new RegionFilterInputStream.IndexOutOfRangeException("Reached underlying END_OF_STREAM, before end of region");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!closed) {
+                closed = true;
+                cursor.release();
+            }
+        }
+    }
+}
@@ -30,17 +30,24 @@ import org.exist.xquery.BasicFunction;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.math.BigInteger;
 import java.nio.charset.Charset;
-import java.nio.charset.UnsupportedCharsetException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.exist.xquery.FunctionDSL.*;
+import static java.nio.charset.StandardCharsets.UTF_16BE;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.exist.xquery.modules.expath.bin.ExpathBinModule.*;
 import static org.exist.xquery.modules.expath.bin.Utils.*;
@@ -50,7 +57,14 @@ import static org.exist.xquery.modules.expath.bin.Utils.*;
  */
 public class TextCodingFunctions extends BasicFunction {
 
+    /**
+     * The encoding name which requests that the encoding
+     * is detected from a byte order mark.
+     */
+    static final String AUTO_ENCODING = "auto";
+
     private static final FunctionParameterSequenceType FS_CODING_PARAM_ENCODING = param("encoding", Type.STRING, "The character set encoding");
+    private static final FunctionParameterSequenceType FS_DECODING_PARAM_ENCODING = param("encoding", Type.STRING, "The character set encoding, or '" + AUTO_ENCODING + "' to detect UTF-8, UTF-16 or UTF-32 from a byte order mark, otherwise decoding as UTF-8");
 
     private static final String FS_DECODE_STRING_NAME = "decode-string";
     private static final FunctionParameterSequenceType FS_DECODE_STRING_PARAM_IN = optParam("in", Type.BASE64_BINARY, "The binary data");
@@ -65,16 +79,16 @@ public class TextCodingFunctions extends BasicFunction {
                     ),
                     arity(
                             FS_DECODE_STRING_PARAM_IN,
-                            FS_CODING_PARAM_ENCODING
+                            FS_DECODING_PARAM_ENCODING
                     ),
                     arity(
                             FS_DECODE_STRING_PARAM_IN,
-                            FS_CODING_PARAM_ENCODING,
+                            FS_DECODING_PARAM_ENCODING,
                             FS_DECODE_STRING_PARAM_OFFSET
                     ),
                     arity(
                             FS_DECODE_STRING_PARAM_IN,
-                            FS_CODING_PARAM_ENCODING,
+                            FS_DECODING_PARAM_ENCODING,
                             FS_DECODE_STRING_PARAM_OFFSET,
                             param("size", Type.INTEGER, "The number of octets to decode")
                     )
@@ -98,6 +112,130 @@ public class TextCodingFunctions extends BasicFunction {
             )
     );
 
+    private static final String FS_DECODE_LINES_NAME = "decode-lines";
+    private static final FunctionParameterSequenceType FS_DECODE_PARAM_MAX = param("max", Type.INTEGER, "The maximum number of strings to decode, after which the rest of $in is not read");
+    static final FunctionSignature[] FS_DECODE_LINES = functionSignatures(
+            FS_DECODE_LINES_NAME,
+            "Decodes binary data in a given encoding as a sequence of lines. Lines are terminated by a line feed, a carriage return, or a carriage return followed by a line feed, which are not included in the lines.",
+            returnsOptMany(Type.STRING),
+            arities(
+                    arity(
+                            FS_DECODE_STRING_PARAM_IN,
+                            FS_DECODING_PARAM_ENCODING
+                    ),
+                    arity(
+                            FS_DECODE_STRING_PARAM_IN,
+                            FS_DECODING_PARAM_ENCODING,
+                            FS_DECODE_PARAM_MAX
+                    )
+            )
+    );
+
+    private static final String FS_DECODE_RECORDS_NAME = "decode-records";
+    private static final FunctionParameterSequenceType FS_DECODE_RECORDS_PARAM_SEPARATOR = param("separator", Type.STRING, "The separator between records");
+    static final FunctionSignature[] FS_DECODE_RECORDS = functionSignatures(
+            FS_DECODE_RECORDS_NAME,
+            "Decodes binary data in a given encoding as a sequence of records. Records are terminated by $separator, which is not included in the records.",
+            returnsOptMany(Type.STRING),
+            arities(
+                    arity(
+                            FS_DECODE_STRING_PARAM_IN,
+                            FS_DECODING_PARAM_ENCODING,
+                            FS_DECODE_RECORDS_PARAM_SEPARATOR
+                    ),
+                    arity(
+                            FS_DECODE_STRING_PARAM_IN,
+                            FS_DECODING_PARAM_ENCODING,
+                            FS_DECODE_RECORDS_PARAM_SEPARATOR,
+                            FS_DECODE_PARAM_MAX
+                    )
+            )
+    );
+
+    private static final String FS_DECODE_STRING_CHUNKS_NAME = "decode-string-chunks";
+    private static final FunctionParameterSequenceType FS_DECODE_STRING_CHUNKS_PARAM_CHARS_PER_CHUNK = param("chars-per-chunk", Type.INTEGER, "The number of characters in each string");
+    static final FunctionSignature[] FS_DECODE_STRING_CHUNKS = functionSignatures(
+            FS_DECODE_STRING_CHUNKS_NAME,
+            "Decodes binary data in a given encoding as a sequence of strings of $chars-per-chunk characters, the last of which may be shorter. A surrogate pair is never split between strings, so a string is one character shorter if it would otherwise end with half of a pair.",
+            returnsOptMany(Type.STRING),
+            arities(
+                    arity(
+                            FS_DECODE_STRING_PARAM_IN,
+                            FS_DECODING_PARAM_ENCODING,
+                            FS_DECODE_STRING_CHUNKS_PARAM_CHARS_PER_CHUNK
+                    ),
+                    arity(
+                            FS_DECODE_STRING_PARAM_IN,
+                            FS_DECODING_PARAM_ENCODING,
+                            FS_DECODE_STRING_CHUNKS_PARAM_CHARS_PER_CHUNK,
+                            FS_DECODE_PARAM_MAX
+                    )
+            )
+    );
+
+    private static final FunctionParameterSequenceType FS_DECODE_PAGE_PARAM_OFFSET = param("offset", Type.INTEGER, "The offset in octets to start decoding from, which is 0 or the next-offset of the previous page");
+    private static final FunctionParameterSequenceType FS_DECODE_PAGE_PARAM_MAX = param("max", Type.INTEGER, "The maximum number of strings in the page");
+    private static final String FS_DECODE_PAGE_RESULT_DESCRIPTION = " Returns a map with the entries 'strings', the strings of the page, 'encoding', the name of the encoding of the page, which is detected from a byte order mark at the start of $in if $encoding is '" + AUTO_ENCODING + "', 'UTF-16' or 'UTF-32', and which is to be passed as $encoding to decode the next page, and 'next-offset', the offset from which to decode the next page, which is absent once the end of $in is reached. Only the strings of one page are held in memory, so data which is far larger than the heap may be decoded page by page.";
+
+    private static final String FS_DECODE_LINES_PAGE_NAME = "decode-lines-page";
+    static final FunctionSignature FS_DECODE_LINES_PAGE = functionSignature(
+            FS_DECODE_LINES_PAGE_NAME,
+            "Decodes a page of lines, as bin:decode-lines, from an offset in binary data." + FS_DECODE_PAGE_RESULT_DESCRIPTION,
+            returnsOpt(Type.MAP),
+            FS_DECODE_STRING_PARAM_IN,
+            FS_DECODING_PARAM_ENCODING,
+            FS_DECODE_PAGE_PARAM_OFFSET,
+            FS_DECODE_PAGE_PARAM_MAX
+    );
+
+    private static final String FS_DECODE_RECORDS_PAGE_NAME = "decode-records-page";
+    static final FunctionSignature FS_DECODE_RECORDS_PAGE = functionSignature(
+            FS_DECODE_RECORDS_PAGE_NAME,
+            "Decodes a page of records, as bin:decode-records, from an offset in binary data." + FS_DECODE_PAGE_RESULT_DESCRIPTION,
+            returnsOpt(Type.MAP),
+            FS_DECODE_STRING_PARAM_IN,
+            FS_DECODING_PARAM_ENCODING,
+            FS_DECODE_RECORDS_PARAM_SEPARATOR,
+            FS_DECODE_PAGE_PARAM_OFFSET,
+            FS_DECODE_PAGE_PARAM_MAX
+    );
+
+    private static final String FS_DECODE_STRING_CHUNKS_PAGE_NAME = "decode-string-chunks-page";
+    static final FunctionSignature FS_DECODE_STRING_CHUNKS_PAGE = functionSignature(
+            FS_DECODE_STRING_CHUNKS_PAGE_NAME,
+            "Decodes a page of strings, as bin:decode-string-chunks, from an offset in binary data." + FS_DECODE_PAGE_RESULT_DESCRIPTION,
+            returnsOpt(Type.MAP),
+            FS_DECODE_STRING_PARAM_IN,
+            FS_DECODING_PARAM_ENCODING,
+            FS_DECODE_STRING_CHUNKS_PARAM_CHARS_PER_CHUNK,
+            FS_DECODE_PAGE_PARAM_OFFSET,
+            FS_DECODE_PAGE_PARAM_MAX
+    );
+
+    private static final String PAGE_KEY_STRINGS = "strings";
+    private static final String PAGE_KEY_ENCODING = "encoding";
+    private static final String PAGE_KEY_NEXT_OFFSET = "next-offset";
+    private static final long NO_NEXT_OFFSET = -1;
+
+    private static final int DECODE_BUFFER_SIZE = 8 * 1024;
+
+    // the largest data which is decoded in one step, rather than streamed through a decoder
+    private static final int DIRECT_DECODE_MAX = CharsetDecodingReader.BUFFER_SIZE;
+
+    // the longest decoded string
+    private static final int MAX_STRING_LENGTH = Integer.MAX_VALUE - 8;
+
+    // the largest chunk of characters into which a long string is decoded
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int CHARSET_CACHE_SIZE = 64;
+
+    // resolved charsets, shared between queries; names which are not recognized map to empty
+    private static final Map<String, Optional<Charset>> CHARSETS = new LruCache<>(CHARSET_CACHE_SIZE);
+
+    // reused between calls, as a function is only evaluated by one thread at a time
+    private CharsetDecoder decoder = null;
+
     public TextCodingFunctions(final XQueryContext context, final FunctionSignature signature) {
         super(context, signature);
     }
@@ -108,7 +246,7 @@ public class TextCodingFunctions extends BasicFunction {
             case FS_DECODE_STRING_NAME:
                 final Optional<BinaryValue> inBase64 = getBinaryArg(args, 0);
                 if(inBase64.isPresent()) {
-                    Optional<Charset> encoding = Optional.empty();
+                    Optional<Charset> encoding = Optional.of(UTF_8);
                     Optional<BigInteger> offset = Optional.empty();
                     Optional<BigInteger> size = Optional.empty();
 
@@ -120,12 +258,7 @@ public class TextCodingFunctions extends BasicFunction {
                             offset = getIntegerArg(args, 2);
 
                         case 2:
-                            final Optional<String> encodingString = getStringArg(args, 1);
-                            try {
-                                encoding = encodingString.map(Charset::forName);
-                            } catch (final UnsupportedCharsetException e) {
-                                throw new XPathException(this, ERROR_UNKNOWN_ENCODING, "$encoding is not recognized:" + encodingString.get());
-                            }
+                            encoding = getDecodingCharsetArg(args, 1);
 
                         default:
                     }
@@ -146,16 +279,11 @@ public class TextCodingFunctions extends BasicFunction {
             case FS_ENCODE_STRING_NAME:
                 final Optional<String> inString = getStringArg(args, 0);
                 if(inString.isPresent()) {
-                    final Optional<Charset> encoding;
+                    final Charset encoding;
                     if(getArgumentCount() == 2) {
-                        final Optional<String> encodingString = getStringArg(args, 1);
-                        try {
-                            encoding = encodingString.map(Charset::forName);
-                        } catch (final UnsupportedCharsetException e) {
-                            throw new XPathException(this, ERROR_UNKNOWN_ENCODING, "$encoding is not recognized:" + encodingString.get());
-                        }
+                        encoding = getCharsetArg(args, 1);
                     } else {
-                        encoding = Optional.empty();
+                        encoding = UTF_8;
                     }
 
                     return encode(inString.get(), encoding);
@@ -164,36 +292,603 @@ public class TextCodingFunctions extends BasicFunction {
                     return Sequence.EMPTY_SEQUENCE;
                 }
 
+            case FS_DECODE_LINES_NAME:
+            case FS_DECODE_RECORDS_NAME:
+                final Optional<BinaryValue> inRecords = getBinaryArg(args, 0);
+                if(inRecords.isPresent()) {
+                    final Optional<Charset> encoding = getDecodingCharsetArg(args, 1);
+
+                    final Optional<String> separator;
+                    final int maxIdx;
+                    if(getName().getLocalPart().equals(FS_DECODE_RECORDS_NAME)) {
+                        separator = getSeparatorArg(args, 2);
+                        maxIdx = 3;
+                    } else {
+                        separator = Optional.empty();
+                        maxIdx = 2;
+                    }
+
+                    return decodeRecords(inRecords.get(), encoding, separator, 0, getMaxArg(args, maxIdx)).strings;
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
+            case FS_DECODE_LINES_PAGE_NAME:
+            case FS_DECODE_RECORDS_PAGE_NAME:
+                final Optional<BinaryValue> inRecordsPage = getBinaryArg(args, 0);
+                if(inRecordsPage.isPresent()) {
+                    final Optional<Charset> encoding = getDecodingCharsetArg(args, 1);
+
+                    final Optional<String> separator;
+                    final int offsetIdx;
+                    if(getName().getLocalPart().equals(FS_DECODE_RECORDS_PAGE_NAME)) {
+                        separator = getSeparatorArg(args, 2);
+                        offsetIdx = 3;
+                    } else {
+                        separator = Optional.empty();
+                        offsetIdx = 2;
+                    }
+
+                    final long offset = getPageOffsetArg(args, offsetIdx);
+                    return toMap(decodeRecords(inRecordsPage.get(), encoding, separator, offset, getMaxArg(args, offsetIdx + 1)));
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
+            case FS_DECODE_STRING_CHUNKS_NAME:
+            case FS_DECODE_STRING_CHUNKS_PAGE_NAME:
+                final Optional<BinaryValue> inChunks = getBinaryArg(args, 0);
+                if(inChunks.isPresent()) {
+                    final Optional<Charset> encoding = getDecodingCharsetArg(args, 1);
+
+                    final BigInteger charsPerChunk = getIntegerArg(args, 2).get();
+                    if(charsPerChunk.signum() < 0) {
+                        throw new XPathException(this, ERROR_NEGATIVE_SIZE, "$chars-per-chunk is negative:" + charsPerChunk);
+                    } else if(charsPerChunk.signum() == 0) {
+                        throw new XPathException(this, ERROR_CONVERSION_ERROR, "$chars-per-chunk must not be zero");
+                    }
+                    final int chunkSize = charsPerChunk.min(BigInteger.valueOf(MAX_STRING_LENGTH)).intValue();
+
+                    if(getName().getLocalPart().equals(FS_DECODE_STRING_CHUNKS_PAGE_NAME)) {
+                        final long offset = getPageOffsetArg(args, 3);
+                        return toMap(decodeChunks(inChunks.get(), encoding, chunkSize, offset, getMaxArg(args, 4)));
+                    }
+                    return decodeChunks(inChunks.get(), encoding, chunkSize, 0, getMaxArg(args, 3)).strings;
+                } else {
+                    return Sequence.EMPTY_SEQUENCE;
+                }
+
             default:
                 throw new XPathException(this, "No function: " + getName() + "#" + getSignature().getArgumentCount());
         }
     }
 
+    /**
+     * Decodes binary data as a string.
+     *
+     * @param binaryValue the binary data
+     * @param encoding the encoding of the data, or empty to detect it from a byte order mark
+     * @param offset the offset of the data to decode
+     * @param size the number of octets to decode
+     *
+     * @return the decoded string
+     */
     private StringValue decode(final BinaryValue binaryValue, final Optional<Charset> encoding, final Optional<BigInteger> offset, final Optional<BigInteger> size) throws XPathException {
-        final InputStream is;
-        if(offset.isPresent()) {
-            final int off = offset.map(BigInteger::intValue).get();
-            is = new RegionFilterInputStream(binaryValue.getInputStream(), off, size.map(BigInteger::intValue).orElse(-1));
+        final long off = offset.isPresent() ? toLong(this, offset.get(), "$offset") : 0;
+        final long len = size.isPresent() ? toLong(this, size.get(), "$size") : RegionFilterInputStream.END_OF_STREAM;
+
+        // the number of octets to decode, if it is known in advance
+        final long expectedLen;
+        if(len != RegionFilterInputStream.END_OF_STREAM) {
+            expectedLen = len;
         } else {
-            is = binaryValue.getInputStream();
+            expectedLen = getKnownLength(context, binaryValue).map(length -> Math.max(0, length - off)).orElse((long)RegionFilterInputStream.END_OF_STREAM);
         }
 
-        final byte buf[] = new byte[4096];
-        try(final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            int read = -1;
-            while ((read = is.read(buf)) != -1) {
-                baos.write(buf, 0, read);
+        if(expectedLen != RegionFilterInputStream.END_OF_STREAM && expectedLen <= DIRECT_DECODE_MAX) {
+            return decodeDirect(binaryValue, encoding, off, (int)expectedLen);
+        }
+
+        // the reader closes the stream
+        try(final CharsetDecodingReader reader = newReader(openInputStream(context, binaryValue, off), encoding, len, off)) {
+            return new StringValue(readString(reader));
+        } catch(final RegionFilterInputStream.IndexOutOfRangeException e) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset + $size is greater than the size of binary data $in");
+        } catch(final IOException ioe) {
+            throw new XPathException(this, ioe);
+        }
+    }
+
+    /**
+     * Reads all of the characters from a reader as a string.
+     *
+     * The characters are read into chunks, which are copied once into the
+     * string, rather than into a builder, which is either presized for more
+     * characters than the data holds, or copied each time that it grows.
+     *
+     * @param reader the reader
+     *
+     * @return the string
+     */
+    private static String readString(final CharsetDecodingReader reader) throws IOException {
+        final List<char[]> chunks = new ArrayList<>();
+        long total = 0;
+
+        char[] chunk = new char[DECODE_BUFFER_SIZE];
+        int len = 0;
+        int read;
+        while((read = reader.read(chunk, len, chunk.length - len)) != CharsetDecodingReader.END_OF_STREAM) {
+            len += read;
+            if(len == chunk.length) {
+                chunks.add(chunk);
+                total += len;
+                if(total > MAX_STRING_LENGTH) {
+                    throw new IOException("The decoded string is longer than the longest string: " + MAX_STRING_LENGTH);
+                }
+                chunk = new char[Math.min(MAX_CHUNK_SIZE, 2 * chunk.length)];
+                len = 0;
             }
+        }
+
+        if(chunks.isEmpty()) {
+            return new String(chunk, 0, len);
+        }
+
+        if(total + len > MAX_STRING_LENGTH) {
+            throw new IOException("The decoded string is longer than the longest string: " + MAX_STRING_LENGTH);
+        }
+        final char[] chars = new char[(int)(total + len)];
+        int pos = 0;
+        for(int i = 0; i < chunks.size(); i++) {
+            // released as soon as it is copied
+            final char[] full = chunks.set(i, null);
+            System.arraycopy(full, 0, chars, pos, full.length);
+            pos += full.length;
+        }
+        System.arraycopy(chunk, 0, chars, pos, len);
+        return new String(chars);
+    }
 
-            return new StringValue(new String(baos.toByteArray(), encoding.orElse(UTF_8)));
+    /**
+     * Decodes data which fits in a single buffer in one step, so that
+     * the JDK's own fast paths for US-ASCII, ISO-8859-1 and UTF-8 apply.
+     */
+    private StringValue decodeDirect(final BinaryValue binaryValue, final Optional<Charset> encoding, final long off, final int len) throws XPathException {
+        final byte[] buf = new byte[len];
+        try {
+            readFully(context, binaryValue, off, buf, len);
         } catch(final RegionFilterInputStream.IndexOutOfRangeException e) {
             throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset + $size is greater than the size of binary data $in");
         } catch(final IOException ioe) {
             throw new XPathException(this, ioe);
         }
+
+        if(encoding.isPresent()) {
+            return new StringValue(new String(buf, encoding.get()));
+        }
+
+        final Optional<ByteOrderMark> bom = ByteOrderMark.detect(buf, 0, len);
+        final int markLen = bom.map(ByteOrderMark::length).orElse(0);
+        return new StringValue(new String(buf, markLen, len - markLen, bom.map(ByteOrderMark::getCharset).orElse(UTF_8)));
+    }
+
+    /**
+     * Creates a reader which decodes an input stream.
+     *
+     * When the encoding is to be detected, the byte order mark is read
+     * from the start of the stream and is not decoded.
+     *
+     * @param is the input stream, which is closed by the reader
+     * @param encoding the encoding of the data, or empty to detect it from a byte order mark
+     * @param len the number of octets to decode, or {@link CharsetDecodingReader#END_OF_STREAM}
+     * @param offset the offset in the data of the start of the input stream
+     *
+     * @return the reader
+     */
+    private CharsetDecodingReader newReader(final InputStream is, final Optional<Charset> encoding, final long len, final long offset) throws IOException {
+        if(encoding.isPresent()) {
+            return new CharsetDecodingReader(is, getDecoder(encoding.get()), len, offset);
+        }
+
+        try {
+            final PushbackInputStream pis = new PushbackInputStream(is, ByteOrderMark.MAX_LENGTH);
+            final Optional<ByteOrderMark> bom = ByteOrderMark.read(pis, len);
+            final long remaining = bom.isPresent() && len != CharsetDecodingReader.END_OF_STREAM ? len - bom.get().length() : len;
+            final long position = offset + bom.map(ByteOrderMark::length).orElse(0);
+            return new CharsetDecodingReader(pis, getDecoder(bom.map(ByteOrderMark::getCharset).orElse(UTF_8)), remaining, position);
+        } catch(final IOException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a reader which decodes a page of data.
+     *
+     * A byte order mark is only found at the start of the data and not at the offset of
+     * a later page, so when the encoding is to be detected, or its byte order is given by
+     * a byte order mark, the mark is read from the start of the data whatever the offset.
+     * The reader then decodes in a charset of a fixed byte order, which is the encoding of
+     * the page that is to be passed back to decode the following pages.
+     *
+     * @param binaryValue the binary data
+     * @param encoding the encoding of the data, or empty to detect it from a byte order mark
+     * @param offset the offset in the data to start decoding from
+     *
+     * @return the reader
+     */
+    private CharsetDecodingReader newPageReader(final BinaryValue binaryValue, final Optional<Charset> encoding, final long offset) throws IOException, XPathException {
+        final ByteOrderMark[] candidates;
+        final Charset unmarked;
+        if(!encoding.isPresent()) {
+            candidates = ByteOrderMark.values();
+            unmarked = UTF_8;
+        } else if(encoding.get().name().equals("UTF-16")) {
+            candidates = new ByteOrderMark[] { ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_16LE };
+            unmarked = UTF_16BE;
+        } else if(encoding.get().name().equals("UTF-32")) {
+            candidates = new ByteOrderMark[] { ByteOrderMark.UTF_32BE, ByteOrderMark.UTF_32LE };
+            unmarked = ByteOrderMark.UTF_32BE.getCharset();
+        } else {
+            return new CharsetDecodingReader(openInputStream(context, binaryValue, offset), getDecoder(encoding.get()), CharsetDecodingReader.END_OF_STREAM, offset);
+        }
+
+        final byte[] buf = new byte[ByteOrderMark.MAX_LENGTH];
+        final int read;
+        try(final InputStream is = openInputStream(context, binaryValue, 0)) {
+            read = readFully(is, buf, 0, buf.length);
+        }
+
+        final Optional<ByteOrderMark> bom = ByteOrderMark.detect(buf, 0, read, candidates);
+        final long position = Math.max(offset, bom.map(ByteOrderMark::length).orElse(0));
+        return new CharsetDecodingReader(openInputStream(context, binaryValue, position), getDecoder(bom.map(ByteOrderMark::getCharset).orElse(unmarked)), CharsetDecodingReader.END_OF_STREAM, position);
+    }
+
+    /**
+     * Strings decoded from some binary data, and where
+     * the data which follows them starts.
+     */
+    private static final class Page {
+        private final ValueSequence strings = new ValueSequence();
+        private Charset encoding;
+        private long nextOffset = NO_NEXT_OFFSET;
+    }
+
+    private Sequence toMap(final Page page) throws XPathException {
+        final MapType map = new MapType(context);
+        map.add(new StringValue(PAGE_KEY_STRINGS), page.strings);
+        map.add(new StringValue(PAGE_KEY_ENCODING), new StringValue(page.encoding.name()));
+        if(page.nextOffset != NO_NEXT_OFFSET) {
+            map.add(new StringValue(PAGE_KEY_NEXT_OFFSET), new IntegerValue(page.nextOffset));
+        }
+        return map;
+    }
+
+    /**
+     * Decodes lines or records, one at a time, so that the
+     * whole of the data is never held as a single string.
+     *
+     * Lines are terminated by a line feed, a carriage return,
+     * or a carriage return followed by a line feed.
+     *
+     * @param binaryValue the binary data
+     * @param encoding the encoding of the data, or empty to detect it from a byte order mark
+     * @param separator the separator between records, or empty to separate lines
+     * @param offset the offset in the data to start decoding from
+     * @param max the maximum number of records to decode
+     *
+     * @return the records, and the offset of the data which follows the last of them
+     *     unless the end of the data was reached
+     */
+    private Page decodeRecords(final BinaryValue binaryValue, final Optional<Charset> encoding, final Optional<String> separator, final long offset, final long max) throws XPathException {
+        final Page page = new Page();
+
+        // the reader closes the stream
+        try(final CharsetDecodingReader reader = newPageReader(binaryValue, encoding, offset)) {
+            page.encoding = reader.getDecoder().charset();
+            if(max == 0) {
+                page.nextOffset = reader.getPosition();
+                return page;
+            }
+
+            final String sep = separator.orElse(null);
+            final char sepLast = sep == null ? 0 : sep.charAt(sep.length() - 1);
+            final StringBuilder record = new StringBuilder();
+            final char[] buf = new char[DECODE_BUFFER_SIZE];
+
+            // set after a carriage return, as a following line feed is part of the same line terminator
+            boolean afterCr = false;
+            // set once the last record has been decoded, but a line feed may yet follow it
+            boolean full = false;
+
+            while(true) {
+                final long bufPosition = reader.getPosition();
+                final int read = reader.read(buf, 0, buf.length);
+                if(read == CharsetDecodingReader.END_OF_STREAM) {
+                    break;
+                }
+
+                for(int i = 0; i < read; i++) {
+                    final char c = buf[i];
+                    if(afterCr) {
+                        afterCr = false;
+                        if(c == '\n') {
+                            if(full) {
+                                page.nextOffset = positionAfter(binaryValue, reader, bufPosition, buf, read, i + 1);
+                                return page;
+                            }
+                            continue;
+                        }
+                    }
+                    if(full) {
+                        page.nextOffset = positionAfter(binaryValue, reader, bufPosition, buf, read, i);
+                        return page;
+                    }
+
+                    final boolean endOfRecord;
+                    if(sep == null) {
+                        endOfRecord = c == '\n' || c == '\r';
+                        if(!endOfRecord) {
+                            record.append(c);
+                        }
+                    } else {
+                        record.append(c);
+                        endOfRecord = c == sepLast && endsWith(record, sep);
+                        if(endOfRecord) {
+                            record.setLength(record.length() - sep.length());
+                        }
+                    }
+
+                    if(endOfRecord) {
+                        page.strings.add(new StringValue(record.toString()));
+                        record.setLength(0);
+                        afterCr = sep == null && c == '\r';
+                        if(page.strings.getItemCount() >= max) {
+                            if(afterCr) {
+                                full = true;
+                            } else {
+                                page.nextOffset = positionAfter(binaryValue, reader, bufPosition, buf, read, i + 1);
+                                return page;
+                            }
+                        }
+                    }
+                }
+            }
+
+            if(record.length() > 0) {
+                // the last record may not be terminated
+                page.strings.add(new StringValue(record.toString()));
+            }
+            return page;
+
+        } catch(final IOException ioe) {
+            throw new XPathException(this, ioe);
+        }
+    }
+
+    /**
+     * Determines the position in the data which follows
+     * some of the characters that were read into a buffer.
+     *
+     * The reader only knows the position after all of the characters
+     * in the buffer, so unless all of them are required, they are
+     * decoded again from the position of the start of the buffer.
+     *
+     * @param binaryValue the binary data
+     * @param reader the reader which decoded the buffer
+     * @param bufPosition the position in the data of the first character in the buffer
+     * @param buf the buffer
+     * @param read the number of characters in the buffer
+     * @param chars the number of characters in the buffer which are required
+     *
+     * @return the position following the required characters
+     */
+    private long positionAfter(final BinaryValue binaryValue, final CharsetDecodingReader reader, final long bufPosition, final char[] buf, final int read, final int chars) throws IOException, XPathException {
+        if(chars == read) {
+            return reader.getPosition();
+        } else if(chars == 0) {
+            return bufPosition;
+        }
+
+        // a new decoder, as the reader's decoder may be reused by getDecoder, and
+        // the same characters are decoded again into the buffer
+        final CharsetDecoder redecoder = newDecoder(reader.getDecoder().charset());
+        try(final CharsetDecodingReader again = new CharsetDecodingReader(openInputStream(context, binaryValue, bufPosition), redecoder, CharsetDecodingReader.END_OF_STREAM, bufPosition)) {
+            int n = 0;
+            while(n < chars) {
+                final int r = again.readWhole(buf, n, chars - n);
+                if(r <= 0) {
+                    break;
+                }
+                n += r;
+            }
+            return again.getPosition();
+        }
+    }
+
+    /**
+     * Decodes strings of a fixed number of characters, one at a time,
+     * so that the whole of the data is never held as a single string.
+     *
+     * @param binaryValue the binary data
+     * @param encoding the encoding of the data, or empty to detect it from a byte order mark
+     * @param chunkSize the number of characters in each string
+     * @param offset the offset in the data to start decoding from
+     * @param max the maximum number of strings to decode
+     *
+     * @return the strings, and the offset of the data which follows the last of them
+     *     unless the end of the data was reached
+     */
+    private Page decodeChunks(final BinaryValue binaryValue, final Optional<Charset> encoding, final int chunkSize, final long offset, final long max) throws XPathException {
+        final Page page = new Page();
+
+        // the reader closes the stream
+        try(final CharsetDecodingReader reader = newPageReader(binaryValue, encoding, offset)) {
+            page.encoding = reader.getDecoder().charset();
+
+            // grows up to the chunk size, with room for a surrogate pair when a chunk is a single character
+            char[] chunk = new char[Math.max(2, Math.min(chunkSize, DECODE_BUFFER_SIZE))];
+            int len = 0;
+            while(page.strings.getItemCount() < max) {
+                if(chunk.length - len < 2 && chunk.length < chunkSize) {
+                    // room for at least a surrogate pair, unless the chunk is nearly full
+                    chunk = Arrays.copyOf(chunk, (int)Math.min(chunkSize, 2L * chunk.length));
+                }
+
+                // only whole characters are read, so that the position of the end of each chunk is known
+                int read = reader.readWhole(chunk, len, Math.min(chunk.length, chunkSize) - len);
+                if(read == CharsetDecodingReader.END_OF_STREAM) {
+                    if(len > 0) {
+                        // the last chunk may be shorter
+                        page.strings.add(new StringValue(new String(chunk, 0, len)));
+                    }
+                    return page;
+                }
+
+                if(read == 0 && len == 0) {
+                    // a chunk of a single character must hold the whole pair
+                    read = reader.readWhole(chunk, 0, 2);
+                    if(read == CharsetDecodingReader.END_OF_STREAM) {
+                        return page;
+                    }
+                }
+                len += read;
+
+                if(len >= chunkSize || read == 0) {
+                    // full, or the next character is a surrogate pair which starts the next chunk instead
+                    page.strings.add(new StringValue(new String(chunk, 0, len)));
+                    len = 0;
+                }
+            }
+
+            page.nextOffset = reader.getPosition();
+            return page;
+
+        } catch(final IOException ioe) {
+            throw new XPathException(this, ioe);
+        }
+    }
+
+    private static boolean endsWith(final StringBuilder builder, final String suffix) {
+        final int start = builder.length() - suffix.length();
+        if(start < 0) {
+            return false;
+        }
+        for(int i = 0; i < suffix.length(); i++) {
+            if(builder.charAt(start + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Charset getCharsetArg(final Sequence[] args, final int idx) throws XPathException {
+        final String encodingString = getStringArg(args, idx).get();
+        final Optional<Charset> charset = lookupCharset(encodingString);
+        if(!charset.isPresent()) {
+            throw new XPathException(this, ERROR_UNKNOWN_ENCODING, "$encoding is not recognized:" + encodingString);
+        }
+        return charset.get();
+    }
+
+    private Optional<String> getSeparatorArg(final Sequence[] args, final int idx) throws XPathException {
+        final Optional<String> separator = getStringArg(args, idx);
+        if(separator.get().isEmpty()) {
+            throw new XPathException(this, ERROR_CONVERSION_ERROR, "$separator must not be empty");
+        }
+        return separator;
+    }
+
+    private long getPageOffsetArg(final Sequence[] args, final int idx) throws XPathException {
+        final BigInteger offset = getIntegerArg(args, idx).get();
+        if(offset.signum() < 0) {
+            throw new XPathException(this, ERROR_INDEX_OUT_OF_RANGE, "$offset is negative:" + offset);
+        }
+        return toLong(this, offset, "$offset");
+    }
+
+    /**
+     * Gets the maximum number of strings to decode.
+     *
+     * @return the maximum, or {@link Long#MAX_VALUE} if there is no maximum
+     */
+    private long getMaxArg(final Sequence[] args, final int idx) throws XPathException {
+        final Optional<BigInteger> max = getIntegerArg(args, idx);
+        if(max.isPresent() && max.get().signum() < 0) {
+            throw new XPathException(this, ERROR_NEGATIVE_SIZE, "$max is negative:" + max.get());
+        }
+        return max.isPresent() ? max.get().min(BigInteger.valueOf(Long.MAX_VALUE)).longValue() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets the encoding to decode with.
+     *
+     * @return the charset, or empty if the encoding
+     *     is {@link #AUTO_ENCODING} and so is to be detected
+     */
+    private Optional<Charset> getDecodingCharsetArg(final Sequence[] args, final int idx) throws XPathException {
+        if(AUTO_ENCODING.equals(getStringArg(args, idx).get())) {
+            return Optional.empty();
+        }
+        return Optional.of(getCharsetArg(args, idx));
+    }
+
+    /**
+     * Looks up a charset by name, remembering the result so
+     * that a name is not looked up again whilst it is in use,
+     * even if it is not recognized.
+     *
+     * @param name the name of the charset
+     *
+     * @return the charset, or empty if the name is illegal or not supported
+     */
+    private static Optional<Charset> lookupCharset(final String name) {
+        synchronized(CHARSETS) {
+            return CHARSETS.computeIfAbsent(name, key -> {
+                try {
+                    return Optional.of(Charset.forName(key));
+                } catch(final IllegalArgumentException e) {
+                    // either an illegal or an unsupported charset name
+                    return Optional.empty();
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets a decoder for a charset, reusing the decoder
+     * from the previous call if it was for the same charset.
+     *
+     * Malformed input and unmappable characters are replaced.
+     *
+     * @param charset the charset to decode
+     *
+     * @return a decoder in its initial state
+     */
+    private CharsetDecoder getDecoder(final Charset charset) {
+        if(decoder == null || !decoder.charset().equals(charset)) {
+            decoder = newDecoder(charset);
+        } else {
+            decoder.reset();
+        }
+        return decoder;
+    }
+
+    /**
+     * Creates a decoder for a charset, which replaces
+     * malformed input and unmappable characters.
+     *
+     * @param charset the charset to decode
+     *
+     * @return the decoder
+     */
+    private static CharsetDecoder newDecoder(final Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
     }
 
-    private BinaryValue encode(final String stringValue, final Optional<Charset> encoding) throws XPathException {
-        return newInMemoryBinary(context, stringValue.getBytes(encoding.orElse(UTF_8)));
+    private BinaryValue encode(final String stringValue, final Charset encoding) throws XPathException {
+        return newInMemoryBinary(context, FastCharsets.encode(stringValue, encoding));
     }
 }
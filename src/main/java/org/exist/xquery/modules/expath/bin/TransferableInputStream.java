@@ -0,0 +1,65 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A stream which can transfer its data to a destination in bulk,
+ * rather than being read through a caller's buffer.
+ *
+ * Where the data comes from a file, the transfer is delegated to
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)},
+ * which the operating system may perform without copying the data
+ * through user space.
+ */
+public interface TransferableInputStream {
+
+    /**
+     * Transfers data from the current position of the stream.
+     *
+     * @param out the destination for the data
+     * @param maxLength the maximum number of octets to transfer
+     *
+     * @return the number of octets transferred, which is less
+     *     than {@code maxLength} only if the end of the stream was reached
+     */
+    long transferTo(OutputStream out, long maxLength) throws IOException;
+
+    /**
+     * Transfers data from the current position of the stream.
+     *
+     * @param target the destination for the data
+     * @param maxLength the maximum number of octets to transfer
+     *
+     * @return the number of octets transferred, which is less
+     *     than {@code maxLength} only if the end of the stream was reached
+     */
+    long transferTo(WritableByteChannel target, long maxLength) throws IOException;
+}
@@ -26,12 +26,30 @@
  */
 package org.exist.xquery.modules.expath.bin;
 
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.util.io.CachingFilterInputStream;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.Expression;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.value.*;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -39,6 +57,8 @@ import java.util.Optional;
  */
 public class Utils {
 
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     static Optional<BinaryValue> getBinaryArg(final Sequence[] args, final int idx) throws XPathException {
         if(args.length > idx) {
             final Sequence arg = args[idx];
@@ -89,6 +109,24 @@ public class Utils {
         return Optional.empty();
     }
 
+    /**
+     * Converts an offset or size argument to a long.
+     *
+     * @param expression the expression which is converting the argument
+     * @param value the value of the argument
+     * @param name the name of the argument, for error reporting
+     *
+     * @return the value as a long
+     *
+     * @throws XPathException bin:index-out-of-range if the value cannot be represented as a long
+     */
+    static long toLong(final Expression expression, final BigInteger value, final String name) throws XPathException {
+        if(value.bitLength() > 63) {
+            throw new XPathException(expression, ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, name + " is out of range: " + value);
+        }
+        return value.longValue();
+    }
+
     static Optional<BigInteger[]> getIntegerSequenceArg(final Sequence[] args, final int idx) throws XPathException {
         if(args.length > idx) {
             final Sequence arg = args[idx];
@@ -125,11 +163,429 @@ public class Utils {
         return Optional.empty();
     }
 
+    /**
+     * Reads all of the binary data into memory.
+     *
+     * Should only be used for arguments which are expected to be small.
+     *
+     * @param binaryValue the binary data
+     *
+     * @return the octets of the binary data
+     */
+    static byte[] toByteArray(final BinaryValue binaryValue) throws IOException {
+        try(final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            binaryValue.streamBinaryTo(baos);
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * Skips over data in an input stream, reading if the stream
+     * declines to skip before its end is reached.
+     *
+     * @param is the input stream
+     * @param n the number of octets to skip
+     *
+     * @return the number of octets skipped, which is less than {@code n}
+     *     only if the end of the stream was reached
+     */
+    static long skipFully(final InputStream is, final long n) throws IOException {
+        long remaining = n;
+        while(remaining > 0) {
+            final long skipped = is.skip(remaining);
+            if(skipped > 0) {
+                remaining -= skipped;
+            } else if(is.read() == -1) {
+                break;
+            } else {
+                remaining--;
+            }
+        }
+        return n - remaining;
+    }
+
+    /**
+     * Transfers data from an input stream to an output stream,
+     * in bulk if the input stream is a {@link TransferableInputStream}.
+     *
+     * @param in the input stream
+     * @param out the output stream
+     * @param maxLength the maximum number of octets to transfer
+     *
+     * @return the number of octets transferred, which is less
+     *     than {@code maxLength} only if the end of the input stream was reached
+     */
+    static long transfer(final InputStream in, final OutputStream out, final long maxLength) throws IOException {
+        if(in instanceof TransferableInputStream) {
+            return ((TransferableInputStream)in).transferTo(out, maxLength);
+        }
+
+        final byte[] buf = new byte[TRANSFER_BUFFER_SIZE];
+        long transferred = 0;
+        int read;
+        while(transferred < maxLength && (read = in.read(buf, 0, (int)Math.min(buf.length, maxLength - transferred))) != -1) {
+            out.write(buf, 0, read);
+            transferred += read;
+        }
+        return transferred;
+    }
+
+    /**
+     * Transfers data from an input stream to a channel,
+     * in bulk if the input stream is a {@link TransferableInputStream}.
+     *
+     * @param in the input stream
+     * @param target the channel
+     * @param maxLength the maximum number of octets to transfer
+     *
+     * @return the number of octets transferred, which is less
+     *     than {@code maxLength} only if the end of the input stream was reached
+     */
+    static long transfer(final InputStream in, final WritableByteChannel target, final long maxLength) throws IOException {
+        if(in instanceof TransferableInputStream) {
+            return ((TransferableInputStream)in).transferTo(target, maxLength);
+        }
+
+        final ByteBuffer buf = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+        long transferred = 0;
+        int read;
+        while(transferred < maxLength && (read = in.read(buf.array(), 0, (int)Math.min(buf.capacity(), maxLength - transferred))) != -1) {
+            buf.limit(read);
+            while(buf.hasRemaining()) {
+                target.write(buf);
+            }
+            buf.clear();
+            transferred += read;
+        }
+        return transferred;
+    }
+
+    static ExpathBinModule getModule(final XQueryContext context) {
+        return (ExpathBinModule)context.getModule(ExpathBinModule.NAMESPACE_URI);
+    }
+
     static BinaryValue newEmptyBinary(final XQueryContext context) throws XPathException {
         return newInMemoryBinary(context, new byte[0]);
     }
 
     static BinaryValue newInMemoryBinary(final XQueryContext context, final byte[] data) throws XPathException {
-        return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new ByteArrayInputStream(data));
+        return newSegmentedBinary(context, Collections.singletonList(SegmentedBinaryValue.Segment.of(new ByteArrayBinarySource(data))));
+    }
+
+    /**
+     * Creates a new binary value from segments of other binary data.
+     *
+     * @param context the XQuery context
+     * @param segments the segments of the binary data
+     *
+     * @return the binary value
+     */
+    static BinaryValue newSegmentedBinary(final XQueryContext context, final List<SegmentedBinaryValue.Segment> segments) throws XPathException {
+        return SegmentedBinaryValue.getInstance(context, new Base64BinaryValueType(), segments, getModule(context).getReadAhead());
+    }
+
+    /**
+     * Gets the segments of binary data, so that it can
+     * be composed with other binary data.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     *
+     * @return the segments of the binary data
+     */
+    static SegmentedBinaryValue.Segment[] getSegments(final XQueryContext context, final BinaryValue binaryValue) throws XPathException {
+        if(binaryValue instanceof SegmentedBinaryValue) {
+            return ((SegmentedBinaryValue)binaryValue).getSegments();
+        }
+
+        final Optional<BinarySource> source = getSource(context, binaryValue);
+        if(source.isPresent()) {
+            return new SegmentedBinaryValue.Segment[] { SegmentedBinaryValue.Segment.of(source.get()) };
+        } else {
+            return new SegmentedBinaryValue.Segment[] { SegmentedBinaryValue.Segment.of(binaryValue, getKnownLength(context, binaryValue).orElse(SegmentedBinaryValue.UNKNOWN_LENGTH)) };
+        }
+    }
+
+    /**
+     * Gets the segments of a region of binary data.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     * @param offset the offset of the start of the region
+     * @param len the length of the region, or {@link SegmentedBinaryValue#UNKNOWN_LENGTH} to extend the region to the end of the data
+     *
+     * @return the segments of the region
+     */
+    static List<SegmentedBinaryValue.Segment> getSegments(final XQueryContext context, final BinaryValue binaryValue, final long offset, final long len) throws XPathException {
+        return getSegments(context, binaryValue, getSegments(context, binaryValue), offset, len);
+    }
+
+    /**
+     * Gets the segments of a region of binary data, from segments
+     * which were already got by {@link #getSegments(XQueryContext, BinaryValue)}.
+     *
+     * Taking several regions from the same segments means that
+     * the data is only looked up once, and that the regions are
+     * read through the same source.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     * @param segments the segments of the binary data
+     * @param offset the offset of the start of the region
+     * @param len the length of the region, or {@link SegmentedBinaryValue#UNKNOWN_LENGTH} to extend the region to the end of the data
+     *
+     * @return the segments of the region
+     */
+    static List<SegmentedBinaryValue.Segment> getSegments(final XQueryContext context, final BinaryValue binaryValue, final SegmentedBinaryValue.Segment[] segments, final long offset, final long len) throws XPathException {
+        final Optional<List<SegmentedBinaryValue.Segment>> region = SegmentedBinaryValue.region(segments, offset, len);
+        if(region.isPresent()) {
+            return region.get();
+        }
+
+        // the region can only be found by reading the data
+        final SegmentedBinaryValue.Segment[] whole = { SegmentedBinaryValue.Segment.of(binaryValue, getKnownLength(context, binaryValue).orElse(SegmentedBinaryValue.UNKNOWN_LENGTH)) };
+        return SegmentedBinaryValue.region(whole, offset, len).get();
+    }
+
+    /**
+     * Determines the length of binary data, reading
+     * the data only if the length is not already known.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     *
+     * @return the length of the binary data in octets
+     */
+    static long getLength(final XQueryContext context, final BinaryValue binaryValue) throws IOException, XPathException {
+        final Optional<Long> knownLength = getKnownLength(context, binaryValue);
+        if(knownLength.isPresent()) {
+            return knownLength.get();
+        }
+
+        final byte buf[] = new byte[4096];
+        long len = 0;
+        // we don't need to close the stream, it will be closed by BinaryValueFromInputStream when it goes out of context
+        final InputStream is = binaryValue.getInputStream();
+        int read = -1;
+        while((read = is.read(buf)) > -1) {
+            len += read;
+        }
+        return len;
+    }
+
+    /**
+     * Attempts to determine the length of binary data without reading it.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     *
+     * @return the length of the binary data in octets, or empty if it
+     *     can only be determined by reading the data
+     */
+    static Optional<Long> getKnownLength(final XQueryContext context, final BinaryValue binaryValue) throws XPathException {
+        if(binaryValue instanceof SegmentedBinaryValue) {
+            final long length = ((SegmentedBinaryValue)binaryValue).getLength();
+            return length == SegmentedBinaryValue.UNKNOWN_LENGTH ? Optional.empty() : Optional.of(length);
+
+        } else if(binaryValue instanceof Base64BinaryDocument) {
+            // a binary document stored in the database, which records its own size
+            final Optional<BinaryDocument> doc = lockBinaryDocument(context, (Base64BinaryDocument)binaryValue);
+            if(doc.isPresent()) {
+                try {
+                    return Optional.of(doc.get().getContentLength());
+                } finally {
+                    doc.get().getUpdateLock().release(LockMode.READ_LOCK);
+                }
+            }
+
+        } else if(binaryValue instanceof BinaryValueFromBinaryString) {
+            // the length can be calculated from the encoded string
+            return Optional.of(getDecodedLength(binaryValue.getBinaryValueType(), binaryValue.getStringValue()));
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Attempts to find a source for binary data which
+     * can be read from an offset without reading the
+     * data before it.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     *
+     * @return the source of the binary data, or empty if
+     *     the data can only be read from its start
+     */
+    static Optional<BinarySource> getSource(final XQueryContext context, final BinaryValue binaryValue) throws XPathException {
+        if(binaryValue instanceof SegmentedBinaryValue) {
+            return ((SegmentedBinaryValue)binaryValue).getSource();
+
+        } else if(binaryValue instanceof Base64BinaryDocument) {
+            // a binary document stored in the database is held in a file
+            final Optional<BinaryDocument> doc = lockBinaryDocument(context, (Base64BinaryDocument)binaryValue);
+            if(doc.isPresent()) {
+                try {
+                    final Path file = context.getBroker().getBinaryFile(doc.get());
+                    if(file != null && Files.isRegularFile(file)) {
+                        return Optional.of(new BinaryDocumentSource(doc.get(), file));
+                    }
+                } catch(final IOException e) {
+                    // fall back to reading the data from its start
+                } finally {
+                    doc.get().getUpdateLock().release(LockMode.READ_LOCK);
+                }
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Opens a stream of binary data from an offset, using a positioned
+     * read where the data has a {@link BinarySource}, or otherwise
+     * by skipping over the data before the offset.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     * @param offset the offset within the binary data to start reading from
+     *
+     * @return a stream positioned at {@code offset}, which the caller must close
+     *
+     * @throws RegionFilterInputStream.IndexOutOfRangeException if {@code offset} is beyond the end of the data
+     */
+    static InputStream openInputStream(final XQueryContext context, final BinaryValue binaryValue, final long offset) throws IOException, XPathException {
+        final Optional<BinarySource> source = getSource(context, binaryValue);
+        if(source.isPresent()) {
+            return source.get().open(offset);
+        }
+
+        return openInputStream(binaryValue, offset);
+    }
+
+    /**
+     * Reads a region of binary data into memory, opening
+     * the data at the offset rather than reading the data before it.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     * @param offset the offset of the start of the region
+     * @param buf the buffer to read into
+     * @param len the length of the region
+     *
+     * @throws RegionFilterInputStream.IndexOutOfRangeException if the region extends beyond the end of the data
+     */
+    static void readFully(final XQueryContext context, final BinaryValue binaryValue, final long offset, final byte[] buf, final int len) throws IOException, XPathException {
+        try(final InputStream is = openInputStream(context, binaryValue, offset)) {
+            if(readFully(is, buf, 0, len) < len) {
+                throw new RegionFilterInputStream.IndexOutOfRangeException("offset: " + offset + " + size: " + len + " is beyond the end of the data");
+            }
+        }
+    }
+
+    /**
+     * Reads from an input stream until the buffer
+     * is filled or the end of the stream is reached.
+     *
+     * @param is the input stream
+     * @param buf the buffer to read into
+     * @param off the offset in the buffer to read into
+     * @param len the number of octets to read
+     *
+     * @return the number of octets read, which is less than
+     *     {@code len} only if the end of the stream was reached
+     */
+    static int readFully(final InputStream is, final byte[] buf, final int off, final int len) throws IOException {
+        int total = 0;
+        int read;
+        while(total < len && (read = is.read(buf, off + total, len - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Opens a stream of binary data from an offset,
+     * by skipping over the data before the offset.
+     *
+     * @param binaryValue the binary data
+     * @param offset the offset within the binary data to start reading from
+     *
+     * @return a stream positioned at {@code offset}, which the caller must close
+     *
+     * @throws RegionFilterInputStream.IndexOutOfRangeException if {@code offset} is beyond the end of the data
+     */
+    static InputStream openInputStream(final BinaryValue binaryValue, final long offset) throws IOException {
+        final InputStream is = binaryValue.getInputStream();
+        if(is instanceof CachingFilterInputStream) {
+            // balanced by the caller closing the stream
+            ((CachingFilterInputStream)is).incrementSharedReferences();
+        }
+        if(skipFully(is, offset) < offset) {
+            is.close();
+            throw new RegionFilterInputStream.IndexOutOfRangeException("offset: " + offset + " is beyond the end of the data");
+        }
+        return is;
+    }
+
+    /**
+     * Finds the binary document which some binary data was read from,
+     * and locks it so that it is not modified whilst it is examined.
+     *
+     * @param context the XQuery context
+     * @param binaryValue the binary data
+     *
+     * @return the document, on which the caller must release the {@link LockMode#READ_LOCK},
+     *     or empty if the data is not that of a binary document which can be found by its url
+     *
+     * @throws XPathException if the user is not permitted to read the document
+     */
+    private static Optional<BinaryDocument> lockBinaryDocument(final XQueryContext context, final Base64BinaryDocument binaryValue) throws XPathException {
+        final String url = binaryValue.getUrl();
+        if(url == null) {
+            return Optional.empty();
+        }
+
+        final DocumentImpl doc;
+        try {
+            doc = context.getBroker().getXMLResource(XmldbURI.xmldbUriFor(url), LockMode.READ_LOCK);
+        } catch(final URISyntaxException e) {
+            // the document is not accessible by url
+            return Optional.empty();
+        } catch(final PermissionDeniedException e) {
+            throw new XPathException((Expression)null, e);
+        }
+        if(doc == null) {
+            return Optional.empty();
+        }
+
+        if(!(doc instanceof BinaryDocument)) {
+            doc.getUpdateLock().release(LockMode.READ_LOCK);
+            return Optional.empty();
+        }
+        if(!doc.getPermissions().validate(context.getBroker().getCurrentSubject(), Permission.READ)) {
+            doc.getUpdateLock().release(LockMode.READ_LOCK);
+            throw new XPathException((Expression)null, "Permission denied to read the binary document: " + url);
+        }
+        return Optional.of((BinaryDocument)doc);
+    }
+
+    private static long getDecodedLength(final BinaryValueType binaryValueType, final String encoded) {
+        if(binaryValueType instanceof HexBinaryValueType) {
+            return encoded.length() / 2;
+        }
+
+        long encodedLen = 0;
+        int padding = 0;
+        for(int i = 0; i < encoded.length(); i++) {
+            final char c = encoded.charAt(i);
+            if(c == '=') {
+                padding++;
+                encodedLen++;
+            } else if(!Character.isWhitespace(c)) {
+                encodedLen++;
+            }
+        }
+        return (encodedLen / 4) * 3 - padding;
     }
 }
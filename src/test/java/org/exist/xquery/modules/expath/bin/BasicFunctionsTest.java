@@ -111,6 +111,38 @@ public class BasicFunctionsTest {
         assertEquals(expectedSize, Integer.parseInt(resourceSet.getResource(0).getContent().toString()));
     }
 
+    @Test
+    public void length_composite() throws XMLDBException {
+        final long fileSize = FileUtils.sizeQuietly(binFile);
+        final String base64Data1 = Base64.encode("hello".getBytes(UTF_8));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "import module namespace util = \"http://exist-db.org/xquery/util\";\n"
+                + "let $bin := util:binary-doc('/db/" + TEST_COLLECTION_NAME + "/" + TEST_BIN_FILE_NAME + "')\n"
+                + "let $extra := xs:base64Binary(\"" + base64Data1 + "\")\n"
+                + "return\n"
+                + "    (\n"
+                + "        bin:length($extra),\n"
+                + "        bin:length(bin:part($bin, 10)),\n"
+                + "        bin:length(bin:part($bin, 10, 20)),\n"
+                + "        bin:length(bin:join(($bin, $extra))),\n"
+                + "        bin:length(bin:insert-before($bin, 100, $extra)),\n"
+                + "        bin:length(bin:pad-left($extra, 3)),\n"
+                + "        bin:length(bin:pad-right(bin:part($bin, 0, 7), 3))\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(7, resourceSet.getSize());
+        assertEquals(5, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+        assertEquals(fileSize - 10, Long.parseLong(resourceSet.getResource(1).getContent().toString()));
+        assertEquals(20, Long.parseLong(resourceSet.getResource(2).getContent().toString()));
+        assertEquals(fileSize + 5, Long.parseLong(resourceSet.getResource(3).getContent().toString()));
+        assertEquals(fileSize + 5, Long.parseLong(resourceSet.getResource(4).getContent().toString()));
+        assertEquals(8, Long.parseLong(resourceSet.getResource(5).getContent().toString()));
+        assertEquals(10, Long.parseLong(resourceSet.getResource(6).getContent().toString()));
+    }
+
     @Test
     public void part_offset_start() throws XMLDBException, IOException {
         final int offset = 0;
@@ -430,6 +462,25 @@ public class BasicFunctionsTest {
         }
     }
 
+    @Test
+    public void insertBefore_repeated() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $record := fold-left(1 to 10000, bin:from-octets(()), function($acc, $i) {\n"
+                + "    bin:insert-before($acc, 0, bin:from-octets($i mod 256))\n"
+                + "})\n"
+                + "return\n"
+                + "    (\n"
+                + "        bin:length($record),\n"
+                + "        string-join(bin:to-octets(bin:part($record, 5000, 4)) ! string(.), ',')\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals(10000, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+        assertEquals("136,135,134,133", resourceSet.getResource(1).getContent().toString());
+    }
+
     @Test
     public void insertBefore_offset() throws XMLDBException, IOException {
         final String base64Data1 = Base64.encode("world".getBytes(UTF_8));
@@ -629,6 +680,25 @@ public class BasicFunctionsTest {
         }
     }
 
+    @Test
+    public void padRight_large() throws XMLDBException {
+        final String base64Data1 = Base64.encode("hello".getBytes(UTF_8));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $block := bin:pad-right(xs:base64Binary(\"" + base64Data1 + "\"), 500000000, 255)\n"
+                + "return\n"
+                + "    (\n"
+                + "        bin:length($block),\n"
+                + "        string-join(bin:to-octets(bin:part($block, 499999998, 4)) ! string(.), ',')\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals(500000005, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+        assertEquals("255,255,255,255", resourceSet.getResource(1).getContent().toString());
+    }
+
     @Test
     public void padRight_octet() throws XMLDBException, IOException {
         final String base64Data1 = Base64.encode("123456789".getBytes(UTF_8));
@@ -701,6 +771,189 @@ public class BasicFunctionsTest {
         }
     }
 
+    @Test
+    public void find() throws XMLDBException {
+        final String base64Data1 = Base64.encode("ohhaithere!icanhazcheezburger?".getBytes(UTF_8));
+        final String base64Data2 = Base64.encode("cheez".getBytes(UTF_8));
+        final String base64Data3 = Base64.encode("h".getBytes(UTF_8));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := xs:base64Binary(\"" + base64Data1 + "\")\n"
+                + "return\n"
+                + "    (\n"
+                + "        bin:find($data, 0, xs:base64Binary(\"" + base64Data2 + "\")),\n"
+                + "        for $offset in (0, 2, 3) return bin:find($data, $offset, xs:base64Binary(\"" + base64Data3 + "\")),\n"
+                + "        bin:find($data, 5, xs:base64Binary(\"\"))\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(5, resourceSet.getSize());
+        assertEquals(18, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+        assertEquals(1, Long.parseLong(resourceSet.getResource(1).getContent().toString()));
+        assertEquals(2, Long.parseLong(resourceSet.getResource(2).getContent().toString()));
+        assertEquals(6, Long.parseLong(resourceSet.getResource(3).getContent().toString()));
+        assertEquals(5, Long.parseLong(resourceSet.getResource(4).getContent().toString()));
+    }
+
+    @Test
+    public void find_notFound() throws XMLDBException {
+        final String base64Data1 = Base64.encode("ohhaithere!icanhazcheezburger?".getBytes(UTF_8));
+        final String base64Data2 = Base64.encode("cheez".getBytes(UTF_8));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:find(xs:base64Binary(\"" + base64Data1 + "\"), 19, xs:base64Binary(\"" + base64Data2 + "\"))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(0, resourceSet.getSize());
+    }
+
+    @Test
+    public void find_long() throws XMLDBException, IOException {
+        final int offset = (int)FileUtils.sizeQuietly(binFile) / 2;
+        final int size = 4 * 1024;
+        final String base64Search = java.util.Base64.getEncoder().encodeToString(readFilePart(binFile, offset, size));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "import module namespace util = \"http://exist-db.org/xquery/util\";\n"
+                + "bin:find(util:binary-doc('/db/" + TEST_COLLECTION_NAME + "/" + TEST_BIN_FILE_NAME + "'), 0, xs:base64Binary(\"" + base64Search + "\"))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(1, resourceSet.getSize());
+        assertEquals(offset, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+    }
+
+    @Test
+    public void findAll() throws XMLDBException {
+        final String base64Data1 = Base64.encode("ohhaithere!icanhazcheezburger?".getBytes(UTF_8));
+        final String base64Data2 = Base64.encode("h".getBytes(UTF_8));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:find-all(xs:base64Binary(\"" + base64Data1 + "\"), 2, xs:base64Binary(\"" + base64Data2 + "\"))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(4, resourceSet.getSize());
+        assertEquals(2, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+        assertEquals(6, Long.parseLong(resourceSet.getResource(1).getContent().toString()));
+        assertEquals(15, Long.parseLong(resourceSet.getResource(2).getContent().toString()));
+        assertEquals(19, Long.parseLong(resourceSet.getResource(3).getContent().toString()));
+    }
+
+    @Test
+    public void findAll_max() throws XMLDBException {
+        final String base64Data1 = Base64.encode("aaaaaa".getBytes(UTF_8));
+        final String base64Data2 = Base64.encode("aa".getBytes(UTF_8));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:find-all(xs:base64Binary(\"" + base64Data1 + "\"), 0, xs:base64Binary(\"" + base64Data2 + "\"), 3)";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(3, resourceSet.getSize());
+        assertEquals(0, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+        assertEquals(1, Long.parseLong(resourceSet.getResource(1).getContent().toString()));
+        assertEquals(2, Long.parseLong(resourceSet.getResource(2).getContent().toString()));
+    }
+
+    @Test
+    public void findAny() throws XMLDBException {
+        final String base64Data1 = Base64.encode("ohhaithere!icanhazcheezburger?".getBytes(UTF_8));
+        final String base64Pattern1 = Base64.encode("hai".getBytes(UTF_8));
+        final String base64Pattern2 = Base64.encode("h".getBytes(UTF_8));
+        final String base64Pattern3 = Base64.encode("cheez".getBytes(UTF_8));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "for $occurrence in bin:find-any(xs:base64Binary(\"" + base64Data1 + "\"), 0, (xs:base64Binary(\"" + base64Pattern1 + "\"), xs:base64Binary(\"" + base64Pattern2 + "\"), xs:base64Binary(\"" + base64Pattern3 + "\")))\n"
+                + "return\n"
+                + "    $occurrence(1) || ':' || $occurrence(2)";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        final String[] expected = { "2:1", "2:2", "1:2", "2:6", "2:15", "2:19", "3:18" };
+        assertEquals(expected.length, resourceSet.getSize());
+        for(int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], resourceSet.getResource(i).getContent().toString());
+        }
+    }
+
+    @Test
+    public void findAny_max() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:encode-string('abcabcabc')\n"
+                + "return\n"
+                + "    (\n"
+                + "        string-join(bin:find-any($data, 0, (bin:encode-string('b'), bin:encode-string('c')), 3) ! (.(1) || ':' || .(2)), ','),\n"
+                + "        count(bin:find-any($data, 0, bin:encode-string('a'), 0))\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals("1:1,2:2,1:4", resourceSet.getResource(0).getContent().toString());
+        assertEquals("0", resourceSet.getResource(1).getContent().toString());
+    }
+
+    @Test
+    public void findPattern() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:hex('104D5A01025045')\n"
+                + "return\n"
+                + "    (\n"
+                + "        bin:find-pattern($data, 0, '4D 5A ?? ?? 50 45'),\n"
+                + "        bin:find-pattern($data, 0, '5? [1-3] 4?'),\n"
+                + "        bin:find-pattern($data, 2, '4D 5A'),\n"
+                + "        bin:match($data, 1, '4D [2-4] 45'),\n"
+                + "        bin:match($data, 2, '4D [2-4] 45')\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(4, resourceSet.getSize());
+        assertEquals(1, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+        assertEquals(2, Long.parseLong(resourceSet.getResource(1).getContent().toString()));
+        assertEquals("true", resourceSet.getResource(2).getContent().toString());
+        assertEquals("false", resourceSet.getResource(3).getContent().toString());
+    }
+
+    @Test
+    public void match_longGap() throws XMLDBException {
+        // the pattern may span far more octets than there are in the data
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:hex('104D5A')\n"
+                + "return\n"
+                + "    (bin:match($data, 1, '4D [0-1000000] 5A'), bin:match($data, 1, '4D [1-1000000] 5A'), bin:match($data, 0, '10 [0-1000000] 5A'))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(3, resourceSet.getSize());
+        assertEquals("true", resourceSet.getResource(0).getContent().toString());
+        assertEquals("false", resourceSet.getResource(1).getContent().toString());
+        assertEquals("true", resourceSet.getResource(2).getContent().toString());
+    }
+
+    @Test
+    public void findPattern_invalid() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:find-pattern(bin:hex('104D5A01025045'), 0, '4D 5G')";
+
+        try {
+            existXmldbEmbeddedServer.executeQuery(query);
+            fail("Expected error bin:invalid-pattern");
+        } catch(final XMLDBException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof XPathException) {
+                final XPathException xpe = ((XPathException)cause);
+                assertEquals(ExpathBinModule.ERROR_INVALID_PATTERN, xpe.getErrorCode());
+            } else {
+                fail("Expected error bin:invalid-pattern");
+            }
+        }
+    }
+
     @Test
     public void integration_join_parts() throws XMLDBException, UnsupportedEncodingException {
         final String query =
@@ -0,0 +1,142 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BinarySourceTest {
+
+    private static final byte[] DATA = "0123456789abcdef".getBytes();
+
+    @Test
+    public void byteArrayFromOffset() throws IOException {
+        final BinarySource source = new ByteArrayBinarySource(DATA);
+        assertEquals(DATA.length, source.getLength());
+        assertReadsFrom(source, 10);
+        assertReadsFrom(source, DATA.length);
+    }
+
+    @Test(expected = RegionFilterInputStream.IndexOutOfRangeException.class)
+    public void byteArrayBeyondEnd() throws IOException {
+        new ByteArrayBinarySource(DATA).open(DATA.length + 1);
+    }
+
+    @Test
+    public void fileFromOffset() throws IOException {
+        final Path file = Files.createTempFile("binary-source", ".bin");
+        try {
+            Files.write(file, DATA);
+            final BinarySource source = new FileBinarySource(file);
+            assertEquals(DATA.length, source.getLength());
+            assertReadsFrom(source, 0);
+            assertReadsFrom(source, 7);
+            assertReadsFrom(source, DATA.length);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void fileTransferTo() throws IOException {
+        final Path file = Files.createTempFile("binary-source", ".bin");
+        final Path copy = Files.createTempFile("binary-source", ".bin");
+        try {
+            Files.write(file, DATA);
+            final BinarySource source = new FileBinarySource(file);
+
+            try(final FileChannelInputStream is = (FileChannelInputStream)source.open(3)) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertEquals(DATA.length - 3, is.transferTo(out));
+                assertArrayEquals(Arrays.copyOfRange(DATA, 3, DATA.length), out.toByteArray());
+            }
+
+            // file to file
+            try(final FileChannelInputStream is = (FileChannelInputStream)source.open(6);
+                    final FileChannel target = FileChannel.open(copy, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                assertEquals(5, is.transferTo(target, 5));
+                assertEquals('b', is.read());
+            }
+            assertArrayEquals(Arrays.copyOfRange(DATA, 6, 11), Files.readAllBytes(copy));
+        } finally {
+            Files.delete(file);
+            Files.delete(copy);
+        }
+    }
+
+    @Test(expected = RegionFilterInputStream.IndexOutOfRangeException.class)
+    public void fileBeyondEnd() throws IOException {
+        final Path file = Files.createTempFile("binary-source", ".bin");
+        try {
+            Files.write(file, DATA);
+            new FileBinarySource(file).open(DATA.length + 1);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void repeatingByte() throws IOException {
+        final BinarySource source = new RepeatingByteBinarySource((byte)0xff, 5_000_000_000L);
+        assertEquals(5_000_000_000L, source.getLength());
+        try(final InputStream is = source.open(4_999_999_998L)) {
+            assertEquals(0xff, is.read());
+            final byte[] buf = new byte[4];
+            assertEquals(1, is.read(buf));
+            assertEquals((byte)0xff, buf[0]);
+            assertEquals(-1, is.read());
+        }
+    }
+
+    @Test(expected = RegionFilterInputStream.IndexOutOfRangeException.class)
+    public void repeatingByteBeyondEnd() throws IOException {
+        new RepeatingByteBinarySource((byte)0, 10).open(11);
+    }
+
+    private static void assertReadsFrom(final BinarySource source, final int offset) throws IOException {
+        try(final InputStream is = source.open(offset)) {
+            final byte[] buf = new byte[DATA.length];
+            int len = 0;
+            int read;
+            while(len < buf.length && (read = is.read(buf, len, buf.length - len)) != -1) {
+                len += read;
+            }
+            assertArrayEquals(Arrays.copyOfRange(DATA, offset, DATA.length), Arrays.copyOf(buf, len));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class BitShiftInputStreamTest {
+
+    private static final int[] LENGTHS = { 1, 7, 8, 9, 63, BitShiftInputStream.CHUNK_SIZE - 1, BitShiftInputStream.CHUNK_SIZE, BitShiftInputStream.CHUNK_SIZE + 1, 2 * BitShiftInputStream.CHUNK_SIZE + 11 };
+
+    @Test
+    public void shift() throws IOException {
+        final Random random = new Random(17);
+        for(final int length : LENGTHS) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            for(int bits = 1; bits < 8; bits++) {
+                try(final InputStream is = new BitShiftInputStream(new TrickleInputStream(data, random), bits, true, (byte)0)) {
+                    assertArrayEquals("left " + bits + " of " + length + " octets", naiveShift(data, bits), readAll(is));
+                }
+                try(final InputStream is = new BitShiftInputStream(new TrickleInputStream(data, random), bits, false, (byte)0)) {
+                    assertArrayEquals("right " + bits + " of " + length + " octets", naiveShift(data, -bits), readAll(is));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sourceFromOffset() throws IOException {
+        final Random random = new Random(23);
+        final byte[] data = new byte[BitShiftInputStream.CHUNK_SIZE + 100];
+        random.nextBytes(data);
+        final SegmentedBinaryValue.Segment[] segments = {
+                SegmentedBinaryValue.Segment.of(new ByteArrayBinarySource(data))
+        };
+
+        for(final boolean left : new boolean[] { true, false }) {
+            final int bits = 1 + random.nextInt(7);
+            final byte[] expected = naiveShift(data, left ? bits : -bits);
+            final BitShiftBinarySource source = new BitShiftBinarySource(segments, data.length, bits, left);
+            for(final int offset : new int[] { 0, 1, 8, 4097, BitShiftInputStream.CHUNK_SIZE, data.length - 1, data.length }) {
+                try(final InputStream is = source.open(offset)) {
+                    assertArrayEquals((left ? "left " : "right ") + bits + " from " + offset, Arrays.copyOfRange(expected, offset, expected.length), readAll(is));
+                }
+            }
+        }
+    }
+
+    /**
+     * Shifts bit by bit, positive towards the start of the data.
+     */
+    private static byte[] naiveShift(final byte[] data, final int by) {
+        final long bitLength = data.length * 8L;
+        final byte[] result = new byte[data.length];
+        for(long i = 0; i < bitLength; i++) {
+            final long src = i + by;
+            if(src >= 0 && src < bitLength && (data[(int)(src >>> 3)] & (0x80 >>> (src & 7))) != 0) {
+                result[(int)(i >>> 3)] |= 0x80 >>> (i & 7);
+            }
+        }
+        return result;
+    }
+
+    private static byte[] readAll(final InputStream is) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[1000];
+        int read;
+        while((read = is.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * An input stream which returns short reads.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final Random random;
+
+        TrickleInputStream(final byte[] buf, final Random random) {
+            super(buf);
+            this.random = random;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            return super.read(b, off, Math.min(len, 1 + random.nextInt(5000)));
+        }
+    }
+}
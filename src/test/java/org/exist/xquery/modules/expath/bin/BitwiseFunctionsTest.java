@@ -0,0 +1,191 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import gnu.crypto.util.Base64;
+import org.exist.test.ExistXmldbEmbeddedServer;
+import org.exist.xmldb.EXistResource;
+import org.exist.xquery.XPathException;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BitwiseFunctionsTest {
+
+    @ClassRule
+    public static final ExistXmldbEmbeddedServer existXmldbEmbeddedServer =
+            new ExistXmldbEmbeddedServer(false, true);
+
+    @Test
+    public void or() throws XMLDBException, IOException {
+        assertHexResult("FF0F", "bin:or(bin:hex(\"FF00\"), bin:hex(\"0F0F\"))");
+    }
+
+    @Test
+    public void xor() throws XMLDBException, IOException {
+        assertHexResult("F00F", "bin:xor(bin:hex(\"FF00\"), bin:hex(\"0F0F\"))");
+    }
+
+    @Test
+    public void and() throws XMLDBException, IOException {
+        assertHexResult("0F00", "bin:and(bin:hex(\"FF00\"), bin:hex(\"0F0F\"))");
+    }
+
+    @Test
+    public void not() throws XMLDBException, IOException {
+        assertHexResult("00FF", "bin:not(bin:hex(\"FF00\"))");
+    }
+
+    @Test
+    public void xor_large() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:pad-right(bin:hex(\"0102030405\"), 200000, 165)\n"
+                + "let $mask := bin:pad-left(bin:hex(\"FFFFFFFFFF\"), 200000, 165)\n"
+                + "let $masked := bin:xor($data, $mask)\n"
+                + "return\n"
+                + "    (\n"
+                + "        bin:length($masked),\n"
+                + "        string-join(bin:to-octets(bin:part($masked, 0, 6)) ! string(.), ','),\n"
+                + "        string-join(bin:to-octets(bin:part($masked, 199999, 6)) ! string(.), ',')\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(3, resourceSet.getSize());
+        assertEquals(200005, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+        assertEquals("164,167,166,161,160,0", resourceSet.getResource(1).getContent().toString());
+        assertEquals("0,90,90,90,90,90", resourceSet.getResource(2).getContent().toString());
+    }
+
+    @Test
+    public void shift_left() throws XMLDBException, IOException {
+        assertHexResult("3C0C", "bin:shift(bin:hex(\"0F03\"), 2)");
+    }
+
+    @Test
+    public void shift_right() throws XMLDBException, IOException {
+        assertHexResult("03C0", "bin:shift(bin:hex(\"0F03\"), -2)");
+    }
+
+    @Test
+    public void shift_octets() throws XMLDBException, IOException {
+        assertHexResult("0304050000", "bin:shift(bin:hex(\"0102030405\"), 16)");
+        assertHexResult("0000010203", "bin:shift(bin:hex(\"0102030405\"), -16)");
+    }
+
+    @Test
+    public void shift_all() throws XMLDBException, IOException {
+        assertHexResult("0000", "bin:shift(bin:hex(\"FFFF\"), 16)");
+        assertHexResult("0000", "bin:shift(bin:hex(\"FFFF\"), -100000000000000000000)");
+    }
+
+    @Test
+    public void shift_large() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:pad-left(bin:hex(\"81\"), 300000, 255)\n"
+                + "let $shifted := bin:shift(bin:shift($data, -12), 12)\n"
+                + "return\n"
+                + "    (\n"
+                + "        bin:length($shifted),\n"
+                + "        string-join(bin:to-octets(bin:part($shifted, 0, 2)) ! string(.), ','),\n"
+                + "        string-join(bin:to-octets(bin:part($shifted, 299998, 3)) ! string(.), ',')\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(3, resourceSet.getSize());
+        assertEquals("300001", resourceSet.getResource(0).getContent());
+        assertEquals("0,15", resourceSet.getResource(1).getContent());
+        assertEquals("255,240,0", resourceSet.getResource(2).getContent());
+    }
+
+    @Test
+    public void or_empty() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:or((), bin:hex(\"FF\"))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(0, resourceSet.getSize());
+    }
+
+    @Test
+    public void not_empty() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:not(())";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(0, resourceSet.getSize());
+    }
+
+    @Test
+    public void and_differingLength() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:and(bin:hex(\"FF00\"), bin:hex(\"0F\"))";
+
+        try {
+            existXmldbEmbeddedServer.executeQuery(query);
+            fail("Expected error bin:differing-length-arguments");
+        } catch(final XMLDBException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof XPathException) {
+                final XPathException xpe = ((XPathException)cause);
+                assertEquals(ExpathBinModule.ERROR_DIFFERENING_LENGTH_ARGUMENTS, xpe.getErrorCode());
+            } else {
+                fail("Expected error bin:differing-length-arguments");
+            }
+        }
+    }
+
+    private static void assertHexResult(final String expectedHex, final String expression) throws XMLDBException, IOException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + expression;
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(1, resourceSet.getSize());
+        try(final EXistResource resource = (EXistResource)resourceSet.getResource(0)) {
+            assertEquals(Base64.encode(hexToBytes(expectedHex)), Base64.encode((byte[])resource.getContent()));
+        }
+    }
+
+    private static byte[] hexToBytes(final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
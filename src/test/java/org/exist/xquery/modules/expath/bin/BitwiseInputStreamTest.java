@@ -0,0 +1,112 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class BitwiseInputStreamTest {
+
+    private static final int[] LENGTHS = { 0, 1, 7, 8, 9, 63, BitwiseInputStream.CHUNK_SIZE - 1, BitwiseInputStream.CHUNK_SIZE, BitwiseInputStream.CHUNK_SIZE + 13, 3 * BitwiseInputStream.CHUNK_SIZE + 5 };
+
+    @Test
+    public void operations() throws IOException {
+        final Random random = new Random(99);
+        for(final int length : LENGTHS) {
+            final byte[] a = new byte[length];
+            final byte[] b = new byte[length];
+            random.nextBytes(a);
+            random.nextBytes(b);
+
+            for(final BitwiseInputStream.Operation operation : BitwiseInputStream.Operation.values()) {
+                final byte[] expected = new byte[length];
+                for(int i = 0; i < length; i++) {
+                    switch(operation) {
+                        case AND:
+                            expected[i] = (byte)(a[i] & b[i]);
+                            break;
+                        case OR:
+                            expected[i] = (byte)(a[i] | b[i]);
+                            break;
+                        case XOR:
+                            expected[i] = (byte)(a[i] ^ b[i]);
+                            break;
+                        case NOT:
+                            expected[i] = (byte)~a[i];
+                            break;
+                    }
+                }
+
+                final InputStream inB = operation == BitwiseInputStream.Operation.NOT ? null : new TrickleInputStream(b, random);
+                try(final InputStream is = new BitwiseInputStream(operation, new TrickleInputStream(a, random), inB)) {
+                    assertArrayEquals(operation + " of " + length + " octets", expected, readAll(is));
+                }
+            }
+        }
+    }
+
+    @Test(expected = BitwiseInputStream.DifferingLengthException.class)
+    public void differingLength() throws IOException {
+        try(final InputStream is = new BitwiseInputStream(BitwiseInputStream.Operation.XOR, new ByteArrayInputStream(new byte[BitwiseInputStream.CHUNK_SIZE]), new ByteArrayInputStream(new byte[BitwiseInputStream.CHUNK_SIZE + 1]))) {
+            readAll(is);
+        }
+    }
+
+    private static byte[] readAll(final InputStream is) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[1000];
+        int read;
+        while((read = is.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * An input stream which returns short reads.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final Random random;
+
+        TrickleInputStream(final byte[] buf, final Random random) {
+            super(buf);
+            this.random = random;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            return super.read(b, off, Math.min(len, 1 + random.nextInt(5000)));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ByteOrderMarkTest {
+
+    @Test
+    public void detect() {
+        assertEquals(Optional.of(ByteOrderMark.UTF_8), detectIn(0xEF, 0xBB, 0xBF, 0x61));
+        assertEquals(Optional.of(ByteOrderMark.UTF_16BE), detectIn(0xFE, 0xFF, 0x00, 0x61));
+        assertEquals(Optional.of(ByteOrderMark.UTF_16LE), detectIn(0xFF, 0xFE, 0x61, 0x00));
+        assertEquals(Optional.of(ByteOrderMark.UTF_16LE), detectIn(0xFF, 0xFE, 0x00));
+        assertEquals(Optional.of(ByteOrderMark.UTF_32BE), detectIn(0x00, 0x00, 0xFE, 0xFF));
+        assertEquals(Optional.of(ByteOrderMark.UTF_32LE), detectIn(0xFF, 0xFE, 0x00, 0x00));
+        assertFalse(detectIn(0xEF, 0xBB).isPresent());
+        assertFalse(detectIn(0x61, 0x62, 0x63).isPresent());
+        assertFalse(detectIn().isPresent());
+    }
+
+    @Test
+    public void detectCandidates() {
+        // only the marks of UTF-16, so the data is not taken to be UTF-32LE
+        final byte[] buf = bytes(0xFF, 0xFE, 0x00, 0x00);
+        assertEquals(Optional.of(ByteOrderMark.UTF_16LE), ByteOrderMark.detect(buf, 0, buf.length, ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_16LE));
+        assertFalse(ByteOrderMark.detect(bytes(0xEF, 0xBB, 0xBF), 0, 3, ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_16LE).isPresent());
+    }
+
+    @Test
+    public void read() throws IOException {
+        final byte[] data = bytes(0xFF, 0xFE, 0x61, 0x00);
+        try(final PushbackInputStream is = new PushbackInputStream(new ByteArrayInputStream(data), ByteOrderMark.MAX_LENGTH)) {
+            assertEquals(Optional.of(ByteOrderMark.UTF_16LE), ByteOrderMark.read(is, CharsetDecodingReader.END_OF_STREAM));
+            assertEquals(0x61, is.read());
+            assertEquals(0x00, is.read());
+            assertEquals(-1, is.read());
+        }
+
+        // the data is limited to the mark of UTF-16LE, rather than that of UTF-32LE
+        final byte[] utf32 = bytes(0xFF, 0xFE, 0x00, 0x00);
+        try(final PushbackInputStream is = new PushbackInputStream(new ByteArrayInputStream(utf32), ByteOrderMark.MAX_LENGTH)) {
+            assertEquals(Optional.of(ByteOrderMark.UTF_16LE), ByteOrderMark.read(is, 3));
+            assertEquals(0x00, is.read());
+        }
+    }
+
+    @Test
+    public void readWithoutMark() throws IOException {
+        final byte[] data = bytes(0x61, 0x62);
+        try(final PushbackInputStream is = new PushbackInputStream(new ByteArrayInputStream(data), ByteOrderMark.MAX_LENGTH)) {
+            assertFalse(ByteOrderMark.read(is, CharsetDecodingReader.END_OF_STREAM).isPresent());
+            assertEquals(0x61, is.read());
+            assertEquals(0x62, is.read());
+            assertEquals(-1, is.read());
+        }
+    }
+
+    private static Optional<ByteOrderMark> detectIn(final int... octets) {
+        final byte[] buf = bytes(octets);
+        return ByteOrderMark.detect(buf, 0, buf.length);
+    }
+
+    private static byte[] bytes(final int... octets) {
+        final byte[] buf = new byte[octets.length];
+        for(int i = 0; i < octets.length; i++) {
+            buf[i] = (byte)octets[i];
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BytePatternTest {
+
+    private static final byte[] DATA = { 0x10, 0x4D, 0x5A, 0x01, 0x02, 0x50, 0x45, 0x4D, 0x5A };
+
+    @Test
+    public void exact() throws IOException {
+        assertEquals(1, indexOf("4D5A"));
+        assertEquals(5, indexOf("50 45"));
+        assertEquals(BytePattern.NOT_FOUND, indexOf("45 50"));
+    }
+
+    @Test
+    public void wildcard() throws IOException {
+        assertEquals(1, indexOf("4D 5A ?? ?? 50 45"));
+        assertEquals(3, indexOf("?? 02"));
+    }
+
+    @Test
+    public void nibble() throws IOException {
+        assertEquals(1, indexOf("4? ?A"));
+        assertEquals(5, indexOf("5? 4?"));
+        assertEquals(BytePattern.NOT_FOUND, indexOf("?F"));
+    }
+
+    @Test
+    public void gap() throws IOException {
+        assertEquals(1, indexOf("4D 5A [2] 50 45"));
+        assertEquals(1, indexOf("4D [0-3] 50"));
+        assertEquals(1, indexOf("4D [1] [1-2] 02"));
+        assertEquals(BytePattern.NOT_FOUND, indexOf("5A [0-4] 5A"));
+        assertEquals(2, indexOf("5A [0-5] 5A"));
+    }
+
+    @Test
+    public void matchesAt() {
+        final BytePattern pattern = BytePattern.compile("4D 5A [0-6] 4D");
+        assertTrue(pattern.matchesAt(DATA, 1, DATA.length));
+        assertFalse(pattern.matchesAt(DATA, 7, DATA.length));
+        assertFalse(pattern.matchesAt(DATA, 1, 7));
+    }
+
+    @Test(timeout = 10000)
+    public void nestedGaps() throws IOException {
+        // each offset is tried once for each run, rather than once for every combination of gap lengths
+        final BytePattern pattern = BytePattern.compile("00 [0-1000] 00 [0-1000] 00 [0-1000] 01");
+        final byte[] zeros = new byte[64 * 1024];
+        assertEquals(BytePattern.NOT_FOUND, pattern.indexOf(new ByteArrayInputStream(zeros), 0));
+
+        zeros[zeros.length - 1] = 0x01;
+        assertEquals(0, pattern.indexOf(new ByteArrayInputStream(zeros, zeros.length - 3000, 3000), 0));
+        assertFalse(pattern.matchesAt(zeros, zeros.length - 3005, zeros.length));
+        assertTrue(pattern.matchesAt(zeros, zeros.length - 3004, zeros.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void gapTooLong() {
+        BytePattern.compile("00 [2000000000] 00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void adjacentGapsTooLong() {
+        BytePattern.compile("00 [2000000000][2000000000] 00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCharacter() {
+        BytePattern.compile("4D 5G");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void incompleteOctet() {
+        BytePattern.compile("4D 5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void leadingGap() {
+        BytePattern.compile("[2] 4D");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trailingGap() {
+        BytePattern.compile("4D [2]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidGap() {
+        BytePattern.compile("4D [3-2] 5A");
+    }
+
+    private static long indexOf(final String pattern) throws IOException {
+        return BytePattern.compile(pattern).indexOf(new ByteArrayInputStream(DATA), 0);
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class ByteSearcherTest {
+
+    @Test
+    public void singleByte() {
+        final byte[] data = "ohhaithere".getBytes(UTF_8);
+        final ByteSearcher searcher = ByteSearcher.compile("h".getBytes(UTF_8));
+        assertEquals(1, searcher.indexOf(data, 0, data.length));
+        assertEquals(2, searcher.indexOf(data, 2, data.length));
+        assertEquals(6, searcher.indexOf(data, 3, data.length));
+        assertEquals(ByteSearcher.NOT_FOUND, searcher.indexOf(data, 7, data.length));
+    }
+
+    @Test
+    public void shortPattern() {
+        final byte[] data = "ohhaithere!icanhazcheezburger?".getBytes(UTF_8);
+        final ByteSearcher searcher = ByteSearcher.compile("cheez".getBytes(UTF_8));
+        assertEquals(18, searcher.indexOf(data, 0, data.length));
+        assertEquals(ByteSearcher.NOT_FOUND, searcher.indexOf(data, 19, data.length));
+        assertEquals(ByteSearcher.NOT_FOUND, searcher.indexOf(data, 0, 22));
+    }
+
+    @Test
+    public void longPattern() {
+        final byte[] pattern = new byte[ByteSearcher.MAX_HORSPOOL_PATTERN_LEN * 4];
+        new Random(42).nextBytes(pattern);
+
+        final byte[] data = new byte[pattern.length * 10];
+        System.arraycopy(pattern, 0, data, pattern.length * 7 + 3, pattern.length);
+
+        final ByteSearcher searcher = ByteSearcher.compile(pattern);
+        assertEquals(pattern.length * 7 + 3, searcher.indexOf(data, 0, data.length));
+        assertEquals(ByteSearcher.NOT_FOUND, searcher.indexOf(data, pattern.length * 7 + 4, data.length));
+    }
+
+    @Test
+    public void longPeriodicPattern() {
+        final byte[] pattern = new byte[ByteSearcher.MAX_HORSPOOL_PATTERN_LEN * 2];
+        pattern[pattern.length - 1] = 1;
+
+        final byte[] data = new byte[pattern.length * 10];
+        data[data.length - 1] = 1;
+
+        final ByteSearcher searcher = ByteSearcher.compile(pattern);
+        assertEquals(data.length - pattern.length, searcher.indexOf(data, 0, data.length));
+    }
+
+    @Test
+    public void stream() throws IOException {
+        final byte[] pattern = "cheez".getBytes(UTF_8);
+        final ByteSearcher searcher = ByteSearcher.compile(pattern);
+
+        // place the pattern across the boundary of the search window
+        final byte[] data = new byte[ByteSearcher.DEFAULT_BUFFER_SIZE * 3];
+        final int expectedOffset = ByteSearcher.DEFAULT_BUFFER_SIZE * 2 - 2;
+        System.arraycopy(pattern, 0, data, expectedOffset, pattern.length);
+
+        try(final InputStream is = new ByteArrayInputStream(data)) {
+            assertEquals(expectedOffset + 100, searcher.indexOf(is, 100));
+        }
+
+        try(final InputStream is = new ByteArrayInputStream(data, expectedOffset + 1, data.length - expectedOffset - 1)) {
+            assertEquals(ByteSearcher.NOT_FOUND, searcher.indexOf(is, 0));
+        }
+    }
+
+    @Test
+    public void matchesNaiveSearch() {
+        final Random random = new Random(1234);
+        for(int i = 0; i < 10000; i++) {
+            final int dataLen = random.nextInt(512);
+            final int patternLen = 1 + random.nextInt(i % 2 == 0 ? 8 : ByteSearcher.MAX_HORSPOOL_PATTERN_LEN * 2);
+
+            // use a small alphabet so that there are many partial matches
+            final byte[] data = new byte[dataLen];
+            for(int j = 0; j < dataLen; j++) {
+                data[j] = (byte)random.nextInt(2);
+            }
+            final byte[] pattern = new byte[patternLen];
+            if(dataLen > patternLen && random.nextBoolean()) {
+                System.arraycopy(data, random.nextInt(dataLen - patternLen), pattern, 0, patternLen);
+            } else {
+                for(int j = 0; j < patternLen; j++) {
+                    pattern[j] = (byte)random.nextInt(2);
+                }
+            }
+
+            final int from = random.nextInt(dataLen + 1);
+            assertEquals(naiveIndexOf(data, from, pattern), ByteSearcher.compile(pattern).indexOf(data, from, dataLen));
+        }
+    }
+
+    private static int naiveIndexOf(final byte[] data, final int from, final byte[] pattern) {
+        for(int i = from; i < data.length - pattern.length + 1; i++) {
+            boolean found = true;
+            for(int j = 0; j < pattern.length; j++) {
+                if(data[i + j] != pattern[j]) {
+                    found = false;
+                    break;
+                }
+            }
+            if(found) {
+                return i;
+            }
+        }
+        return ByteSearcher.NOT_FOUND;
+    }
+}
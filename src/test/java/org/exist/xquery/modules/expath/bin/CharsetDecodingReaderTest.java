@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CharsetDecodingReaderTest {
+
+    @Test
+    public void decode() throws IOException {
+        final Random random = new Random(41);
+        for(final Charset charset : new Charset[] { UTF_8, UTF_16LE }) {
+            for(final int length : new int[] { 0, 1, 100, CharsetDecodingReader.BUFFER_SIZE + 7, 3 * CharsetDecodingReader.BUFFER_SIZE }) {
+                final String expected = randomString(random, length);
+                final byte[] data = expected.getBytes(charset);
+                try(final Reader reader = new CharsetDecodingReader(new TrickleInputStream(data, random), newDecoder(charset), CharsetDecodingReader.END_OF_STREAM)) {
+                    assertEquals(charset + " " + length, expected, readAll(reader, random));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void decodeRegion() throws IOException {
+        final byte[] data = "abcédef".getBytes(UTF_8);
+        try(final Reader reader = new CharsetDecodingReader(new ByteArrayInputStream(data), newDecoder(UTF_8), 5)) {
+            assertEquals("abcé", readAll(reader, new Random(1)));
+        }
+    }
+
+    @Test
+    public void malformed() throws IOException {
+        final byte[] data = { 'a', (byte)0xC3, 'b', (byte)0xE2, (byte)0x82 };
+        try(final Reader reader = new CharsetDecodingReader(new ByteArrayInputStream(data), newDecoder(UTF_8), CharsetDecodingReader.END_OF_STREAM)) {
+            assertEquals(new String(data, UTF_8), readAll(reader, new Random(2)));
+        }
+    }
+
+    @Test
+    public void latin1() throws IOException {
+        final byte[] data = new byte[256];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+        try(final Reader reader = new CharsetDecodingReader(new ByteArrayInputStream(data), newDecoder(ISO_8859_1), CharsetDecodingReader.END_OF_STREAM)) {
+            assertEquals(new String(data, ISO_8859_1), readAll(reader, new Random(3)));
+        }
+    }
+
+    @Test
+    public void sparseMultiOctet() throws IOException {
+        final Random random = new Random(43);
+        for(final Charset charset : new Charset[] { UTF_8, US_ASCII, ISO_8859_1 }) {
+            for(int i = 0; i < 20; i++) {
+                final byte[] data = new byte[random.nextInt(3 * CharsetDecodingReader.BUFFER_SIZE)];
+                for(int j = 0; j < data.length; j++) {
+                    data[j] = (byte)(0x20 + random.nextInt(0x5F));
+                }
+                // sparse multi-octet sequences, some of them malformed or split across buffers
+                for(int j = random.nextInt(50); j > 0 && data.length > 4; j--) {
+                    final int pos = random.nextInt(data.length - 4);
+                    final byte[] sequence = random.nextBoolean() ? "\u00e9\u20ac".getBytes(UTF_8) : new byte[] { (byte)(0x80 + random.nextInt(0x80)) };
+                    System.arraycopy(sequence, 0, data, pos, Math.min(sequence.length, data.length - pos));
+                }
+
+                try(final Reader reader = new CharsetDecodingReader(new TrickleInputStream(data, random), newDecoder(charset), CharsetDecodingReader.END_OF_STREAM)) {
+                    assertEquals(charset + " " + data.length, new String(data, charset), readAll(reader, random));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void position() throws IOException {
+        final Random random = new Random(53);
+        for(final Charset charset : new Charset[] { UTF_8, UTF_16LE }) {
+            final String expected = randomString(random, 2 * CharsetDecodingReader.BUFFER_SIZE);
+            final byte[] data = expected.getBytes(charset);
+            final long start = 11;
+            try(final CharsetDecodingReader reader = new CharsetDecodingReader(new TrickleInputStream(data, random), newDecoder(charset), CharsetDecodingReader.END_OF_STREAM, start)) {
+                final char[] buf = new char[16];
+                int chars = 0;
+                while(true) {
+                    int read = reader.readWhole(buf, 0, 1 + random.nextInt(buf.length));
+                    if(read == 0) {
+                        // the next character is a surrogate pair
+                        read = reader.readWhole(buf, 0, 2);
+                        assertEquals(2, read);
+                    }
+                    if(read == CharsetDecodingReader.END_OF_STREAM) {
+                        break;
+                    }
+                    assertEquals(expected.substring(chars, chars + read), new String(buf, 0, read));
+                    chars += read;
+                    assertEquals(charset + " " + chars, start + expected.substring(0, chars).getBytes(charset).length, reader.getPosition());
+                }
+                assertEquals(expected.length(), chars);
+            }
+        }
+    }
+
+    @Test
+    public void encode() {
+        final Random random = new Random(47);
+        for(final Charset charset : new Charset[] { UTF_8, US_ASCII, ISO_8859_1, UTF_16LE }) {
+            for(final String string : new String[] { "", "plain ascii", "caf\u00e9", "\u20ac1", randomString(random, 1000) }) {
+                // both with and without copying directly, whichever this JVM uses by default
+                assertArrayEquals(charset + " " + string, string.getBytes(charset), FastCharsets.encode(string, charset, true));
+                assertArrayEquals(charset + " " + string, string.getBytes(charset), FastCharsets.encode(string, charset, false));
+            }
+        }
+    }
+
+    @Test(expected = RegionFilterInputStream.IndexOutOfRangeException.class)
+    public void regionBeyondEnd() throws IOException {
+        try(final Reader reader = new CharsetDecodingReader(new ByteArrayInputStream(new byte[] { 'a', 'b' }), newDecoder(UTF_8), 3)) {
+            readAll(reader, new Random(4));
+        }
+    }
+
+    private static CharsetDecoder newDecoder(final Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static String randomString(final Random random, final int length) {
+        final StringBuilder builder = new StringBuilder(length);
+        while(builder.length() < length) {
+            switch(random.nextInt(4)) {
+                case 0:
+                    builder.append((char)(0x20 + random.nextInt(0x5F)));
+                    break;
+                case 1:
+                    builder.append((char)(0xA0 + random.nextInt(0x700)));
+                    break;
+                case 2:
+                    builder.append((char)(0x3000 + random.nextInt(0x1000)));
+                    break;
+                default:
+                    builder.appendCodePoint(0x1F300 + random.nextInt(0x300));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads with a mixture of single character and bulk reads.
+     */
+    private static String readAll(final Reader reader, final Random random) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        final char[] buf = new char[5000];
+        while(true) {
+            if(random.nextInt(4) == 0) {
+                final int c = reader.read();
+                if(c == -1) {
+                    break;
+                }
+                builder.append((char)c);
+            } else {
+                final int read = reader.read(buf, 0, 1 + random.nextInt(buf.length));
+                if(read == -1) {
+                    break;
+                }
+                builder.append(buf, 0, read);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * An input stream which returns short reads.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final Random random;
+
+        TrickleInputStream(final byte[] buf, final Random random) {
+            super(buf);
+            this.random = random;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            return super.read(b, off, Math.min(len, 1 + random.nextInt(5000)));
+        }
+    }
+}
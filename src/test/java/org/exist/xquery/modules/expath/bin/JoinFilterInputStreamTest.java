@@ -0,0 +1,132 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class JoinFilterInputStreamTest {
+
+    @Test
+    public void read() throws IOException {
+        try(final InputStream is = join("hello", "", " ", "world")) {
+            final byte[] buf = new byte[32];
+            int len = 0;
+            int read;
+            while((read = is.read(buf, len, buf.length - len)) != -1) {
+                len += read;
+            }
+            assertEquals("hello world", new String(buf, 0, len, UTF_8));
+        }
+    }
+
+    @Test
+    public void transferTo() throws IOException {
+        try(final JoinFilterInputStream is = join("hello", "", " ", "world")) {
+            assertEquals('h', is.read());
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(10, is.transferTo(out));
+            assertEquals("ello world", new String(out.toByteArray(), UTF_8));
+            assertEquals(JoinFilterInputStream.END_OF_STREAM, is.read());
+        }
+    }
+
+    @Test
+    public void transferToChannelLimited() throws IOException {
+        try(final JoinFilterInputStream is = join("hello", " ", "world")) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(7, is.transferTo(Channels.newChannel(out), 7));
+            assertEquals("hello w", new String(out.toByteArray(), UTF_8));
+            assertEquals('o', is.read());
+        }
+    }
+
+    @Test
+    public void opensLazily() throws IOException {
+        final int count = 50_000;
+        final int[] open = { 0 };
+        final int[] maxOpen = { 0 };
+        final int[] opened = { 0 };
+
+        final JoinFilterInputStream.InputStreamSupplier[] suppliers = new JoinFilterInputStream.InputStreamSupplier[count];
+        for(int i = 0; i < count; i++) {
+            final byte octet = (byte)i;
+            suppliers[i] = () -> {
+                opened[0]++;
+                maxOpen[0] = Math.max(maxOpen[0], ++open[0]);
+                return new ByteArrayInputStream(new byte[] { octet }) {
+                    @Override
+                    public void close() {
+                        open[0]--;
+                    }
+                };
+            };
+        }
+
+        try(final JoinFilterInputStream is = new JoinFilterInputStream(suppliers)) {
+            assertEquals(0, opened[0]);
+
+            final byte[] buf = new byte[3];
+            assertEquals(3, is.read(buf));
+            assertEquals(3, opened[0]);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(count - 3, is.transferTo(out));
+            assertEquals(count, opened[0]);
+            assertEquals(1, maxOpen[0]);
+        }
+        assertEquals(0, open[0]);
+    }
+
+    @Test
+    public void closeBeforeRead() throws IOException {
+        final int[] opened = { 0 };
+        final JoinFilterInputStream.InputStreamSupplier supplier = () -> {
+            opened[0]++;
+            return new ByteArrayInputStream(new byte[1]);
+        };
+
+        new JoinFilterInputStream(new JoinFilterInputStream.InputStreamSupplier[] { supplier, supplier }).close();
+        assertEquals(0, opened[0]);
+    }
+
+    private static JoinFilterInputStream join(final String... parts) {
+        final InputStream[] ins = new InputStream[parts.length];
+        for(int i = 0; i < parts.length; i++) {
+            ins[i] = new ByteArrayInputStream(parts[i].getBytes(UTF_8));
+        }
+        return new JoinFilterInputStream(ins);
+    }
+}
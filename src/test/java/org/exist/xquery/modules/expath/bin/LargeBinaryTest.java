@@ -0,0 +1,202 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.exist.test.ExistXmldbEmbeddedServer;
+import org.exist.xmldb.EXistResource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.Resource;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.BinaryResource;
+import org.xmldb.api.modules.CollectionManagementService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+
+import static org.exist.xquery.modules.expath.bin.TestUtils.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests of binary data larger than 2GB.
+ *
+ * These tests need several GB of disk space and take some time,
+ * so are only run when the system property {@code expath.bin.largeFileTests}
+ * is set to true.
+ */
+public class LargeBinaryTest {
+
+    private static final String LARGE_FILE_TESTS_PROPERTY = "expath.bin.largeFileTests";
+    private static final long LARGE_FILE_SIZE = Integer.MAX_VALUE + (64L * 1024 * 1024);  // 2GB + 64MB
+
+    @ClassRule
+    public static final ExistXmldbEmbeddedServer existXmldbEmbeddedServer =
+            new ExistXmldbEmbeddedServer(false, true);
+
+    private static String TEST_LARGE_FILE_NAME = "large.bin";
+    private static Collection testCollection;
+    private static Path largeFile;
+
+    @BeforeClass
+    public static void setup() throws XMLDBException, IOException {
+        assumeTrue(LARGE_FILE_TESTS_PROPERTY + " is not set", Boolean.getBoolean(LARGE_FILE_TESTS_PROPERTY));
+
+        final Collection root = existXmldbEmbeddedServer.getRoot();
+        try {
+            testCollection = existXmldbEmbeddedServer.createCollection(root, TEST_COLLECTION_NAME);
+
+            largeFile = createRandomDataFile(LARGE_FILE_SIZE);
+            final Resource largeResource = testCollection.createResource(TEST_LARGE_FILE_NAME, BinaryResource.RESOURCE_TYPE);
+            largeResource.setContent(largeFile);
+            testCollection.storeResource(largeResource);
+        } finally {
+            root.close();
+        }
+    }
+
+    @AfterClass
+    public static void cleanup() throws XMLDBException, IOException {
+        if(testCollection != null) {
+            final CollectionManagementService collectionManagementService = (CollectionManagementService)testCollection.getParentCollection().getService("CollectionManagementService", "1.0");
+            collectionManagementService.removeCollection(TEST_COLLECTION_NAME);
+        }
+        if(largeFile != null) {
+            Files.deleteIfExists(largeFile);
+        }
+    }
+
+    @Test
+    public void length() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "import module namespace util = \"http://exist-db.org/xquery/util\";\n"
+                + "bin:length(util:binary-doc('/db/" + TEST_COLLECTION_NAME + "/" + TEST_LARGE_FILE_NAME + "'))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(LARGE_FILE_SIZE, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+    }
+
+    @Test
+    public void part_beyond2GB() throws XMLDBException, IOException {
+        final long offset = LARGE_FILE_SIZE - 1024;
+        final int size = 512;
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "import module namespace util = \"http://exist-db.org/xquery/util\";\n"
+                + "bin:part(util:binary-doc('/db/" + TEST_COLLECTION_NAME + "/" + TEST_LARGE_FILE_NAME + "'), " + offset + ", " + size + ")";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        try (final EXistResource resource = (EXistResource)resourceSet.getResource(0)) {
+            assertEquals(BinaryResource.RESOURCE_TYPE, resource.getResourceType());
+            assertArrayEquals(readFilePart(largeFile, offset, size), (byte[]) resource.getContent());
+        }
+    }
+
+    @Test
+    public void part_overflow() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "import module namespace util = \"http://exist-db.org/xquery/util\";\n"
+                + "bin:part(util:binary-doc('/db/" + TEST_COLLECTION_NAME + "/" + TEST_LARGE_FILE_NAME + "'), " + (LARGE_FILE_SIZE - 10) + ", 20) cast as xs:string";
+
+        try {
+            existXmldbEmbeddedServer.executeQuery(query);
+            fail("Expected error bin:index-out-of-range");
+        } catch(final XMLDBException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof org.exist.xquery.XPathException) {
+                assertEquals(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, ((org.exist.xquery.XPathException)cause).getErrorCode());
+            } else {
+                fail("Expected error bin:index-out-of-range");
+            }
+        }
+    }
+
+    @Test
+    public void find_beyond2GB() throws XMLDBException, IOException {
+        final long offset = LARGE_FILE_SIZE - 4096;
+        final String base64Search = Base64.getEncoder().encodeToString(readFilePart(largeFile, offset, 64));
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "import module namespace util = \"http://exist-db.org/xquery/util\";\n"
+                + "bin:find(util:binary-doc('/db/" + TEST_COLLECTION_NAME + "/" + TEST_LARGE_FILE_NAME + "'), " + (offset - 1024) + ", xs:base64Binary(\"" + base64Search + "\"))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(1, resourceSet.getSize());
+        assertEquals(offset, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+    }
+
+    @Test
+    public void insertBefore_beyond2GB() throws XMLDBException, IOException {
+        final long offset = LARGE_FILE_SIZE - 1024;
+
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "import module namespace util = \"http://exist-db.org/xquery/util\";\n"
+                + "let $bin := bin:insert-before(util:binary-doc('/db/" + TEST_COLLECTION_NAME + "/" + TEST_LARGE_FILE_NAME + "'), " + offset + ", bin:from-octets((1, 2, 3)))\n"
+                + "return\n"
+                + "    (\n"
+                + "        bin:length($bin),\n"
+                + "        bin:part($bin, " + (offset - 8) + ", 19)\n"
+                + "    )";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals(LARGE_FILE_SIZE + 3, Long.parseLong(resourceSet.getResource(0).getContent().toString()));
+
+        final byte[] expected = new byte[19];
+        System.arraycopy(readFilePart(largeFile, offset - 8, 8), 0, expected, 0, 8);
+        expected[8] = 1;
+        expected[9] = 2;
+        expected[10] = 3;
+        System.arraycopy(readFilePart(largeFile, offset, 8), 0, expected, 11, 8);
+        try (final EXistResource resource = (EXistResource)resourceSet.getResource(1)) {
+            assertArrayEquals(expected, (byte[]) resource.getContent());
+        }
+    }
+
+    private static byte[] readFilePart(final Path file, final long offset, final int len) throws IOException {
+        final ByteBuffer part = ByteBuffer.allocate(len);
+        try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while(part.hasRemaining() && channel.read(part, offset + part.position()) != -1) {
+            }
+        }
+        return part.array();
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class MultiByteSearcherTest {
+
+    @Test
+    public void prefixAndSuffixPatterns() throws IOException {
+        final MultiByteSearcher searcher = MultiByteSearcher.compile(patterns("he", "she", "his", "hers"));
+        assertEquals(4, searcher.getPatternCount());
+
+        // "she" and "he" end at the same position, so are ordered by pattern index
+        assertEquals(Arrays.asList("0@2", "1@1", "3@2"), search(searcher, "ushers".getBytes(UTF_8), 0));
+        assertEquals(Arrays.asList("2@100"), search(searcher, "his".getBytes(UTF_8), 100));
+    }
+
+    @Test
+    public void overlappingPatterns() throws IOException {
+        final MultiByteSearcher searcher = MultiByteSearcher.compile(patterns("aa", "aaa", "a"));
+        assertEquals(Arrays.asList("2@0", "0@0", "2@1", "0@1", "1@0", "2@2", "0@2", "1@1", "2@3"), search(searcher, "aaaa".getBytes(UTF_8), 0));
+    }
+
+    @Test
+    public void emptyPattern() throws IOException {
+        final MultiByteSearcher searcher = MultiByteSearcher.compile(patterns("b", ""));
+        assertEquals(Arrays.asList("1@5", "0@6"), search(searcher, "ab".getBytes(UTF_8), 5));
+    }
+
+    @Test
+    public void stopSearching() throws IOException {
+        final MultiByteSearcher searcher = MultiByteSearcher.compile(patterns("a", "b"));
+        final List<String> found = new ArrayList<>();
+        try(final InputStream is = new ByteArrayInputStream("abab".getBytes(UTF_8))) {
+            searcher.search(is, 0, (patternIndex, offset) -> {
+                found.add(patternIndex + "@" + offset);
+                return found.size() < 3;
+            });
+        }
+        assertEquals(Arrays.asList("0@0", "1@1", "0@2"), found);
+    }
+
+    @Test
+    public void acrossBufferBoundary() throws IOException {
+        final byte[][] patterns = patterns("cheez", "burger", "ezb");
+
+        // place the patterns across the boundary of the buffer of the search
+        final byte[] data = new byte[ByteSearcher.DEFAULT_BUFFER_SIZE * 3];
+        final int expectedOffset = ByteSearcher.DEFAULT_BUFFER_SIZE * 2 - 4;
+        final byte[] cheezburger = "cheezburger".getBytes(UTF_8);
+        System.arraycopy(cheezburger, 0, data, expectedOffset, cheezburger.length);
+
+        final MultiByteSearcher searcher = MultiByteSearcher.compile(patterns);
+        assertEquals(Arrays.asList("0@" + (expectedOffset + 10), "2@" + (expectedOffset + 13), "1@" + (expectedOffset + 15)), search(searcher, data, 10));
+    }
+
+    @Test
+    public void octetsOfEitherSign() throws IOException {
+        // the transitions from a state are ordered by signed octet
+        final byte[][] patterns = {
+                new byte[] { 0x01, (byte)0xFF },
+                new byte[] { 0x01, 0x7F },
+                new byte[] { 0x01, (byte)0x80 },
+                new byte[] { 0x01, 0x00 }
+        };
+        final byte[] data = { 0x01, (byte)0x80, 0x01, 0x00, 0x01, 0x7F, 0x01, (byte)0xFF };
+        assertEquals(Arrays.asList("2@0", "3@2", "1@4", "0@6"), search(MultiByteSearcher.compile(patterns), data, 0));
+    }
+
+    @Test
+    public void longPatterns() throws IOException {
+        // a state for almost every octet of the patterns, which must each be small
+        final Random random = new Random(1234);
+        final byte[][] patterns = new byte[200][];
+        for(int p = 0; p < patterns.length; p++) {
+            patterns[p] = new byte[2000];
+            random.nextBytes(patterns[p]);
+        }
+
+        final byte[] data = new byte[10000];
+        random.nextBytes(data);
+        System.arraycopy(patterns[123], 0, data, 5000, patterns[123].length);
+
+        assertEquals(Arrays.asList("123@5000"), search(MultiByteSearcher.compile(patterns), data, 0));
+    }
+
+    @Test
+    public void matchesNaiveSearch() throws IOException {
+        final Random random = new Random(4321);
+        for(int i = 0; i < 2000; i++) {
+            // occasionally long enough to span several buffers of the search
+            final int dataLen = random.nextInt(i % 10 == 0 ? ByteSearcher.DEFAULT_BUFFER_SIZE * 3 : 512);
+
+            // use a small alphabet so that there are many partial and overlapping matches
+            final byte[] data = new byte[dataLen];
+            for(int j = 0; j < dataLen; j++) {
+                data[j] = (byte)random.nextInt(3);
+            }
+
+            final byte[][] patterns = new byte[1 + random.nextInt(8)][];
+            for(int p = 0; p < patterns.length; p++) {
+                final int patternLen = random.nextInt(10) == 0 ? 0 : 1 + random.nextInt(8);
+                patterns[p] = new byte[patternLen];
+                if(p > 0 && random.nextInt(4) == 0) {
+                    // a prefix or suffix of another pattern
+                    final byte[] other = patterns[random.nextInt(p)];
+                    final int len = Math.min(patternLen, other.length);
+                    System.arraycopy(other, random.nextBoolean() ? 0 : other.length - len, patterns[p], 0, len);
+                    patterns[p] = Arrays.copyOf(patterns[p], len);
+                } else if(dataLen > patternLen && random.nextBoolean()) {
+                    System.arraycopy(data, random.nextInt(dataLen - patternLen), patterns[p], 0, patternLen);
+                } else {
+                    for(int j = 0; j < patternLen; j++) {
+                        patterns[p][j] = (byte)random.nextInt(3);
+                    }
+                }
+            }
+
+            final long position = random.nextInt(1000);
+            final MultiByteSearcher searcher = MultiByteSearcher.compile(patterns);
+            final List<String> expected = naiveSearch(patterns, data, position);
+            assertEquals(expected, search(searcher, data, position));
+
+            // the stream may also return fewer octets than the buffer of the search can hold
+            try(final InputStream is = new TrickleInputStream(data, random)) {
+                assertEquals(expected, search(searcher, is, position));
+            }
+        }
+    }
+
+    private static byte[][] patterns(final String... patterns) {
+        final byte[][] bytes = new byte[patterns.length][];
+        for(int i = 0; i < patterns.length; i++) {
+            bytes[i] = patterns[i].getBytes(UTF_8);
+        }
+        return bytes;
+    }
+
+    private static List<String> search(final MultiByteSearcher searcher, final byte[] data, final long position) throws IOException {
+        try(final InputStream is = new ByteArrayInputStream(data)) {
+            return search(searcher, is, position);
+        }
+    }
+
+    private static List<String> search(final MultiByteSearcher searcher, final InputStream is, final long position) throws IOException {
+        final List<String> found = new ArrayList<>();
+        searcher.search(is, position, (patternIndex, offset) -> found.add(patternIndex + "@" + offset));
+        return found;
+    }
+
+    /**
+     * Finds the occurrences of the patterns by comparing every pattern at
+     * every position, in the order in which {@link MultiByteSearcher} reports them.
+     */
+    private static List<String> naiveSearch(final byte[][] patterns, final byte[] data, final long position) {
+        final List<String> found = new ArrayList<>();
+        for(int p = 0; p < patterns.length; p++) {
+            if(patterns[p].length == 0) {
+                found.add(p + "@" + position);
+            }
+        }
+        for(int end = 0; end < data.length; end++) {
+            for(int p = 0; p < patterns.length; p++) {
+                final byte[] pattern = patterns[p];
+                final int start = end - pattern.length + 1;
+                if(pattern.length == 0 || start < 0) {
+                    continue;
+                }
+                boolean matches = true;
+                for(int j = 0; j < pattern.length; j++) {
+                    if(data[start + j] != pattern[j]) {
+                        matches = false;
+                        break;
+                    }
+                }
+                if(matches) {
+                    found.add(p + "@" + (position + start));
+                }
+            }
+        }
+        return found;
+    }
+
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final Random random;
+
+        TrickleInputStream(final byte[] data, final Random random) {
+            super(data);
+            this.random = random;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            return super.read(b, off, Math.min(len, 1 + random.nextInt(64)));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.exist.xquery.XPathException;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NumericCodingTest {
+
+    @Test
+    public void packUnpackInteger() throws XPathException {
+        final Random random = new Random(31);
+        for(int i = 0; i < 100000; i++) {
+            final int size = random.nextInt(20);
+            BigInteger value = new BigInteger(1 + random.nextInt(150), random);
+            if(random.nextBoolean()) {
+                value = value.negate();
+            }
+            final ByteOrder order = random.nextBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            final int off = random.nextInt(4);
+            final byte[] buf = new byte[off + size];
+
+            NumericCoding.packInteger(value, buf, off, size, order);
+
+            // the least significant $size octets of the value
+            final BigInteger modulus = BigInteger.ONE.shiftLeft(size * 8);
+            final BigInteger unsigned = value.mod(modulus);
+            final BigInteger signed = size > 0 && unsigned.testBit(size * 8 - 1) ? unsigned.subtract(modulus) : unsigned;
+
+            final String message = value + " in " + size + " octets " + order;
+            assertEquals(message, unsigned, NumericCoding.unpackInteger(buf, off, size, order, false).toJavaObject(BigInteger.class));
+            assertEquals(message, signed, NumericCoding.unpackInteger(buf, off, size, order, true).toJavaObject(BigInteger.class));
+            if(size > 0) {
+                final int mostSignificant = order == ByteOrder.BIG_ENDIAN ? off : off + size - 1;
+                assertEquals(message, unsigned.shiftRight(size * 8 - 8).intValue(), buf[mostSignificant] & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void octetOrder() {
+        assertEquals(ByteOrder.BIG_ENDIAN, NumericCoding.toByteOrder("most-significant-first"));
+        assertEquals(ByteOrder.BIG_ENDIAN, NumericCoding.toByteOrder("big-endian"));
+        assertEquals(ByteOrder.BIG_ENDIAN, NumericCoding.toByteOrder("BE"));
+        assertEquals(ByteOrder.LITTLE_ENDIAN, NumericCoding.toByteOrder("least-significant-first"));
+        assertEquals(ByteOrder.LITTLE_ENDIAN, NumericCoding.toByteOrder("little-endian"));
+        assertEquals(ByteOrder.LITTLE_ENDIAN, NumericCoding.toByteOrder("LE"));
+        assertNull(NumericCoding.toByteOrder("middle-endian"));
+    }
+}
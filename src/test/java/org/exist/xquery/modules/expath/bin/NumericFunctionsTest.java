@@ -0,0 +1,295 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import gnu.crypto.util.Base64;
+import org.exist.test.ExistXmldbEmbeddedServer;
+import org.exist.xmldb.EXistResource;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathException;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class NumericFunctionsTest {
+
+    @ClassRule
+    public static final ExistXmldbEmbeddedServer existXmldbEmbeddedServer =
+            new ExistXmldbEmbeddedServer(false, true);
+
+    @Test
+    public void packDouble() throws XMLDBException, IOException {
+        assertHexResult("3FF0000000000000", "bin:pack-double(1.0)");
+        assertHexResult("000000000000F03F", "bin:pack-double(1.0, 'least-significant-first')");
+    }
+
+    @Test
+    public void packFloat() throws XMLDBException, IOException {
+        assertHexResult("3FC00000", "bin:pack-float(xs:float(1.5))");
+        assertHexResult("0000C03F", "bin:pack-float(xs:float(1.5), 'LE')");
+    }
+
+    @Test
+    public void packInteger() throws XMLDBException, IOException {
+        assertHexResult("FFFFFE", "bin:pack-integer(-2, 3)");
+        assertHexResult("0201", "bin:pack-integer(258, 2, 'little-endian')");
+        assertHexResult("0001", "bin:pack-integer(65537, 2)");
+        assertHexResult("", "bin:pack-integer(65537, 0)");
+        assertHexResult("00000000000000000001", "bin:pack-integer(1, 10)");
+        assertHexResult("000000000000000001000000", "bin:pack-integer(18446744073709551616, 12, 'LE')");
+    }
+
+    @Test
+    public void packInteger_negativeSize() throws XMLDBException {
+        assertError(ExpathBinModule.ERROR_NEGATIVE_SIZE, "bin:pack-integer(1, -1)");
+    }
+
+    @Test
+    public void packDoubles() throws XMLDBException, IOException {
+        assertHexResult("3FF0000000000000C004000000000000", "bin:pack-doubles((1.0, -2.5))");
+        assertHexResult("000000000000F03F", "bin:pack-doubles(1.0, 'LE')");
+        assertHexResult("", "bin:pack-doubles(())");
+    }
+
+    @Test
+    public void packFloats() throws XMLDBException, IOException {
+        assertHexResult("0000C03F000080BF", "bin:pack-floats((xs:float(1.5), xs:float(-1)), 'LE')");
+    }
+
+    @Test
+    public void packIntegers() throws XMLDBException, IOException {
+        assertHexResult("FFFE01020001", "bin:pack-integers((-2, 258, 65537), 2)");
+        assertHexResult("FEFF0201", "bin:pack-integers((-2, 258), 2, 'LE')");
+    }
+
+    @Test
+    public void packIntegers_many() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $packed := bin:pack-integers(1 to 100000, 4, 'LE')\n"
+                + "let $values := bin:unpack-integers($packed, 0, 100000, 4, 'LE')\n"
+                + "return\n"
+                + "    (bin:length($packed), sum($values), $values[last()])";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(3, resourceSet.getSize());
+        assertEquals("400000", resourceSet.getResource(0).getContent().toString());
+        assertEquals("5000050000", resourceSet.getResource(1).getContent().toString());
+        assertEquals("100000", resourceSet.getResource(2).getContent().toString());
+    }
+
+    @Test
+    public void unpackDouble() throws XMLDBException {
+        assertResult("1", "bin:unpack-double(bin:hex('003FF0000000000000'), 1)");
+        assertResult("1", "bin:unpack-double(bin:hex('000000000000F03F'), 0, 'LE')");
+    }
+
+    @Test
+    public void unpackFloat() throws XMLDBException {
+        assertResult("1.5", "bin:unpack-float(bin:hex('3FC00000'), 0)");
+        assertResult("1.5", "bin:unpack-float(bin:hex('0000C03F'), 0, 'LE')");
+    }
+
+    @Test
+    public void unpackInteger() throws XMLDBException {
+        assertResult("-2", "bin:unpack-integer(bin:hex('FFFE'), 0, 2)");
+        assertResult("258", "bin:unpack-integer(bin:hex('000201'), 1, 2, 'LE')");
+        assertResult("-8388608", "bin:unpack-integer(bin:hex('800000'), 0, 3)");
+        assertResult("-1", "bin:unpack-integer(bin:hex('FFFFFFFFFFFFFFFFFF'), 0, 9)");
+        assertResult("0", "bin:unpack-integer(bin:hex('FF'), 0, 0)");
+    }
+
+    @Test
+    public void unpackUnsignedInteger() throws XMLDBException {
+        assertResult("65534", "bin:unpack-unsigned-integer(bin:hex('FFFE'), 0, 2)");
+        assertResult("4294967295", "bin:unpack-unsigned-integer(bin:hex('FFFFFFFF'), 0, 4)");
+        assertResult("18446744073709551615", "bin:unpack-unsigned-integer(bin:hex('FFFFFFFFFFFFFFFF'), 0, 8)");
+    }
+
+    @Test
+    public void unpackInteger_largeOffset() throws XMLDBException {
+        assertResult("258", "bin:unpack-integer(bin:pad-left(bin:hex('0102'), 100000000), 100000000, 2)");
+    }
+
+    @Test
+    public void unpackInteger_outOfRange() throws XMLDBException {
+        assertError(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, "bin:unpack-integer(bin:hex('0102'), 1, 2)");
+        assertError(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, "bin:unpack-double(bin:hex('0102'), -1)");
+    }
+
+    @Test
+    public void unpackInteger_sizeBeyondEnd() throws XMLDBException {
+        // must be raised before allocating a buffer of $size octets
+        assertError(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, "bin:unpack-integer(bin:hex('0001020304050607'), 0, 2147483647)");
+        assertError(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, "bin:unpack-integers(bin:hex('0001020304050607'), 0, 1, 2147483647)");
+        assertError(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, "bin:unpack-integers(bin:hex('0001020304050607'), 0, 2, 100000)");
+    }
+
+    @Test
+    public void unpackInteger_large() throws XMLDBException {
+        assertResult("1", "bin:unpack-unsigned-integer(bin:pad-left(bin:hex('01'), 99999), 0, 100000)");
+        assertResult("1,2", "string-join(bin:unpack-unsigned-integers(bin:join((bin:pad-left(bin:hex('01'), 99999), bin:pad-left(bin:hex('02'), 99999))), 0, 2, 100000) ! string(.), ',')");
+    }
+
+    @Test
+    public void unpackInteger_unknownOctetOrder() throws XMLDBException {
+        assertError(ExpathBinModule.ERROR_UNKNOWN_SIGNIFICANCE_ORDER, "bin:unpack-integer(bin:hex('0102'), 0, 2, 'middle-endian')");
+    }
+
+    @Test
+    public void unpackDoubles() throws XMLDBException {
+        assertResult("1,-2.5,0", "string-join(bin:unpack-doubles(bin:join((bin:hex('FF'), bin:pack-double(1.0), bin:pack-double(-2.5), bin:pack-double(0.0))), 1, 3) ! string(.), ',')");
+        assertResult("1,-2.5", "string-join(bin:unpack-doubles(bin:join((bin:pack-double(1.0, 'LE'), bin:pack-double(-2.5, 'LE'))), 0, 2, 'LE') ! string(.), ',')");
+    }
+
+    @Test
+    public void unpackFloats() throws XMLDBException {
+        assertResult("1.5,-1", "string-join(bin:unpack-floats(bin:hex('0000C03F000080BF'), 0, 2, 'LE') ! string(.), ',')");
+    }
+
+    @Test
+    public void unpackIntegers() throws XMLDBException {
+        assertResult("-2,258,1", "string-join(bin:unpack-integers(bin:hex('00FFFE01020001'), 1, 3, 2) ! string(.), ',')");
+        assertResult("65534,513", "string-join(bin:unpack-unsigned-integers(bin:hex('FEFF0102'), 0, 2, 2, 'LE') ! string(.), ',')");
+        assertResult("0", "count(bin:unpack-integers(bin:hex('0102'), 2, 0, 2))");
+    }
+
+    @Test
+    public void unpackIntegers_many() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $values := bin:unpack-unsigned-integers(bin:pad-right(bin:hex('01'), 299999, 1), 0, 100000, 3)\n"
+                + "return\n"
+                + "    (count($values), sum($values))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals("100000", resourceSet.getResource(0).getContent().toString());
+        assertEquals("6579300000", resourceSet.getResource(1).getContent().toString());
+    }
+
+    @Test
+    public void unpackIntegers_outOfRange() throws XMLDBException {
+        assertError(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, "bin:unpack-integers(bin:hex('010203'), 0, 2, 2)");
+        assertError(ExpathBinModule.ERROR_NEGATIVE_SIZE, "bin:unpack-doubles(bin:hex('0102'), 0, -1)");
+    }
+
+    @Test
+    public void unpackIntegers_zeroSize() throws XMLDBException {
+        assertResult("0", "count(bin:unpack-integers(bin:hex('0102'), 0, 0, 0))");
+        assertError(ExpathBinModule.ERROR_CONVERSION_ERROR, "bin:unpack-integers(bin:hex('0102'), 0, 2147483647, 0)");
+    }
+
+    @Test
+    public void unpackRecord() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:join((bin:hex('FF'), bin:pack-integer(7, 4), bin:pack-integer(1, 2), bin:pack-integer(-1, 2), bin:pack-integer(9, 8), bin:pack-double(2.5), bin:encode-string('abcdefgh')))\n"
+                + "let $record := bin:unpack-record($data, 1, '>I2HQd8s')\n"
+                + "return\n"
+                + "    (map:size($record), $record(1), $record(2), $record(3), $record(4), $record(5), bin:decode-string($record(6)))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(7, resourceSet.getSize());
+        assertEquals("6", resourceSet.getResource(0).getContent().toString());
+        assertEquals("7", resourceSet.getResource(1).getContent().toString());
+        assertEquals("1", resourceSet.getResource(2).getContent().toString());
+        assertEquals("65535", resourceSet.getResource(3).getContent().toString());
+        assertEquals("9", resourceSet.getResource(4).getContent().toString());
+        assertEquals("2.5", resourceSet.getResource(5).getContent().toString());
+        assertEquals("abcdefgh", resourceSet.getResource(6).getContent().toString());
+    }
+
+    @Test
+    public void unpackRecord_littleEndian() throws XMLDBException {
+        assertResult("-2 true 1.5", "let $record := bin:unpack-record(bin:hex('FEFF0001FF000000C03F'), 0, '<h2x?xf') return string-join(($record(1), $record(2), $record(3)) ! string(.), ' ')");
+    }
+
+    @Test
+    public void unpackRecord_outOfRange() throws XMLDBException {
+        assertError(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, "bin:unpack-record(bin:hex('0102'), 0, 'I')");
+    }
+
+    @Test
+    public void unpackRecord_invalidLayout() throws XMLDBException {
+        assertError(ExpathBinModule.ERROR_INVALID_LAYOUT, "bin:unpack-record(bin:hex('0102'), 0, 'Z')");
+    }
+
+    private static void assertResult(final String expected, final String expression) throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + expression;
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(1, resourceSet.getSize());
+        assertEquals(expected, resourceSet.getResource(0).getContent().toString());
+    }
+
+    private static void assertHexResult(final String expectedHex, final String expression) throws XMLDBException, IOException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + expression;
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(1, resourceSet.getSize());
+        try(final EXistResource resource = (EXistResource)resourceSet.getResource(0)) {
+            assertEquals(Base64.encode(hexToBytes(expectedHex)), Base64.encode((byte[])resource.getContent()));
+        }
+    }
+
+    private static void assertError(final ErrorCodes.ErrorCode expected, final String expression) {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + expression;
+
+        try {
+            existXmldbEmbeddedServer.executeQuery(query);
+            fail("Expected error " + expected.getErrorQName());
+        } catch(final XMLDBException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof XPathException) {
+                assertEquals(expected, ((XPathException)cause).getErrorCode());
+            } else {
+                fail("Expected error " + expected.getErrorQName());
+            }
+        }
+    }
+
+    private static byte[] hexToBytes(final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ReadAheadTest {
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setup() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void readAheadSegments() throws IOException {
+        final Random random = new Random(42);
+        final byte[][] segments = new byte[200][];
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for(int i = 0; i < segments.length; i++) {
+            segments[i] = new byte[random.nextInt(100)];
+            random.nextBytes(segments[i]);
+            expected.write(segments[i]);
+        }
+
+        final JoinFilterInputStream.InputStreamSupplier[] suppliers = new JoinFilterInputStream.InputStreamSupplier[segments.length];
+        for(int i = 0; i < segments.length; i++) {
+            final byte[] segment = segments[i];
+            suppliers[i] = () -> new ByteArrayInputStream(segment);
+        }
+
+        final ReadAhead.Prefetcher prefetcher = new ReadAhead(executor, 16).prefetch(suppliers);
+        try(final InputStream is = new JoinFilterInputStream(prefetcher.getSuppliers())) {
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            final byte[] buf = new byte[37];
+            int read;
+            while((read = is.read(buf)) != -1) {
+                actual.write(buf, 0, read);
+            }
+            assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test(expected = RegionFilterInputStream.IndexOutOfRangeException.class)
+    public void readAheadError() throws IOException {
+        final JoinFilterInputStream.InputStreamSupplier[] suppliers = {
+                () -> new ByteArrayInputStream(new byte[100]),
+                () -> new RegionFilterInputStream(new ByteArrayInputStream(new byte[10]), 0, 20)
+        };
+
+        final ReadAhead.Prefetcher prefetcher = new ReadAhead(executor, 16).prefetch(suppliers);
+        try(final InputStream is = new JoinFilterInputStream(prefetcher.getSuppliers())) {
+            final byte[] buf = new byte[64];
+            while(is.read(buf) != -1) {
+            }
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void readAheadSaturated() throws IOException {
+        final ExecutorService singleThread = ReadAhead.newExecutor(1);
+        try {
+            final ReadAhead readAhead = new ReadAhead(singleThread, 16);
+            final byte[] data = new byte[1000];
+            new Random(43).nextBytes(data);
+            final JoinFilterInputStream.InputStreamSupplier[] suppliers = {
+                    () -> new ByteArrayInputStream(data),
+                    () -> new ByteArrayInputStream(data)
+            };
+
+            // only partly read, so the only thread waits for the reader to consume its buffers
+            final ReadAhead.Prefetcher held = readAhead.prefetch(suppliers);
+            try(final InputStream heldIs = new JoinFilterInputStream(held.getSuppliers())) {
+                heldIs.read();
+
+                final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                expected.write(data);
+                expected.write(data);
+
+                // must be read without read-ahead, rather than waiting for the thread
+                final ReadAhead.Prefetcher prefetcher = readAhead.prefetch(suppliers);
+                try(final InputStream is = new JoinFilterInputStream(prefetcher.getSuppliers())) {
+                    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                    final byte[] buf = new byte[37];
+                    int read;
+                    while((read = is.read(buf)) != -1) {
+                        actual.write(buf, 0, read);
+                    }
+                    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+                } finally {
+                    prefetcher.close();
+                }
+            } finally {
+                held.close();
+            }
+        } finally {
+            singleThread.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void readAheadAbandoned() throws IOException, InterruptedException {
+        final ExecutorService singleThread = ReadAhead.newExecutor(1);
+        try {
+            final ReadAhead readAhead = new ReadAhead(singleThread, 16, 200);
+            final JoinFilterInputStream.InputStreamSupplier[] suppliers = {
+                    () -> new ByteArrayInputStream(new byte[1000])
+            };
+
+            // read once and then neither read nor closed, so the background read fills its buffers and waits
+            final InputStream abandoned = readAhead.prefetch(suppliers).getSuppliers()[0].get();
+            abandoned.read();
+
+            // the background read gives up, which frees the only thread
+            while(true) {
+                try {
+                    singleThread.execute(() -> {});
+                    break;
+                } catch(final RejectedExecutionException e) {
+                    Thread.sleep(50);
+                }
+            }
+
+            // what was read ahead may still be read, after which the stream fails rather than waiting
+            try {
+                while(abandoned.read() != -1) {
+                }
+                fail("Expected the abandoned read-ahead to fail");
+            } catch(final IOException e) {
+                // expected
+            }
+        } finally {
+            singleThread.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void readAheadShutdown() throws IOException {
+        final ReadAhead readAhead = new ReadAhead(ReadAhead.newExecutor(1), 16);
+        final JoinFilterInputStream.InputStreamSupplier[] suppliers = {
+                () -> new ByteArrayInputStream(new byte[1000])
+        };
+
+        try(final InputStream is = readAhead.prefetch(suppliers).getSuppliers()[0].get()) {
+            is.read();
+            readAhead.shutdown();
+            try {
+                while(is.read() != -1) {
+                }
+                fail("Expected the stopped read-ahead to fail");
+            } catch(final IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void readAheadOnlyInBackgroundWhenAllowed() throws IOException {
+        final Thread reader = Thread.currentThread();
+        final byte[] data = new byte[100];
+        new Random(44).nextBytes(data);
+        final JoinFilterInputStream.InputStreamSupplier[] suppliers = new JoinFilterInputStream.InputStreamSupplier[3];
+        for(int i = 0; i < suppliers.length; i++) {
+            suppliers[i] = () -> {
+                // e.g. a stream of a binary value, which needs the broker of the thread of the query
+                assertEquals(reader, Thread.currentThread());
+                return new ByteArrayInputStream(data);
+            };
+        }
+
+        final ReadAhead.Prefetcher prefetcher = new ReadAhead(executor, 16).prefetch(suppliers, new Object[] { suppliers[0], suppliers[1], suppliers[2] }, new boolean[3]);
+        try(final InputStream is = new JoinFilterInputStream(prefetcher.getSuppliers())) {
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            final byte[] buf = new byte[37];
+            int read;
+            while((read = is.read(buf)) != -1) {
+                actual.write(buf, 0, read);
+            }
+
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for(int i = 0; i < suppliers.length; i++) {
+                expected.write(data);
+            }
+            assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        } finally {
+            prefetcher.close();
+        }
+    }
+}
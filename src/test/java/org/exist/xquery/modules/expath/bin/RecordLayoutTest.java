@@ -0,0 +1,94 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecordLayoutTest {
+
+    @Test
+    public void fields() {
+        final RecordLayout layout = RecordLayout.compile(">I2HQd8s");
+        assertEquals(ByteOrder.BIG_ENDIAN, layout.getOrder());
+        assertEquals(4 + 2 * 2 + 8 + 8 + 8, layout.getSize());
+
+        final RecordLayout.Field[] fields = layout.getFields();
+        assertEquals(6, fields.length);
+        assertField(RecordLayout.FieldType.UNSIGNED_INTEGER, 0, 4, fields[0]);
+        assertField(RecordLayout.FieldType.UNSIGNED_INTEGER, 4, 2, fields[1]);
+        assertField(RecordLayout.FieldType.UNSIGNED_INTEGER, 6, 2, fields[2]);
+        assertField(RecordLayout.FieldType.UNSIGNED_INTEGER, 8, 8, fields[3]);
+        assertField(RecordLayout.FieldType.DOUBLE, 16, 8, fields[4]);
+        assertField(RecordLayout.FieldType.BINARY, 24, 8, fields[5]);
+    }
+
+    @Test
+    public void padding() {
+        final RecordLayout layout = RecordLayout.compile("< b 3x ? f");
+        assertEquals(ByteOrder.LITTLE_ENDIAN, layout.getOrder());
+        assertEquals(1 + 3 + 1 + 4, layout.getSize());
+
+        final RecordLayout.Field[] fields = layout.getFields();
+        assertEquals(3, fields.length);
+        assertField(RecordLayout.FieldType.SIGNED_INTEGER, 0, 1, fields[0]);
+        assertField(RecordLayout.FieldType.BOOLEAN, 4, 1, fields[1]);
+        assertField(RecordLayout.FieldType.FLOAT, 5, 4, fields[2]);
+    }
+
+    @Test
+    public void defaultOrder() {
+        assertEquals(ByteOrder.BIG_ENDIAN, RecordLayout.compile("h").getOrder());
+        assertEquals(ByteOrder.BIG_ENDIAN, RecordLayout.compile("!h").getOrder());
+        assertEquals(ByteOrder.nativeOrder(), RecordLayout.compile("=h").getOrder());
+        assertEquals(0, RecordLayout.compile("").getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTypeCode() {
+        RecordLayout.compile(">Iz");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countWithoutTypeCode() {
+        RecordLayout.compile(">I4");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLarge() {
+        RecordLayout.compile("999999999Q");
+    }
+
+    private static void assertField(final RecordLayout.FieldType type, final int offset, final int size, final RecordLayout.Field field) {
+        assertEquals(type, field.getType());
+        assertEquals(offset, field.getOffset());
+        assertEquals(size, field.getSize());
+    }
+}
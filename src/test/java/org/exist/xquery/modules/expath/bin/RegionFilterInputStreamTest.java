@@ -0,0 +1,212 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RegionFilterInputStreamTest {
+
+    private static final long FOUR_GB = 4L * 1024 * 1024 * 1024;
+
+    @Test
+    public void regionBeyond2GB() throws IOException {
+        final long offset = Integer.MAX_VALUE + 5L;
+        try(final InputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB), offset, 16)) {
+            assertArrayEquals(expected(offset, 16), readAll(is, 32));
+        }
+    }
+
+    @Test
+    public void regionAcross2GB() throws IOException {
+        final long offset = Integer.MAX_VALUE - 7L;
+        try(final InputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB), offset, 16)) {
+            assertArrayEquals(expected(offset, 16), readAll(is, 32));
+        }
+    }
+
+    @Test
+    public void regionToEndBeyond4GB() throws IOException {
+        final long offset = FOUR_GB + 100;
+        try(final InputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB + 110), offset, RegionFilterInputStream.END_OF_STREAM)) {
+            assertArrayEquals(expected(offset, 10), readAll(is, 32));
+        }
+    }
+
+    @Test
+    public void singleOctetReads() throws IOException {
+        final long offset = FOUR_GB - 3;
+        try(final InputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB), offset, 2)) {
+            final byte[] expected = expected(offset, 2);
+            assertEquals(expected[0] & 0xff, is.read());
+            assertEquals(expected[1] & 0xff, is.read());
+            assertEquals(RegionFilterInputStream.END_OF_STREAM, is.read());
+        }
+    }
+
+    @Test(expected = RegionFilterInputStream.IndexOutOfRangeException.class)
+    public void regionOverflow() throws IOException {
+        try(final InputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB), FOUR_GB - 8, 16)) {
+            readAll(is, 32);
+        }
+    }
+
+    @Test
+    public void seekWithPartialSkips() throws IOException {
+        final long offset = 100_000;
+        try(final InputStream is = new RegionFilterInputStream(new GeneratedInputStream(offset + 64, 1000), offset, 16)) {
+            assertArrayEquals(expected(offset, 16), readAll(is, 32));
+        }
+    }
+
+    @Test
+    public void skipWithinRegion() throws IOException {
+        final long offset = FOUR_GB;
+        try(final InputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB + 64), offset, 16)) {
+            assertEquals(10, is.skip(10));
+            assertArrayEquals(expected(offset + 10, 6), readAll(is, 32));
+            assertEquals(0, is.skip(10));
+        }
+    }
+
+    @Test(expected = RegionFilterInputStream.IndexOutOfRangeException.class)
+    public void seekBeyondEnd() throws IOException {
+        try(final InputStream is = new RegionFilterInputStream(new GeneratedInputStream(1024, 100), 2048, RegionFilterInputStream.END_OF_STREAM)) {
+            is.read();
+        }
+    }
+
+    @Test
+    public void transferTo() throws IOException {
+        final long offset = FOUR_GB + 3;
+        try(final RegionFilterInputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB + 64), offset, 16)) {
+            assertEquals(4, is.skip(4));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(12, is.transferTo(out));
+            assertArrayEquals(expected(offset + 4, 12), out.toByteArray());
+            assertEquals(RegionFilterInputStream.END_OF_STREAM, is.read());
+        }
+    }
+
+    @Test
+    public void transferToChannel() throws IOException {
+        final long offset = Integer.MAX_VALUE - 7L;
+        try(final RegionFilterInputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB), offset, 100_000)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(100_000, is.transferTo(Channels.newChannel(out)));
+            assertArrayEquals(expected(offset, 100_000), out.toByteArray());
+        }
+    }
+
+    @Test(expected = RegionFilterInputStream.IndexOutOfRangeException.class)
+    public void transferToOverflow() throws IOException {
+        try(final RegionFilterInputStream is = new RegionFilterInputStream(new GeneratedInputStream(FOUR_GB), FOUR_GB - 8, 16)) {
+            is.transferTo(new ByteArrayOutputStream());
+        }
+    }
+
+    private static byte[] expected(final long offset, final int len) {
+        final byte[] expected = new byte[len];
+        for(int i = 0; i < len; i++) {
+            expected[i] = GeneratedInputStream.valueAt(offset + i);
+        }
+        return expected;
+    }
+
+    private static byte[] readAll(final InputStream is, final int max) throws IOException {
+        final byte[] buf = new byte[max];
+        int len = 0;
+        int read;
+        while(len < max && (read = is.read(buf, len, max - len)) != -1) {
+            len += read;
+        }
+        final byte[] result = new byte[len];
+        System.arraycopy(buf, 0, result, 0, len);
+        return result;
+    }
+
+    /**
+     * An input stream of generated data, which can be skipped
+     * without generating the skipped data.
+     */
+    private static class GeneratedInputStream extends InputStream {
+        private final long length;
+        private final long maxSkip;
+        private long position = 0;
+
+        GeneratedInputStream(final long length) {
+            this(length, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param length the length of the stream
+         * @param maxSkip the most octets that a single call to {@link #skip(long)} will skip
+         */
+        GeneratedInputStream(final long length, final long maxSkip) {
+            this.length = length;
+            this.maxSkip = maxSkip;
+        }
+
+        static byte valueAt(final long position) {
+            return (byte)((position * 31) ^ (position >>> 32));
+        }
+
+        @Override
+        public int read() {
+            if(position >= length) {
+                return -1;
+            }
+            return valueAt(position++) & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if(position >= length) {
+                return -1;
+            }
+            final int n = (int)Math.min(len, length - position);
+            for(int i = 0; i < n; i++) {
+                b[off + i] = valueAt(position++);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(Math.min(n, maxSkip), length - position));
+            position += skipped;
+            return skipped;
+        }
+    }
+}
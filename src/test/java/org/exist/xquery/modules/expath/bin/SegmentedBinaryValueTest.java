@@ -0,0 +1,112 @@
+/**
+ * Copyright © 2017, eXist-db
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.xquery.modules.expath.bin;
+
+import org.exist.xquery.XPathException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SegmentedBinaryValueTest {
+
+    private static final byte[] DATA = "0123456789abcdef".getBytes();
+    private static final byte[] EXTRA = "XYZ".getBytes();
+
+    @Test
+    public void insertOpensDataOnce() throws IOException, XPathException {
+        final CountingBinarySource data = new CountingBinarySource(DATA);
+
+        // as bin:insert-before, both regions of the data are taken from the same segments
+        final SegmentedBinaryValue.Segment[] dataSegments = { SegmentedBinaryValue.Segment.of(data) };
+        final List<SegmentedBinaryValue.Segment> segments = new ArrayList<>();
+        append(segments, Utils.getSegments(null, null, dataSegments, 0, 5));
+        SegmentedBinaryValue.append(segments, SegmentedBinaryValue.Segment.of(new ByteArrayBinarySource(EXTRA)));
+        append(segments, Utils.getSegments(null, null, dataSegments, 5, SegmentedBinaryValue.UNKNOWN_LENGTH));
+
+        assertArrayEquals("01234XYZ56789abcdef".getBytes(), readAll(segments));
+        assertEquals(1, data.opens);
+    }
+
+    @Test
+    public void regionsOfDifferentSourcesOpenEach() throws IOException {
+        final CountingBinarySource before = new CountingBinarySource(DATA);
+        final CountingBinarySource after = new CountingBinarySource(DATA);
+
+        final List<SegmentedBinaryValue.Segment> segments = new ArrayList<>();
+        append(segments, SegmentedBinaryValue.region(new SegmentedBinaryValue.Segment[] { SegmentedBinaryValue.Segment.of(before) }, 0, 5).get());
+        append(segments, SegmentedBinaryValue.region(new SegmentedBinaryValue.Segment[] { SegmentedBinaryValue.Segment.of(after) }, 5, SegmentedBinaryValue.UNKNOWN_LENGTH).get());
+
+        assertArrayEquals(DATA, readAll(segments));
+        assertEquals(1, before.opens);
+        assertEquals(1, after.opens);
+    }
+
+    private static void append(final List<SegmentedBinaryValue.Segment> segments, final List<SegmentedBinaryValue.Segment> region) {
+        for(final SegmentedBinaryValue.Segment segment : region) {
+            SegmentedBinaryValue.append(segments, segment);
+        }
+    }
+
+    private static byte[] readAll(final List<SegmentedBinaryValue.Segment> segments) throws IOException {
+        try(final InputStream is = SegmentedBinaryValue.open(segments.toArray(new SegmentedBinaryValue.Segment[0]), 0)) {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4];
+            int read;
+            while((read = is.read(buf)) != -1) {
+                os.write(buf, 0, read);
+            }
+            return os.toByteArray();
+        }
+    }
+
+    private static class CountingBinarySource implements BinarySource {
+        private final BinarySource source;
+        private int opens;
+
+        CountingBinarySource(final byte[] data) {
+            this.source = new ByteArrayBinarySource(data);
+        }
+
+        @Override
+        public long getLength() {
+            return source.getLength();
+        }
+
+        @Override
+        public InputStream open(final long offset) throws IOException {
+            opens++;
+            return source.open(offset);
+        }
+    }
+}
@@ -39,15 +39,15 @@ public class TestUtils {
     static String TEST_COLLECTION_NAME = "expath-bin-module-test";
     static int BUFFER_SIZE = 16 * 1024;  // 16KB
 
-    static Path createRandomDataFile(final int size) throws IOException {
+    static Path createRandomDataFile(final long size) throws IOException {
         final Path file = Files.createTempFile("eXist-db", TEST_COLLECTION_NAME);
         try(final OutputStream os = Files.newOutputStream(file)) {
 
             final Random random = new Random();
 
-            int nbBytes = 0;
+            long nbBytes = 0;
             while(nbBytes < size){
-                final int nbBytesToWrite = Math.min(size - nbBytes, BUFFER_SIZE);
+                final int nbBytesToWrite = (int)Math.min(size - nbBytes, BUFFER_SIZE);
                 final byte[] buf = new byte[nbBytesToWrite];
                 random.nextBytes(buf);
                 os.write(buf);
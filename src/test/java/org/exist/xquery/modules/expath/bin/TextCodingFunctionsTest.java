@@ -83,6 +83,281 @@ public class TextCodingFunctionsTest {
         assertEquals("iwouldliketotryagain", resourceSet.getResource(0).getContent().toString());
     }
 
+    @Test
+    public void decode_large() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $decoded := bin:decode-string(bin:pad-right(bin:encode-string('\u00e9'), 1000000, 97))\n"
+                + "return\n"
+                + "    (string-length($decoded), substring($decoded, 1, 3))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals("1000001", resourceSet.getResource(0).getContent().toString());
+        assertEquals("\u00e9aa", resourceSet.getResource(1).getContent().toString());
+    }
+
+    @Test
+    public void decode_directAndStreamed() throws XMLDBException {
+        // 65536 octets are decoded in one step, and any more are streamed through a decoder
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $text := string-join(for $i in 1 to 40000 return 'a\u00e9')\n"
+                + "let $data := bin:encode-string($text, 'ISO-8859-1')\n"
+                + "for $size in (65536, 65537)\n"
+                + "return\n"
+                + "    (bin:decode-string($data, 'ISO-8859-1', 0, $size) eq substring($text, 1, $size), bin:decode-string($data, 'ISO-8859-1', 80000 - $size) eq substring($text, 80001 - $size))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(4, resourceSet.getSize());
+        for(int i = 0; i < 4; i++) {
+            assertEquals("true", resourceSet.getResource(i).getContent().toString());
+        }
+    }
+
+    @Test
+    public void decodeLines() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "string-join(bin:decode-lines(bin:encode-string(codepoints-to-string((97, 10, 98, 13, 10, 13, 99, 10))), 'UTF-8'), '|')";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(1, resourceSet.getSize());
+        assertEquals("a|b||c", resourceSet.getResource(0).getContent().toString());
+    }
+
+    @Test
+    public void decodeLines_max() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:pad-right(bin:encode-string('first'), 10000000, 10)\n"
+                + "return\n"
+                + "    string-join(bin:decode-lines($data, 'UTF-8', 3), '|')";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(1, resourceSet.getSize());
+        assertEquals("first||", resourceSet.getResource(0).getContent().toString());
+    }
+
+    @Test
+    public void decodeRecords() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:encode-string('a||b|c||||d', 'ISO-8859-1')\n"
+                + "return\n"
+                + "    (string-join(bin:decode-records($data, 'ISO-8859-1', '||'), ','), count(bin:decode-records($data, 'ISO-8859-1', '||', 2)))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals("a,b|c,,d", resourceSet.getResource(0).getContent().toString());
+        assertEquals("2", resourceSet.getResource(1).getContent().toString());
+    }
+
+    @Test
+    public void decodeRecords_empty() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "(bin:decode-records((), 'UTF-8', ','), bin:decode-records(bin:encode-string(''), 'UTF-8', ','))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(0, resourceSet.getSize());
+    }
+
+    @Test
+    public void decode_auto() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "for $hex in ('EFBBBF616263', 'FFFE610062006300', 'FEFF006100620063', '0000FEFF00000061', 'FFFE000061000000', '616263', '')\n"
+                + "return\n"
+                + "    bin:decode-string(xs:base64Binary(xs:hexBinary($hex)), 'auto')";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(7, resourceSet.getSize());
+        assertEquals("abc", resourceSet.getResource(0).getContent().toString());
+        assertEquals("abc", resourceSet.getResource(1).getContent().toString());
+        assertEquals("abc", resourceSet.getResource(2).getContent().toString());
+        assertEquals("a", resourceSet.getResource(3).getContent().toString());
+        assertEquals("a", resourceSet.getResource(4).getContent().toString());
+        assertEquals("abc", resourceSet.getResource(5).getContent().toString());
+        assertEquals("", resourceSet.getResource(6).getContent().toString());
+    }
+
+    @Test
+    public void decode_auto_large() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $text := string-join(for $i in 1 to 50000 return 'ab')\n"
+                + "let $data := bin:join((xs:base64Binary(xs:hexBinary('FEFF')), bin:encode-string($text, 'UTF-16BE')))\n"
+                + "return\n"
+                + "    (bin:decode-string($data, 'auto') eq $text, bin:decode-string($data, 'auto', 0, 10))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals("true", resourceSet.getResource(0).getContent().toString());
+        assertEquals("abab", resourceSet.getResource(1).getContent().toString());
+    }
+
+    @Test
+    public void decodeLines_auto() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "string-join(bin:decode-lines(xs:base64Binary(xs:hexBinary('EFBBBF780A79')), 'auto'), '|')";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(1, resourceSet.getSize());
+        assertEquals("x|y", resourceSet.getResource(0).getContent().toString());
+    }
+
+    @Test
+    public void decodeStringChunks() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:encode-string('abcdefg')\n"
+                + "return\n"
+                + "    (string-join(bin:decode-string-chunks($data, 'UTF-8', 3), ','), count(bin:decode-string-chunks($data, 'UTF-8', 1, 2)), count(bin:decode-string-chunks((), 'UTF-8', 3)))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(3, resourceSet.getSize());
+        assertEquals("abc,def,g", resourceSet.getResource(0).getContent().toString());
+        assertEquals("2", resourceSet.getResource(1).getContent().toString());
+        assertEquals("0", resourceSet.getResource(2).getContent().toString());
+    }
+
+    @Test
+    public void decodeStringChunks_surrogatePairs() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:encode-string(codepoints-to-string((97, 128512, 98, 128513)), 'UTF-16BE')\n"
+                + "return\n"
+                + "    (string-join(for $chunk in bin:decode-string-chunks($data, 'UTF-16BE', 2) return string-join(string-to-codepoints($chunk), ' '), ','),\n"
+                + "    string-join(for $chunk in bin:decode-string-chunks($data, 'UTF-16BE', 1) return string-join(string-to-codepoints($chunk), ' '), ','))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(2, resourceSet.getSize());
+        assertEquals("97,128512,98,128513", resourceSet.getResource(0).getContent().toString());
+        assertEquals("97,128512,98,128513", resourceSet.getResource(1).getContent().toString());
+    }
+
+    @Test
+    public void decodeStringChunks_zero() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:decode-string-chunks(bin:encode-string('abc'), 'UTF-8', 0)";
+
+        try {
+            existXmldbEmbeddedServer.executeQuery(query);
+            fail("Expected error bin:conversion-error");
+        } catch(final XMLDBException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof XPathException) {
+                final XPathException xpe = ((XPathException)cause);
+                assertEquals(ExpathBinModule.ERROR_CONVERSION_ERROR, xpe.getErrorCode());
+            } else {
+                fail("Expected error bin:conversion-error");
+            }
+        }
+    }
+
+    @Test
+    public void decodeLinesPage() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:encode-string(concat('first', codepoints-to-string(10), 'second', codepoints-to-string((13, 10)), 'third'))\n"
+                + "let $first := bin:decode-lines-page($data, 'UTF-8', 0, 2)\n"
+                + "let $second := bin:decode-lines-page($data, 'UTF-8', $first?next-offset, 2)\n"
+                + "return\n"
+                + "    (string-join($first?strings, ','), $first?next-offset, $first?encoding, string-join($second?strings, ','), map:contains($second, 'next-offset'))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(5, resourceSet.getSize());
+        assertEquals("first,second", resourceSet.getResource(0).getContent().toString());
+        assertEquals("14", resourceSet.getResource(1).getContent().toString());
+        assertEquals("UTF-8", resourceSet.getResource(2).getContent().toString());
+        assertEquals("third", resourceSet.getResource(3).getContent().toString());
+        assertEquals("false", resourceSet.getResource(4).getContent().toString());
+    }
+
+    @Test
+    public void decodeRecordsPage_auto() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := xs:base64Binary(xs:hexBinary('FFFE78007C007900'))\n"
+                + "let $first := bin:decode-records-page($data, 'auto', '|', 0, 1)\n"
+                + "let $second := bin:decode-records-page($data, $first?encoding, '|', $first?next-offset, 1)\n"
+                + "return\n"
+                + "    ($first?strings, $first?next-offset, $first?encoding, $second?strings, map:contains($second, 'next-offset'))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(5, resourceSet.getSize());
+        assertEquals("x", resourceSet.getResource(0).getContent().toString());
+        assertEquals("6", resourceSet.getResource(1).getContent().toString());
+        assertEquals("UTF-16LE", resourceSet.getResource(2).getContent().toString());
+        assertEquals("y", resourceSet.getResource(3).getContent().toString());
+        assertEquals("false", resourceSet.getResource(4).getContent().toString());
+    }
+
+    @Test
+    public void decodeRecordsPage_resumeWithByteOrderMark() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := xs:base64Binary(xs:hexBinary('FFFE78007C0079007C007A00'))\n"
+                + "let $first := bin:decode-records-page($data, 'UTF-16', '|', 0, 1)\n"
+                + "let $auto := bin:decode-records-page($data, 'auto', '|', $first?next-offset, 1)\n"
+                + "let $utf16 := bin:decode-records-page($data, 'UTF-16', '|', $auto?next-offset, 1)\n"
+                + "return\n"
+                + "    ($first?strings, $first?encoding, $auto?strings, $auto?encoding, $utf16?strings, $utf16?encoding)";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(6, resourceSet.getSize());
+        assertEquals("x", resourceSet.getResource(0).getContent().toString());
+        assertEquals("UTF-16LE", resourceSet.getResource(1).getContent().toString());
+        assertEquals("y", resourceSet.getResource(2).getContent().toString());
+        assertEquals("UTF-16LE", resourceSet.getResource(3).getContent().toString());
+        assertEquals("z", resourceSet.getResource(4).getContent().toString());
+        assertEquals("UTF-16LE", resourceSet.getResource(5).getContent().toString());
+    }
+
+    @Test
+    public void decodeStringChunksPage() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "let $data := bin:encode-string(codepoints-to-string((97, 233, 8364, 98)))\n"
+                + "let $first := bin:decode-string-chunks-page($data, 'UTF-8', 2, 0, 1)\n"
+                + "let $second := bin:decode-string-chunks-page($data, 'UTF-8', 2, $first?next-offset, 1)\n"
+                + "let $third := bin:decode-string-chunks-page($data, 'UTF-8', 2, $second?next-offset, 1)\n"
+                + "return\n"
+                + "    (string-join(string-to-codepoints($first?strings), ' '), $first?next-offset, string-join(string-to-codepoints($second?strings), ' '), $second?next-offset, count($third?strings), map:contains($third, 'next-offset'))";
+
+        final ResourceSet resourceSet = existXmldbEmbeddedServer.executeQuery(query);
+        assertEquals(6, resourceSet.getSize());
+        assertEquals("97 233", resourceSet.getResource(0).getContent().toString());
+        assertEquals("3", resourceSet.getResource(1).getContent().toString());
+        assertEquals("8364 98", resourceSet.getResource(2).getContent().toString());
+        assertEquals("7", resourceSet.getResource(3).getContent().toString());
+        assertEquals("0", resourceSet.getResource(4).getContent().toString());
+        assertEquals("false", resourceSet.getResource(5).getContent().toString());
+    }
+
+    @Test
+    public void decodeLinesPage_negativeOffset() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                + "bin:decode-lines-page(bin:encode-string('abc'), 'UTF-8', -1, 10)";
+
+        try {
+            existXmldbEmbeddedServer.executeQuery(query);
+            fail("Expected error bin:index-out-of-range");
+        } catch(final XMLDBException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof XPathException) {
+                final XPathException xpe = ((XPathException)cause);
+                assertEquals(ExpathBinModule.ERROR_INDEX_OUT_OF_RANGE, xpe.getErrorCode());
+            } else {
+                fail("Expected error bin:index-out-of-range");
+            }
+        }
+    }
+
     @Test
     public void decode_unknown_encoding() throws XMLDBException {
         final String query =
@@ -244,4 +519,24 @@ public class TextCodingFunctionsTest {
             }
         }
     }
+
+    @Test
+    public void encode_auto_encoding() throws XMLDBException {
+        final String query =
+                "import module namespace bin = \"http://expath.org/ns/binary\";\n"
+                        + "bin:encode-string('iwouldliketotryagain', 'auto')";
+
+        try {
+            existXmldbEmbeddedServer.executeQuery(query);
+            fail("Expected error bin:unknown-encoding");
+        } catch(final XMLDBException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof XPathException) {
+                final XPathException xpe = ((XPathException)cause);
+                assertEquals(ExpathBinModule.ERROR_UNKNOWN_ENCODING, xpe.getErrorCode());
+            } else {
+                fail("Expected error bin:unknown-encoding");
+            }
+        }
+    }
 }